@@ -4639,6 +4639,7 @@ OPJ_BOOL opj_j2k_read_eoc (     opj_j2k_t *p_j2k,
                 opj_event_msg(p_manager, EVT_ERROR, "Cannot decode tile, memory error\n");
                 return OPJ_FALSE;
         }
+        l_tcd->cancel = p_j2k->m_specific_param.m_decoder.m_cancel;
 
         for (i = 0; i < l_nb_tiles; ++i) {
                 if (l_tcp->m_data) {
@@ -7246,6 +7247,12 @@ OPJ_BOOL opj_j2k_decode_tile (  opj_j2k_t * p_j2k,
                 return OPJ_FALSE;
         }
 
+        p_j2k->m_tcd->cancel = p_j2k->m_specific_param.m_decoder.m_cancel;
+        if (p_j2k->m_tcd->cancel && *p_j2k->m_tcd->cancel) {
+                opj_event_msg(p_manager, EVT_WARNING, "Decoding cancelled before tile %d\n", p_tile_index + 1);
+                return OPJ_FALSE;
+        }
+
         if (! opj_tcd_decode_tile(      p_j2k->m_tcd,
                                                                 l_tcp->m_data,
                                                                 l_tcp->m_data_size,
@@ -9075,6 +9082,15 @@ OPJ_BOOL opj_j2k_set_decoded_resolution_factor(opj_j2k_t *p_j2k,
         return OPJ_FALSE;
 }
 
+OPJ_BOOL opj_j2k_set_cancel_flag(opj_j2k_t *p_j2k,
+                                 volatile OPJ_INT32 *p_cancel,
+                                 opj_event_mgr_t * p_manager)
+{
+        (void)p_manager;
+        p_j2k->m_specific_param.m_decoder.m_cancel = p_cancel;
+        return OPJ_TRUE;
+}
+
 OPJ_BOOL opj_j2k_encode(opj_j2k_t * p_j2k,
                         opj_stream_private_t *p_stream,
                         opj_event_mgr_t * p_manager )
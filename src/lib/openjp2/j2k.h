@@ -478,6 +478,9 @@ typedef struct opj_j2k_dec
 	OPJ_UINT32 m_discard_tiles		: 1;
 	OPJ_UINT32 m_skip_data			: 1;
 
+	/** set to non zero by another thread to stop decoding, may be NULL */
+	volatile OPJ_INT32 *m_cancel;
+
 } opj_j2k_dec_t;
 
 typedef struct opj_j2k_enc
@@ -785,6 +788,18 @@ OPJ_BOOL opj_j2k_set_decoded_resolution_factor(opj_j2k_t *p_j2k,
                                                OPJ_UINT32 res_factor,
                                                opj_event_mgr_t * p_manager);
 
+/**
+ * Sets the flag stopping the decode, before the next tile or precinct, once
+ * another thread sets it to non zero.
+ *
+ * @param p_j2k		the jpeg2000 codec.
+ * @param p_cancel	the flag, NULL to decode to the end.
+ * @param p_manager	the user event manager.
+ */
+OPJ_BOOL opj_j2k_set_cancel_flag(opj_j2k_t *p_j2k,
+                                 volatile OPJ_INT32 *p_cancel,
+                                 opj_event_mgr_t * p_manager);
+
 
 /**
  * Writes a tile.
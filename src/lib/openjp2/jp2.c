@@ -2441,6 +2441,13 @@ OPJ_BOOL opj_jp2_set_decoded_resolution_factor(opj_jp2_t *p_jp2,
 	return opj_j2k_set_decoded_resolution_factor(p_jp2->j2k, res_factor, p_manager);
 }
 
+OPJ_BOOL opj_jp2_set_cancel_flag(opj_jp2_t *p_jp2,
+                                 volatile OPJ_INT32 *p_cancel,
+                                 opj_event_mgr_t * p_manager)
+{
+	return opj_j2k_set_cancel_flag(p_jp2->j2k, p_cancel, p_manager);
+}
+
 /* JPIP specific */
 
 #ifdef USE_JPIP
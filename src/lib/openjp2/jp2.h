@@ -451,6 +451,13 @@ OPJ_BOOL opj_jp2_set_decoded_resolution_factor(opj_jp2_t *p_jp2,
                                                OPJ_UINT32 res_factor, 
                                                opj_event_mgr_t * p_manager);
 
+/**
+ * Sets the flag stopping the decode once another thread sets it to non zero.
+ */
+OPJ_BOOL opj_jp2_set_cancel_flag(opj_jp2_t *p_jp2,
+                                 volatile OPJ_INT32 *p_cancel,
+                                 opj_event_mgr_t * p_manager);
+
 
 /* TODO MSD: clean these 3 functions */
 /**
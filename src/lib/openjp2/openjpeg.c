@@ -91,6 +91,11 @@ typedef struct opj_decompression
                                                     OPJ_UINT32 res_factor, 
                                                     opj_event_mgr_t * p_manager);
 
+	/** Set the flag cancelling the decode */
+	OPJ_BOOL (*opj_set_cancel_flag) ( void * p_codec,
+                                      volatile OPJ_INT32 * p_cancel,
+                                      opj_event_mgr_t * p_manager);
+
 }opj_decompression_t;
 
 /**
@@ -247,9 +252,10 @@ static OPJ_SIZE_T opj_skip_from_buffer(OPJ_SIZE_T p_nb_bytes,
 static OPJ_BOOL opj_seek_from_buffer(OPJ_SIZE_T p_nb_bytes,
     opj_buffer_info_t * p_source_buffer)
 {
-    if(p_source_buffer->cur + p_nb_bytes < p_source_buffer->buf + p_source_buffer->len )
+    /* seek is absolute, like opj_seek_from_file */
+    if(p_nb_bytes <= p_source_buffer->len )
    {
-    p_source_buffer->cur += p_nb_bytes;
+    p_source_buffer->cur = p_source_buffer->buf + p_nb_bytes;
     return OPJ_TRUE;
    }
     p_source_buffer->cur = p_source_buffer->buf + p_source_buffer->len;
@@ -632,6 +638,11 @@ opj_codec_t* OPJ_CALLCONV opj_create_decompress(OPJ_CODEC_FORMAT p_format)
 									OPJ_UINT32 res_factor,
 									struct opj_event_mgr * p_manager)) opj_j2k_set_decoded_resolution_factor;
 
+			l_codec->m_codec_data.m_decompression.opj_set_cancel_flag = 
+                    (OPJ_BOOL (*) ( void * p_codec,
+									volatile OPJ_INT32 * p_cancel,
+									struct opj_event_mgr * p_manager)) opj_j2k_set_cancel_flag;
+
 			l_codec->m_codec = opj_j2k_create_decompress();
 
 			if (! l_codec->m_codec) {
@@ -708,6 +719,11 @@ opj_codec_t* OPJ_CALLCONV opj_create_decompress(OPJ_CODEC_FORMAT p_format)
 						    		OPJ_UINT32 res_factor,
 							    	opj_event_mgr_t * p_manager)) opj_jp2_set_decoded_resolution_factor;
 
+			l_codec->m_codec_data.m_decompression.opj_set_cancel_flag = 
+                    (OPJ_BOOL (*) ( void * p_codec,
+						    		volatile OPJ_INT32 * p_cancel,
+							    	opj_event_mgr_t * p_manager)) opj_jp2_set_cancel_flag;
+
 			l_codec->m_codec = opj_jp2_create(OPJ_TRUE);
 
 			if (! l_codec->m_codec) {
@@ -927,6 +943,20 @@ OPJ_BOOL OPJ_CALLCONV opj_set_decoded_resolution_factor(opj_codec_t *p_codec,
 	return OPJ_TRUE;
 }
 
+OPJ_BOOL OPJ_CALLCONV opj_set_decode_cancel_flag(opj_codec_t *p_codec,
+												 volatile OPJ_INT32 *p_cancel)
+{
+	opj_codec_private_t * l_codec = (opj_codec_private_t *) p_codec;
+
+	if ( !l_codec || !l_codec->is_decompressor ){
+		return OPJ_FALSE;
+	}
+
+	return l_codec->m_codec_data.m_decompression.opj_set_cancel_flag(l_codec->m_codec,
+																	 p_cancel,
+																	 &(l_codec->m_event_mgr) );
+}
+
 /* ---------------------------------------------------------------------- */
 /* COMPRESSION FUNCTIONS*/
 
@@ -1287,6 +1287,17 @@ OPJ_API OPJ_BOOL OPJ_CALLCONV opj_get_decoded_tile(	opj_codec_t *p_codec,
  */
 OPJ_API OPJ_BOOL OPJ_CALLCONV opj_set_decoded_resolution_factor(opj_codec_t *p_codec, OPJ_UINT32 res_factor);
 
+/**
+ * Sets a flag that stops the decode once another thread sets it to non zero.
+ * It is checked before each tile and each precinct: the decode call then
+ * fails, and the codec should not be used for decoding anymore.
+ * @param	p_codec			the jpeg2000 codec.
+ * @param	p_cancel		the flag, which must outlive the decode calls, or NULL
+ *
+ * @return					true if success, otherwise false
+ */
+OPJ_API OPJ_BOOL OPJ_CALLCONV opj_set_decode_cancel_flag(opj_codec_t *p_codec, volatile OPJ_INT32 *p_cancel);
+
 /**
  * Writes a tile with the given data.
  *
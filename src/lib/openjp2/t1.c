@@ -1252,7 +1252,8 @@ void opj_t1_destroy(opj_t1_t *p_t1)
 
 OPJ_BOOL opj_t1_decode_cblks(   opj_t1_t* t1,
                             opj_tcd_tilecomp_t* tilec,
-                            opj_tccp_t* tccp
+                            opj_tccp_t* tccp,
+                            volatile OPJ_INT32 *cancel
                             )
 {
 	OPJ_UINT32 resno, bandno, precno, cblkno;
@@ -1267,6 +1268,10 @@ OPJ_BOOL opj_t1_decode_cblks(   opj_t1_t* t1,
 			for (precno = 0; precno < res->pw * res->ph; ++precno) {
 				opj_tcd_precinct_t* precinct = &band->precincts[precno];
 
+				if (cancel && *cancel) {
+					return OPJ_FALSE;
+				}
+
 				for (cblkno = 0; cblkno < precinct->cw * precinct->ch; ++cblkno) {
 					opj_tcd_cblk_dec_t* cblk = &precinct->cblks.dec[cblkno];
 					OPJ_INT32* restrict datap;
@@ -129,10 +129,12 @@ Decode the code-blocks of a tile
 @param t1 T1 handle
 @param tilec The tile to decode
 @param tccp Tile coding parameters
+@param cancel Flag stopping the decode between precincts once non zero, may be NULL
 */
 OPJ_BOOL opj_t1_decode_cblks(   opj_t1_t* t1,
                                 opj_tcd_tilecomp_t* tilec,
-                                opj_tccp_t* tccp);
+                                opj_tccp_t* tccp,
+                                volatile OPJ_INT32 *cancel);
 
 
 
@@ -210,6 +210,8 @@ typedef struct opj_tcd
 	OPJ_UINT32 tcd_tileno;
 	/** tell if the tcd is a decoder. */
 	OPJ_UINT32 m_is_decoder : 1;
+	/** set to non zero by another thread to stop decoding, may be NULL */
+	volatile OPJ_INT32 *cancel;
 } opj_tcd_t;
 
 /** @name Exported functions */
@@ -47,6 +47,7 @@
 #include <dirent.h>
 #endif /* _WIN32 */
 #include "org_openJpeg_OpenJPEGJavaEncoder.h"
+#include "org_openJpeg_OpenJPEGJavaEncoderSession.h"
 
 #ifndef _WIN32
 #define stricmp strcasecmp
@@ -84,8 +85,15 @@ typedef struct callback_variables {
 	/** 'jclass' object used to call a Java method from the C */
 	jmethodID message_mid;
 	jmethodID error_mid;
+	/** messages above this level are dropped before any Java call, see LOG_* */
+	jint log_level;
+	/** if set, the messages wait in the ring until flush_log_messages */
+	jboolean log_buffered;
+	struct log_ring *ring;
 } callback_variables_t;
 
+extern void flush_log_messages(callback_variables_t *vars);
+
 typedef struct dircnt{
 	/** Buffer for holding images read from Directory*/
 	char *filename_buf;
@@ -1858,6 +1866,7 @@ JNIEXPORT jlong JNICALL Java_org_openJpeg_OpenJPEGJavaEncoder_internalEncodeImag
 	OPJ_BOOL encodeToFile = OPJ_FALSE;
 
 	memset(&buf_info, 0, sizeof(opj_buffer_info_t));
+	memset(&msgErrorCallback_vars, 0, sizeof(callback_variables_t));
 	
 	/* JNI reference to the calling class*/
 	cls = (*env)->GetObjectClass(env, obj);
@@ -1881,6 +1890,19 @@ JNIEXPORT jlong JNICALL Java_org_openJpeg_OpenJPEGJavaEncoder_internalEncodeImag
 	{
 		return -1;
 	}
+	/* level and buffering of the codec messages, see NativeLog */
+	fid = (*env)->GetFieldID(env, cls, "nativeLogLevel", "I");
+	if (fid == NULL)
+	{
+		return -1;
+	}
+	msgErrorCallback_vars.log_level = (*env)->GetIntField(env, obj, fid);
+	fid = (*env)->GetFieldID(env, cls, "nativeLogBuffered", "Z");
+	if (fid == NULL)
+	{
+		return -1;
+	}
+	msgErrorCallback_vars.log_buffered = (*env)->GetBooleanField(env, obj, fid);
 
 	arraySize = (*env)->GetArrayLength(env, javaParameters);
 	if((*env)->ExceptionOccurred(env))
@@ -2007,9 +2029,9 @@ JNIEXPORT jlong JNICALL Java_org_openJpeg_OpenJPEGJavaEncoder_internalEncodeImag
 	}
 		
 	/* catch events using our callbacks and give a local context */		
-	opj_set_info_handler(l_codec, info_callback,00);
-	opj_set_warning_handler(l_codec, warning_callback,00);
-	opj_set_error_handler(l_codec, error_callback,00);
+	opj_set_info_handler(l_codec, info_callback, &msgErrorCallback_vars);
+	opj_set_warning_handler(l_codec, warning_callback, &msgErrorCallback_vars);
+	opj_set_error_handler(l_codec, error_callback, &msgErrorCallback_vars);
 
     if( bUseTiles ) 
 	{
@@ -2023,6 +2045,7 @@ JNIEXPORT jlong JNICALL Java_org_openJpeg_OpenJPEGJavaEncoder_internalEncodeImag
 	if (! l_codec)
 	{
 		encode_cleanup(env,&jba, &jbBody, &image, &l_stream, &l_codec, &parameters, &img_fol);
+		flush_log_messages(&msgErrorCallback_vars);
 		return -1;
 	}
 
@@ -2050,6 +2073,7 @@ JNIEXPORT jlong JNICALL Java_org_openJpeg_OpenJPEGJavaEncoder_internalEncodeImag
 	if (! l_stream)
 	{
 		encode_cleanup(env, &jba, &jbBody, &image, &l_stream, &l_codec, &parameters, &img_fol);
+		flush_log_messages(&msgErrorCallback_vars);
 		return -1;
 	}
 
@@ -2074,6 +2098,7 @@ JNIEXPORT jlong JNICALL Java_org_openJpeg_OpenJPEGJavaEncoder_internalEncodeImag
           fprintf(stderr, "ERROR -> test_tile_encoder: failed to write the tile %d!\n",i);
 		  opj_free(l_data); 
           encode_cleanup(env, &jba, &jbBody, &image, &l_stream, &l_codec, &parameters, &img_fol);
+          flush_log_messages(&msgErrorCallback_vars);
           return -1;
         }
       }
@@ -2099,6 +2124,7 @@ JNIEXPORT jlong JNICALL Java_org_openJpeg_OpenJPEGJavaEncoder_internalEncodeImag
 	{
 		fprintf(stderr, "failed to encode image\n");
 		encode_cleanup(env, &jba, &jbBody, &image, &l_stream, &l_codec, &parameters, &img_fol);
+		flush_log_messages(&msgErrorCallback_vars);
 		return -1;
 	}
 
@@ -2108,6 +2134,286 @@ JNIEXPORT jlong JNICALL Java_org_openJpeg_OpenJPEGJavaEncoder_internalEncodeImag
 		fprintf(stderr,"Generated compressed buffer \n");
 	
 	encode_cleanup(env, &jba, &jbBody, &image, &l_stream, &l_codec, &parameters, &img_fol);
+	flush_log_messages(&msgErrorCallback_vars);
 	return buf_info.len;
 }
 
+
+/* -------------------------------------------------------------------------- 
+   ------------ Tile by tile encode sessions ---------------------------------*/
+
+/**
+state of an encode fed one tile at a time: the codec, the file it writes and the
+image header, whose components hold no pixels
+*/
+typedef struct encode_session
+{
+	opj_codec_t *codec;
+	opj_stream_t *stream;
+	opj_image_t *image;
+	/** Java object receiving the messages of the current call */
+	jobject logger;
+	callback_variables_t msg_vars;
+} encode_session_t;
+
+static void destroy_encode_session(encode_session_t *session)
+{
+	if (session->codec)
+		opj_destroy_codec(session->codec);
+	if (session->stream)
+		opj_stream_destroy_v3(session->stream);
+	if (session->image)
+		opj_image_destroy(session->image);
+	if (session->msg_vars.ring)
+		opj_free(session->msg_vars.ring);
+	opj_free(session);
+}
+
+/**
+points the message callbacks of the session at the Java encoder of the current call
+*/
+static OPJ_BOOL attach_encoder_logger(JNIEnv *env, encode_session_t *session, jobject logger)
+{
+	jclass cls;
+	jfieldID fid;
+
+	session->logger = logger;
+	session->msg_vars.env = env;
+	session->msg_vars.jobj = &session->logger;
+
+	cls = (*env)->GetObjectClass(env, logger);
+	if (cls == 0)
+		return OPJ_FALSE;
+	session->msg_vars.message_mid = (*env)->GetMethodID(env, cls, "logMessage", "(Ljava/lang/String;)V");
+	if (session->msg_vars.message_mid == NULL)
+		return OPJ_FALSE;
+	session->msg_vars.error_mid = (*env)->GetMethodID(env, cls, "logError", "(Ljava/lang/String;)V");
+	if (session->msg_vars.error_mid == NULL)
+		return OPJ_FALSE;
+	fid = (*env)->GetFieldID(env, cls, "nativeLogLevel", "I");
+	if (fid == NULL)
+		return OPJ_FALSE;
+	session->msg_vars.log_level = (*env)->GetIntField(env, logger, fid);
+	fid = (*env)->GetFieldID(env, cls, "nativeLogBuffered", "Z");
+	if (fid == NULL)
+		return OPJ_FALSE;
+	session->msg_vars.log_buffered = (*env)->GetBooleanField(env, logger, fid);
+	(*env)->DeleteLocalRef(env, cls);
+	return OPJ_TRUE;
+}
+
+/**
+parses the arguments built by OpenJPEGJavaEncoder, as the one shot encode does
+*/
+static OPJ_BOOL parse_java_parameters(JNIEnv *env, jobjectArray javaParameters, opj_cparameters_t *parameters,
+	img_fol_t *img_fol)
+{
+	const char **argv;
+	jobject argument;
+	int argc, i, rc;
+
+	argc = (javaParameters != NULL ? (int)(*env)->GetArrayLength(env, javaParameters) : 0) + 1;
+	argv = (const char**)opj_calloc((size_t)argc, sizeof(char*));
+	if (argv == NULL)
+		return OPJ_FALSE;
+	argv[0] = "ProgramName.exe";	/* The program name: useless*/
+	for (i = 1; i < argc; i++)
+	{
+		argument = (*env)->GetObjectArrayElement(env, javaParameters, i - 1);
+		if (argument)
+		{
+			argv[i] = (*env)->GetStringUTFChars(env, (jstring)argument, NULL);
+			(*env)->DeleteLocalRef(env, argument);
+		}
+	}
+
+	rc = (*env)->ExceptionCheck(env) ? 1 : parse_cmdline_encoder(argc, argv, parameters, img_fol);
+
+	for (i = 1; i < argc; i++)
+	{
+		if (argv[i] == NULL)
+			continue;
+		argument = (*env)->GetObjectArrayElement(env, javaParameters, i - 1);
+		(*env)->ReleaseStringUTFChars(env, (jstring)argument, argv[i]);
+		(*env)->DeleteLocalRef(env, argument);
+	}
+	opj_free((void*)argv);
+	return rc == 1 ? OPJ_FALSE : OPJ_TRUE;
+}
+
+/**
+opens the output file and writes the main header of a codestream whose tiles are given
+one by one, in raster order, by internalWriteTile
+*/
+JNIEXPORT jlong JNICALL Java_org_openJpeg_OpenJPEGJavaEncoderSession_internalOpen(JNIEnv *env, jobject obj,
+	jobject encoder, jobjectArray javaParameters, jstring fileName, jboolean jp2, jint width, jint height,
+	jint numComponents, jint bitsPerSample, jboolean sgnd, jint tileWidth, jint tileHeight)
+{
+	opj_cparameters_t parameters;
+	img_fol_t img_fol;
+	opj_image_cmptparm_t *cmptparm = NULL;
+	encode_session_t *session;
+	const char *name;
+	int compno;
+	OPJ_BOOL fails = OPJ_TRUE;
+
+	if (width <= 0 || height <= 0 || numComponents <= 0 || bitsPerSample <= 0 || bitsPerSample > 16
+		|| tileWidth <= 0 || tileHeight <= 0 || fileName == NULL)
+		return 0;
+
+	session = (encode_session_t*)opj_calloc(1, sizeof(encode_session_t));
+	if (session == NULL)
+	{
+		fprintf(stderr,"%s:%d: MEMORY OUT\n",__FILE__,__LINE__);
+		return 0;
+	}
+	opj_set_default_encoder_parameters(&parameters);
+	parameters.cod_format = J2K_CFMT;
+	memset(&img_fol, 0, sizeof(img_fol_t));
+
+	while (1)
+	{
+		if (!attach_encoder_logger(env, session, encoder))
+			break;
+		if (!parse_java_parameters(env, javaParameters, &parameters, &img_fol))
+			break;
+
+		/* the codestream tiles are the ones the Java side hands over */
+		parameters.tile_size_on = OPJ_TRUE;
+		parameters.cp_tx0 = 0;
+		parameters.cp_ty0 = 0;
+		parameters.cp_tdx = tileWidth;
+		parameters.cp_tdy = tileHeight;
+		/* each decomposition halves the tile: the codec refuses more than the tile size allows */
+		while (parameters.numresolution > 1 && (tileWidth < (1 << parameters.numresolution)
+			|| tileHeight < (1 << parameters.numresolution)))
+			parameters.numresolution--;
+		parameters.tcp_mct = numComponents >= 3 ? 1 : 0;
+
+		cmptparm = (opj_image_cmptparm_t*)opj_calloc((size_t)numComponents, sizeof(opj_image_cmptparm_t));
+		if (cmptparm == NULL)
+			break;
+		for (compno = 0; compno < numComponents; compno++)
+		{
+			cmptparm[compno].dx = 1;
+			cmptparm[compno].dy = 1;
+			cmptparm[compno].w = (OPJ_UINT32)width;
+			cmptparm[compno].h = (OPJ_UINT32)height;
+			cmptparm[compno].prec = (OPJ_UINT32)bitsPerSample;
+			cmptparm[compno].bpp = (OPJ_UINT32)bitsPerSample;
+			cmptparm[compno].sgnd = sgnd ? 1 : 0;
+		}
+		/* the header only: the pixels come with each tile */
+		session->image = opj_image_tile_create((OPJ_UINT32)numComponents, cmptparm,
+			numComponents >= 3 ? OPJ_CLRSPC_SRGB : OPJ_CLRSPC_GRAY);
+		if (session->image == NULL)
+			break;
+		session->image->x0 = 0;
+		session->image->y0 = 0;
+		session->image->x1 = (OPJ_UINT32)width;
+		session->image->y1 = (OPJ_UINT32)height;
+
+		session->codec = opj_create_compress(jp2 ? OPJ_CODEC_JP2 : OPJ_CODEC_J2K);
+		if (session->codec == NULL)
+			break;
+		opj_set_error_handler(session->codec, error_callback, &session->msg_vars);
+		opj_set_warning_handler(session->codec, warning_callback, &session->msg_vars);
+		opj_set_info_handler(session->codec, info_callback, &session->msg_vars);
+		opj_setup_encoder(session->codec, &parameters, session->image);
+
+		name = (*env)->GetStringUTFChars(env, fileName, NULL);
+		if (name == NULL)
+			break;
+		session->stream = opj_stream_create_default_file_stream_v3(name, OPJ_FALSE);
+		(*env)->ReleaseStringUTFChars(env, fileName, name);
+		if (session->stream == NULL)
+		{
+			fprintf(stderr,"%s:%d: unable to create the output file\n",__FILE__,__LINE__);
+			break;
+		}
+		if (!opj_start_compress(session->codec, session->image, session->stream))
+		{
+			fprintf(stderr, "failed to encode image: opj_start_compress\n");
+			break;
+		}
+		fails = OPJ_FALSE;
+		break;
+	}
+	if (cmptparm)
+		opj_free(cmptparm);
+	/* both are copied by opj_setup_encoder */
+	if (parameters.cp_comment)
+		opj_free(parameters.cp_comment);
+	if (parameters.cp_matrice)
+		opj_free(parameters.cp_matrice);
+	if (img_fol.rates)
+		opj_free(img_fol.rates);
+	flush_log_messages(&session->msg_vars);
+	if (fails)
+	{
+		destroy_encode_session(session);
+		return 0;
+	}
+	return (jlong)(intptr_t)session;
+}
+
+/**
+encodes one tile: the direct buffer holds the samples of each component, one plane
+after the other, each tile width x tile height samples of the sample size of the
+precision (1 or 2 bytes), in native byte order
+*/
+JNIEXPORT jboolean JNICALL Java_org_openJpeg_OpenJPEGJavaEncoderSession_internalWriteTile(JNIEnv *env, jobject obj,
+	jlong handle, jobject encoder, jint tileIndex, jobject data, jint length)
+{
+	encode_session_t *session = (encode_session_t*)(intptr_t)handle;
+	OPJ_BYTE *samples;
+	OPJ_BOOL written;
+
+	if (session == NULL || session->codec == NULL || tileIndex < 0 || length <= 0)
+		return JNI_FALSE;
+	samples = (OPJ_BYTE*)(*env)->GetDirectBufferAddress(env, data);
+	if (samples == NULL || (*env)->GetDirectBufferCapacity(env, data) < (jlong)length)
+		return JNI_FALSE;
+	if (!attach_encoder_logger(env, session, encoder))
+		return JNI_FALSE;
+
+	written = opj_write_tile(session->codec, (OPJ_UINT32)tileIndex, samples, (OPJ_UINT32)length, session->stream);
+	if (!written)
+		fprintf(stderr, "failed to encode image: opj_write_tile %d\n", tileIndex);
+	flush_log_messages(&session->msg_vars);
+	return written ? JNI_TRUE : JNI_FALSE;
+}
+
+/**
+writes the end of the codestream once every tile was written, and closes the file
+*/
+JNIEXPORT jboolean JNICALL Java_org_openJpeg_OpenJPEGJavaEncoderSession_internalFinish(JNIEnv *env, jobject obj,
+	jlong handle, jobject encoder)
+{
+	encode_session_t *session = (encode_session_t*)(intptr_t)handle;
+	OPJ_BOOL ended;
+
+	if (session == NULL || session->codec == NULL)
+		return JNI_FALSE;
+	if (!attach_encoder_logger(env, session, encoder))
+		return JNI_FALSE;
+
+	ended = opj_end_compress(session->codec, session->stream);
+	if (!ended)
+		fprintf(stderr, "failed to encode image: opj_end_compress\n");
+	/* the file is complete once the stream is flushed and closed */
+	opj_stream_destroy_v3(session->stream);
+	session->stream = NULL;
+	opj_destroy_codec(session->codec);
+	session->codec = NULL;
+	flush_log_messages(&session->msg_vars);
+	return ended ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT void JNICALL Java_org_openJpeg_OpenJPEGJavaEncoderSession_internalClose(JNIEnv *env, jobject obj, jlong handle)
+{
+	encode_session_t *session = (encode_session_t*)(intptr_t)handle;
+
+	if (session)
+		destroy_encode_session(session);
+}
@@ -43,6 +43,7 @@
 #include "opj_malloc.h"
 
 #include "org_openJpeg_OpenJPEGJavaDecoder.h"
+#include "org_openJpeg_OpenJPEGJavaDecoderSession.h"
 
 
 #ifdef _WIN32
@@ -71,6 +72,11 @@ typedef struct callback_variables
 	/** 'jclass' object used to call a Java method from the C */
 	jmethodID message_mid;
 	jmethodID error_mid;
+	/** messages above this level are dropped before any Java call, see LOG_* */
+	jint log_level;
+	/** if set, the messages wait in the ring until flush_log_messages */
+	jboolean log_buffered;
+	struct log_ring *ring;
 } callback_variables_t;
 
 typedef struct decode_info
@@ -82,12 +88,6 @@ typedef struct decode_info
 	opj_codec_t *codec;
 	opj_stream_t *stream;
 	opj_image_t *image;
-	jbyteArray	jba;
-	jbyte		*jbBody;
-	jintArray	jia;
-	jint		*jiBody;
-	jshortArray jsa; 
-	jshort      *jsBody;
 	jbyteArray	jbaCompressed;
 	jbyte		*jbBodyCompressed;
 	jlongArray segmentPositions;
@@ -98,6 +98,8 @@ typedef struct decode_info
 	OPJ_SIZE_T *opjSegmentLengths;
 
 	OPJ_BOOL   deleteImage;
+	/** messages of the codec, sent to Java once it is destroyed */
+	callback_variables_t *msg_vars;
 
 } decode_info_t;
 
@@ -156,22 +158,39 @@ int get_file_format(char *filename) {
 
 	return -1;
 }
+/* levels of the codec messages, as in org.openJpeg.NativeLog */
+#define LOG_OFF		0
+#define LOG_ERROR	1
+#define LOG_WARNING	2
+#define LOG_INFO	3
+
+/* a buffered call keeps its latest LOG_RING_SIZE messages, cut to LOG_MESSAGE_SIZE - 1 bytes */
+#define LOG_RING_SIZE		64
+#define LOG_MESSAGE_SIZE	256
+
+typedef struct log_ring
+{
+	OPJ_UINT32 first, count, dropped;
+	jint levels[LOG_RING_SIZE];
+	char messages[LOG_RING_SIZE][LOG_MESSAGE_SIZE];
+} log_ring_t;
+
 /**
-error callback returning the message to Java andexpecting a callback_variables_t client object
+sends one message to the logError or logMessage method of the Java object of the call
 */
-void error_callback(const char *msg, void *client_data) {
+static void send_log_message(callback_variables_t *vars, jint level, const char *msg)
+{
+	JNIEnv *env = vars->env;
 	jstring jbuffer;
-	callback_variables_t* vars = NULL;
-	JNIEnv *env = NULL;
 
-	if (!client_data)
-		return;
-	vars = (callback_variables_t*) client_data;
-	env = vars->env;
-	
-	jbuffer = (*env)->NewStringUTF(env, msg);
 	(*env)->ExceptionClear(env);
-	(*env)->CallVoidMethod(env, *(vars->jobj), vars->error_mid, jbuffer);
+	jbuffer = (*env)->NewStringUTF(env, msg);
+	if (jbuffer == NULL)
+	{
+		(*env)->ExceptionClear(env);
+		return;
+	}
+	(*env)->CallVoidMethod(env, *(vars->jobj), level == LOG_ERROR ? vars->error_mid : vars->message_mid, jbuffer);
 
 	if ((*env)->ExceptionOccurred(env)) {
 		fprintf(stderr,"C: Exception during call back method\n");
@@ -180,53 +199,99 @@ void error_callback(const char *msg, void *client_data) {
 	}
 	(*env)->DeleteLocalRef(env, jbuffer);
 }
+
 /**
-warning callback returning the message to Java andexpecting a callback_variables_t client object
+drops the message if its level is above the threshold of the call, keeps it in the
+ring if the call is buffered, and sends it to Java right away otherwise
 */
-void warning_callback(const char *msg, void *client_data) {
-	jstring jbuffer;
-	callback_variables_t* vars = NULL;
-	JNIEnv *env = NULL;
+static void java_log(callback_variables_t *vars, jint level, const char *msg)
+{
+	log_ring_t *ring;
+	OPJ_UINT32 slot;
 
-	if (!client_data)
+	if (vars == NULL || level > vars->log_level)
+		return;
+	if (!vars->log_buffered)
+	{
+		send_log_message(vars, level, msg);
 		return;
-	vars = (callback_variables_t*) client_data;
-	env = vars->env;
+	}
+	if (vars->ring == NULL)
+	{
+		vars->ring = (log_ring_t*)opj_malloc(sizeof(log_ring_t));
+		if (vars->ring == NULL)
+		{
+			send_log_message(vars, level, msg);
+			return;
+		}
+		vars->ring->first = vars->ring->count = vars->ring->dropped = 0;
+	}
+	ring = vars->ring;
+	if (ring->count == LOG_RING_SIZE)
+	{
+		/* the oldest message makes room */
+		ring->first = (ring->first + 1) % LOG_RING_SIZE;
+		ring->dropped++;
+	}
+	else
+		ring->count++;
+	slot = (ring->first + ring->count - 1) % LOG_RING_SIZE;
+	ring->levels[slot] = level;
+	strncpy(ring->messages[slot], msg, LOG_MESSAGE_SIZE - 1);
+	ring->messages[slot][LOG_MESSAGE_SIZE - 1] = '\0';
+}
 
-	jbuffer = (*env)->NewStringUTF(env, msg);
-	(*env)->ExceptionClear(env);
-	(*env)->CallVoidMethod(env, *(vars->jobj), vars->message_mid, jbuffer);
+/**
+sends the messages a buffered call kept to Java, oldest first, then releases them.
+Called once the codec is done; a pending Java exception is thrown again afterwards.
+*/
+void flush_log_messages(callback_variables_t *vars)
+{
+	log_ring_t *ring = vars->ring;
+	JNIEnv *env = vars->env;
+	jthrowable pending;
+	OPJ_UINT32 i;
+	char dropped[64];
 
-	if ((*env)->ExceptionOccurred(env)) {
-		fprintf(stderr,"C: Exception during call back method\n");
-		(*env)->ExceptionDescribe(env);
-		(*env)->ExceptionClear(env);
+	if (ring == NULL)
+		return;
+	vars->ring = NULL;
+	pending = (*env)->ExceptionOccurred(env);
+	if (ring->dropped)
+	{
+		sprintf(dropped, "%u earlier messages of the codec were dropped", ring->dropped);
+		send_log_message(vars, LOG_WARNING, dropped);
 	}
-	(*env)->DeleteLocalRef(env, jbuffer);
+	for (i = 0; i < ring->count; i++)
+	{
+		OPJ_UINT32 slot = (ring->first + i) % LOG_RING_SIZE;
+		send_log_message(vars, ring->levels[slot], ring->messages[slot]);
+	}
+	opj_free(ring);
+	if (pending)
+	{
+		(*env)->Throw(env, pending);
+		(*env)->DeleteLocalRef(env, pending);
+	}
+}
+
+/**
+error callback returning the message to Java andexpecting a callback_variables_t client object
+*/
+void error_callback(const char *msg, void *client_data) {
+	java_log((callback_variables_t*) client_data, LOG_ERROR, msg);
+}
+/**
+warning callback returning the message to Java andexpecting a callback_variables_t client object
+*/
+void warning_callback(const char *msg, void *client_data) {
+	java_log((callback_variables_t*) client_data, LOG_WARNING, msg);
 }
 /**
 information callback returning the message to Java andexpecting a callback_variables_t client object
 */
 void info_callback(const char *msg, void *client_data) {
-	jstring jbuffer;
-	callback_variables_t* vars = NULL;
-	JNIEnv *env = NULL;
-
-	if (!client_data)
-		return;
-	vars = (callback_variables_t*) client_data;
-	env = vars->env;
-
-	jbuffer = (*env)->NewStringUTF(env, msg);
-	(*env)->ExceptionClear(env);
-	(*env)->CallVoidMethod(env, *(vars->jobj), vars->message_mid, jbuffer);
-
-	if ((*env)->ExceptionOccurred(env)) {
-		fprintf(stderr,"C: Exception during call back method\n");
-		(*env)->ExceptionDescribe(env);
-		(*env)->ExceptionClear(env);
-	}
-	(*env)->DeleteLocalRef(env, jbuffer);
+	java_log((callback_variables_t*) client_data, LOG_INFO, msg);
 }
 
 static int infile_format(FILE *reader, const char *fname)
@@ -289,6 +354,156 @@ static int buffer_format(opj_buffer_info_t* buf_info)
 	return magic_format;
 }/*  buffer_format() */
 
+/**
+field and method IDs of org.openJpeg.OpenJPEGJavaDecoder, looked up once by initIDs.
+An ID stays NULL until then, and is looked up on each call instead.
+*/
+typedef struct decoder_ids
+{
+	jfieldID compressed_buffer, compressed_stream, segment_positions, segment_lengths;
+	jfieldID max_quality_layers, tile_in, reduction_in, max_tiles, max_reduction;
+	jfieldID user_changed_tile, user_changed_reduction, user_changed_area;
+	jfieldID area_x0, area_y0, area_x1, area_y1;
+	jfieldID width, height, bits_per_sample, samples_per_pixel;
+	jfieldID image8, image16, image24, destination_offset, destination_stride;
+	jfieldID planar_output, planes, cancel_flag, tile_listener, log_level, log_buffered;
+	jmethodID log_message, log_error, alloc8, alloc16, alloc24, alloc_planes, tile_decoded;
+} decoder_ids_t;
+
+static decoder_ids_t decoder_ids;
+
+#define DECODER_FIELD(env, klass, id, name, sig) \
+	(decoder_ids.id != NULL ? decoder_ids.id : (*(env))->GetFieldID(env, klass, name, sig))
+#define DECODER_METHOD(env, klass, id, name, sig) \
+	(decoder_ids.id != NULL ? decoder_ids.id : (*(env))->GetMethodID(env, klass, name, sig))
+
+JNIEXPORT void JNICALL Java_org_openJpeg_OpenJPEGJavaDecoder_initIDs(JNIEnv *env, jclass klass)
+{
+	decoder_ids_t ids;
+
+#define LOOKUP_FIELD(id, name, sig) \
+	if ((ids.id = (*env)->GetFieldID(env, klass, name, sig)) == NULL) return
+#define LOOKUP_METHOD(id, name, sig) \
+	if ((ids.id = (*env)->GetMethodID(env, klass, name, sig)) == NULL) return
+
+	LOOKUP_FIELD(compressed_buffer, "compressedBuffer", "Ljava/nio/ByteBuffer;");
+	LOOKUP_FIELD(compressed_stream, "compressedStream", "[B");
+	LOOKUP_FIELD(segment_positions, "segmentPositions", "[J");
+	LOOKUP_FIELD(segment_lengths, "segmentLengths", "[J");
+	LOOKUP_FIELD(max_quality_layers, "maxQualityLayers", "I");
+	LOOKUP_FIELD(tile_in, "tileIn", "I");
+	LOOKUP_FIELD(reduction_in, "reductionIn", "I");
+	LOOKUP_FIELD(max_tiles, "maxTiles", "I");
+	LOOKUP_FIELD(max_reduction, "maxReduction", "I");
+	LOOKUP_FIELD(user_changed_tile, "userChangedTile", "I");
+	LOOKUP_FIELD(user_changed_reduction, "userChangedReduction", "I");
+	LOOKUP_FIELD(user_changed_area, "userChangedArea", "I");
+	LOOKUP_FIELD(area_x0, "areaX0", "I");
+	LOOKUP_FIELD(area_y0, "areaY0", "I");
+	LOOKUP_FIELD(area_x1, "areaX1", "I");
+	LOOKUP_FIELD(area_y1, "areaY1", "I");
+	LOOKUP_FIELD(width, "width", "I");
+	LOOKUP_FIELD(height, "height", "I");
+	LOOKUP_FIELD(bits_per_sample, "bitsPerSample", "I");
+	LOOKUP_FIELD(samples_per_pixel, "samplesPerPixel", "I");
+	LOOKUP_FIELD(image8, "image8", "[B");
+	LOOKUP_FIELD(image16, "image16", "[S");
+	LOOKUP_FIELD(image24, "image24", "[I");
+	LOOKUP_FIELD(destination_offset, "destinationOffset", "I");
+	LOOKUP_FIELD(destination_stride, "destinationStride", "I");
+	LOOKUP_FIELD(planar_output, "planarOutput", "Z");
+	LOOKUP_FIELD(planes, "planes", "Ljava/lang/Object;");
+	LOOKUP_FIELD(cancel_flag, "cancelFlag", "Ljava/nio/ByteBuffer;");
+	LOOKUP_FIELD(tile_listener, "tileListener", "Lorg/openJpeg/OpenJPEGJavaDecoder$TileListener;");
+	LOOKUP_FIELD(log_level, "nativeLogLevel", "I");
+	LOOKUP_FIELD(log_buffered, "nativeLogBuffered", "Z");
+	LOOKUP_METHOD(log_message, "logMessage", "(Ljava/lang/String;)V");
+	LOOKUP_METHOD(log_error, "logError", "(Ljava/lang/String;)V");
+	LOOKUP_METHOD(alloc8, "alloc8", "()V");
+	LOOKUP_METHOD(alloc16, "alloc16", "()V");
+	LOOKUP_METHOD(alloc24, "alloc24", "()V");
+	LOOKUP_METHOD(alloc_planes, "allocPlanes", "(I)V");
+	LOOKUP_METHOD(tile_decoded, "tileDecoded", "(IIIIII)V");
+
+#undef LOOKUP_FIELD
+#undef LOOKUP_METHOD
+
+	/* IDs never change once the class is loaded: concurrent readers see either NULL or the ID */
+	decoder_ids = ids;
+}
+
+/**
+points buf_info at the memory of the direct ByteBuffer held in the compressedBuffer
+field, if any. The codestream is read in place: nothing is copied or pinned.
+*/
+static OPJ_BOOL direct_buffer_info(JNIEnv *env, jobject obj, jclass klass, opj_buffer_info_t* buf_info)
+{
+	jfieldID fid;
+	jobject buffer;
+
+	fid = DECODER_FIELD(env, klass, compressed_buffer, "compressedBuffer", "Ljava/nio/ByteBuffer;");
+	if ((*env)->ExceptionOccurred(env))
+		return OPJ_FALSE;
+
+	buffer = (*env)->GetObjectField(env, obj, fid);
+	if (buffer == NULL)
+		return OPJ_FALSE;
+
+	buf_info->buf = (OPJ_BYTE*)(*env)->GetDirectBufferAddress(env, buffer);
+	buf_info->len = (OPJ_SIZE_T)(*env)->GetDirectBufferCapacity(env, buffer);
+	(*env)->DeleteLocalRef(env, buffer);
+
+	if (buf_info->buf == NULL || buf_info->len == 0 || buf_info->len == (OPJ_SIZE_T)-1)
+	{
+		memset(buf_info, 0, sizeof(opj_buffer_info_t));
+		return OPJ_FALSE;
+	}
+	buf_info->cur = buf_info->buf;
+	return OPJ_TRUE;
+}
+
+/**
+returns the int the decoder sets to cancel its decodes: the memory of its cancelFlag
+direct buffer, which lives as long as the decoder. NULL if there is none.
+*/
+static volatile OPJ_INT32* cancel_flag(JNIEnv *env, jobject obj, jclass klass)
+{
+	jfieldID fid;
+	jobject buffer;
+	volatile OPJ_INT32 *flag;
+
+	fid = DECODER_FIELD(env, klass, cancel_flag, "cancelFlag", "Ljava/nio/ByteBuffer;");
+	if ((*env)->ExceptionCheck(env))
+	{
+		(*env)->ExceptionClear(env);
+		return NULL;
+	}
+	buffer = (*env)->GetObjectField(env, obj, fid);
+	if (buffer == NULL)
+		return NULL;
+	flag = (volatile OPJ_INT32*)(*env)->GetDirectBufferAddress(env, buffer);
+	(*env)->DeleteLocalRef(env, buffer);
+	return flag;
+}
+
+/**
+reads the message level and buffering the Java decoder asks for
+*/
+static OPJ_BOOL read_log_options(JNIEnv *env, jobject obj, jclass klass, callback_variables_t *vars)
+{
+	jfieldID fid;
+
+	fid = DECODER_FIELD(env, klass, log_level, "nativeLogLevel", "I");
+	if (fid == NULL)
+		return OPJ_FALSE;
+	vars->log_level = (*env)->GetIntField(env, obj, fid);
+	fid = DECODER_FIELD(env, klass, log_buffered, "nativeLogBuffered", "Z");
+	if (fid == NULL)
+		return OPJ_FALSE;
+	vars->log_buffered = (*env)->GetBooleanField(env, obj, fid);
+	return OPJ_TRUE;
+}
+
 static const char *clr_space(OPJ_COLOR_SPACE i)
 {
 	if(i == OPJ_CLRSPC_SRGB) return "OPJ_CLRSPC_SRGB";
@@ -380,6 +595,12 @@ static void release(decode_info_t *decodeInfo)
 		opj_destroy_codec(decodeInfo->codec);
 		decodeInfo->codec = NULL;
 	}
+
+	if (decodeInfo->msg_vars)
+	{
+		flush_log_messages(decodeInfo->msg_vars);
+		decodeInfo->msg_vars = NULL;
+	}
 	
 	if(decodeInfo->stream)
 	{
@@ -394,25 +615,6 @@ static void release(decode_info_t *decodeInfo)
 
 	}
 		
-	if (decodeInfo->jba  && decodeInfo->jbBody )
-	{
-		(*env)->ReleaseByteArrayElements(decodeInfo->env, decodeInfo->jba, decodeInfo->jbBody, 0);
-		decodeInfo->jba =NULL;
-		decodeInfo->jbBody = NULL;
-	}
-	if (decodeInfo->jsa && decodeInfo->jsBody )
-	{
-		(*env)->ReleaseShortArrayElements(env, decodeInfo->jsa, decodeInfo->jsBody, 0);
-		decodeInfo->jsa =NULL;
-		decodeInfo->jsBody = NULL;
-	}
-	if (decodeInfo->jia && decodeInfo->jiBody)
-	{
-		(*env)->ReleaseIntArrayElements(env, decodeInfo->jia, decodeInfo->jiBody, 0);
-		decodeInfo->jia =NULL;
-		decodeInfo->jiBody = NULL;
-	}
-
 	if (decodeInfo->jbaCompressed &&  decodeInfo->jbBodyCompressed)
 	{
 		(*env)->ReleaseByteArrayElements(env, decodeInfo->jbaCompressed, decodeInfo->jbBodyCompressed, 0);
@@ -459,6 +661,438 @@ static OPJ_BOOL catchAndRelease(decode_info_t *decodeInfo)
 }
 
 
+/* Pixel layouts a decoded image is handed to Java in */
+#define OUTPUT_GRAY8	8	/* image8:  one unsigned byte per pixel */
+#define OUTPUT_GRAY16	16	/* image16: one short per pixel */
+#define OUTPUT_ARGB	24	/* image24: one packed ARGB int per pixel */
+#define OUTPUT_PLANAR	1	/* planes:  one array per component, samples as decoded */
+
+/* sample types of the planes, the values of java.awt.image.DataBuffer.TYPE_* */
+#define PLANES_BYTE	0
+#define PLANES_USHORT	1
+#define PLANES_SHORT	2
+#define PLANES_INT	3
+
+/**
+Java array receiving decoded pixels. The array is either allocated by the
+alloc8/alloc16/alloc24 callbacks, or is the caller's destination in which
+case destinationOffset and destinationStride place the pixels inside it.
+Rows are written with Set<Type>ArrayRegion so the array is never pinned.
+A planar raster holds one array per component instead, allocated by the
+allocPlanes callback, all placed by the same offset and stride.
+*/
+typedef struct java_raster
+{
+	int		kind;
+	jarray	array;
+	jint	offset;
+	jint	stride;
+	void	*row;
+	int		data_type;	/* PLANES_* of a planar raster */
+	int		numbands;
+	jarray	*bands;
+} java_raster_t;
+
+/**
+color conversions applied to a decoded image before it is handed to Java
+*/
+static void prepare_image(opj_image_t *image)
+{
+	if(image->color_space != OPJ_CLRSPC_SYCC
+		&& image->numcomps == 3
+		&& image->comps[0].dx == image->comps[0].dy
+		&& image->comps[1].dx != 1)
+		image->color_space = OPJ_CLRSPC_SYCC;
+	else
+		if(image->numcomps <= 2)
+			image->color_space = OPJ_CLRSPC_GRAY;
+
+	if(image->color_space == OPJ_CLRSPC_SYCC)
+	{
+		color_sycc_to_rgb(image);
+	}
+	if(image->icc_profile_buf)
+	{
+#if defined(HAVE_LIBLCMS1) || defined(HAVE_LIBLCMS2)
+		color_apply_icc_profile(image);
+#endif
+
+		opj_free(image->icc_profile_buf);
+		image->icc_profile_buf = NULL;
+		image->icc_profile_len = 0;
+	}
+}
+
+/**
+picks the Java pixel layout matching the components of the image
+*/
+static int output_kind(opj_image_t *image)
+{
+	OPJ_UINT32 i;
+
+	if ((image->numcomps >= 3
+		&& image->comps[0].dx == image->comps[1].dx
+		&& image->comps[1].dx == image->comps[2].dx
+		&& image->comps[0].dy == image->comps[1].dy
+		&& image->comps[1].dy == image->comps[2].dy
+		&& image->comps[0].prec == image->comps[1].prec
+		&& image->comps[1].prec == image->comps[2].prec
+		)/* RGB[A] */
+		||
+		(image->numcomps == 2
+		&& image->comps[0].dx == image->comps[1].dx
+		&& image->comps[0].dy == image->comps[1].dy
+		&& image->comps[0].prec == image->comps[1].prec
+		)
+		) /* GA */
+		return OUTPUT_ARGB;
+
+	if (image->numcomps != 1)
+	{
+		fputs(bar, stderr);
+		fprintf(stderr,"%s:%d:Can show only first component of image\n"
+			"  components(%d) prec(%d) color_space[%d](%s)\n"
+			"  RECT(%d,%d,%d,%d)\n",__FILE__,__LINE__,image->numcomps,
+			image->comps[0].prec,
+			image->color_space,clr_space(image->color_space),
+			image->x0,image->y0,image->x1,image->y1 );
+
+		for(i = 0; i < image->numcomps; ++i)
+		{
+			fprintf(stderr,"[%d]dx(%d) dy(%d) w(%d) h(%d) signed(%u)\n",i,
+				image->comps[i].dx ,image->comps[i].dy,
+				image->comps[i].w,image->comps[i].h,
+				image->comps[i].sgnd);
+		}
+		fputs(bar, stderr);
+	}
+	/* 1 component 8 or 16 bpp image
+	*/
+	return image->comps[0].prec <= 8 ? OUTPUT_GRAY8 : OUTPUT_GRAY16;
+}
+
+/**
+picks the narrowest sample type holding every component of the image
+*/
+static int planes_data_type(opj_image_t *image)
+{
+	OPJ_UINT32 i, prec = 0, unsigned_prec = 0;
+	OPJ_BOOL sgnd = OPJ_FALSE;
+
+	for (i = 0; i < image->numcomps; ++i)
+	{
+		prec = opj_uint_max(prec, image->comps[i].prec);
+		if (image->comps[i].sgnd)
+			sgnd = OPJ_TRUE;
+		else
+			unsigned_prec = opj_uint_max(unsigned_prec, image->comps[i].prec);
+	}
+	if (prec <= 8 && !sgnd)
+		return PLANES_BYTE;
+	if (prec <= 16 && !sgnd)
+		return PLANES_USHORT;
+	/* signed shorts leave 15 bits to the unsigned components */
+	if (prec <= 16 && unsigned_prec <= 15)
+		return PLANES_SHORT;
+	return PLANES_INT;
+}
+
+/**
+asks Java for the arrays of a planar raster, one per component
+*/
+static OPJ_BOOL open_java_planes(JNIEnv *env, jobject obj, jclass klass, opj_image_t *image, java_raster_t *raster)
+{
+	OPJ_UINT32 i;
+	jmethodID mid;
+	jfieldID fid;
+	jobjectArray planes;
+
+	for (i = 1; i < image->numcomps; ++i)
+	{
+		if (image->comps[i].w != image->comps[0].w || image->comps[i].h != image->comps[0].h)
+		{
+			fprintf(stderr,"%s:%d: planar output needs components of the same size\n",__FILE__,__LINE__);
+			return OPJ_FALSE;
+		}
+	}
+	raster->data_type = planes_data_type(image);
+
+	mid = DECODER_METHOD(env, klass, alloc_planes, "allocPlanes", "(I)V");
+	if ((*env)->ExceptionCheck(env))
+		return OPJ_FALSE;
+	(*env)->CallVoidMethod(env, obj, mid, (jint)raster->data_type);
+	if ((*env)->ExceptionCheck(env))
+		return OPJ_FALSE;
+
+	fid = DECODER_FIELD(env, klass, planes, "planes", "Ljava/lang/Object;");
+	if ((*env)->ExceptionCheck(env))
+		return OPJ_FALSE;
+	planes = (jobjectArray)(*env)->GetObjectField(env, obj, fid);
+	if (planes == NULL)
+		return OPJ_FALSE;
+	if ((*env)->GetArrayLength(env, planes) < (jsize)image->numcomps
+		|| (*env)->EnsureLocalCapacity(env, (jint)image->numcomps) != 0)
+	{
+		(*env)->DeleteLocalRef(env, planes);
+		return OPJ_FALSE;
+	}
+
+	raster->bands = (jarray*)opj_calloc(image->numcomps, sizeof(jarray));
+	if (raster->bands == NULL)
+	{
+		(*env)->DeleteLocalRef(env, planes);
+		fprintf(stderr,"%s:%d: MEMORY OUT\n",__FILE__,__LINE__);
+		return OPJ_FALSE;
+	}
+	for (i = 0; i < image->numcomps; ++i)
+	{
+		raster->bands[i] = (jarray)(*env)->GetObjectArrayElement(env, planes, (jsize)i);
+		if (raster->bands[i] == NULL)
+			break;
+		raster->numbands++;
+	}
+	(*env)->DeleteLocalRef(env, planes);
+	return raster->numbands == (int)image->numcomps;
+}
+
+/**
+asks Java for the array(s) receiving a width x height image: one array per
+component if the decoder asks for planar output, the layout picked by
+output_kind() otherwise. The Java width and height fields must already be
+set. A destination that is too small is reported by the alloc callback as an
+IllegalArgumentException.
+*/
+static OPJ_BOOL open_java_raster(JNIEnv *env, jobject obj, jclass klass, opj_image_t *image, int width, int height, java_raster_t *raster)
+{
+	const char *alloc_name, *field_name, *field_sig;
+	jmethodID mid, cached_mid;
+	jfieldID cached_fid;
+	jfieldID fid;
+	size_t sample_size;
+	int kind;
+
+	memset(raster, 0, sizeof(java_raster_t));
+	fid = DECODER_FIELD(env, klass, planar_output, "planarOutput", "Z");
+	if ((*env)->ExceptionCheck(env))
+		return OPJ_FALSE;
+	kind = (*env)->GetBooleanField(env, obj, fid) ? OUTPUT_PLANAR : output_kind(image);
+	raster->kind = kind;
+	switch (kind)
+	{
+	case OUTPUT_PLANAR:
+		if (!open_java_planes(env, obj, klass, image, raster))
+			return OPJ_FALSE;
+		alloc_name = field_name = field_sig = NULL;
+		cached_mid = NULL; cached_fid = NULL;
+		sample_size = raster->data_type == PLANES_BYTE ? sizeof(jbyte) : sizeof(jshort);
+		break;
+	case OUTPUT_ARGB:
+		alloc_name = "alloc24"; field_name = "image24"; field_sig = "[I"; sample_size = sizeof(jint);
+		cached_mid = decoder_ids.alloc24; cached_fid = decoder_ids.image24;
+		break;
+	case OUTPUT_GRAY16:
+		alloc_name = "alloc16"; field_name = "image16"; field_sig = "[S"; sample_size = sizeof(jshort);
+		cached_mid = decoder_ids.alloc16; cached_fid = decoder_ids.image16;
+		break;
+	default:
+		alloc_name = "alloc8"; field_name = "image8"; field_sig = "[B"; sample_size = sizeof(jbyte);
+		cached_mid = decoder_ids.alloc8; cached_fid = decoder_ids.image8;
+		break;
+	}
+
+	if (kind != OUTPUT_PLANAR)
+	{
+		mid = cached_mid != NULL ? cached_mid : (*env)->GetMethodID(env, klass, alloc_name, "()V");
+		if ((*env)->ExceptionCheck(env))
+			return OPJ_FALSE;
+		(*env)->CallVoidMethod(env, obj, mid);
+		if ((*env)->ExceptionCheck(env))
+			return OPJ_FALSE;
+
+		fid = cached_fid != NULL ? cached_fid : (*env)->GetFieldID(env, klass, field_name, field_sig);
+		if ((*env)->ExceptionCheck(env))
+			return OPJ_FALSE;
+		raster->array = (jarray)(*env)->GetObjectField(env, obj, fid);
+		if (raster->array == NULL)
+			return OPJ_FALSE;
+	}
+
+	fid = DECODER_FIELD(env, klass, destination_offset, "destinationOffset", "I");
+	if ((*env)->ExceptionCheck(env))
+		return OPJ_FALSE;
+	raster->offset = (*env)->GetIntField(env, obj, fid);
+
+	fid = DECODER_FIELD(env, klass, destination_stride, "destinationStride", "I");
+	if ((*env)->ExceptionCheck(env))
+		return OPJ_FALSE;
+	raster->stride = (*env)->GetIntField(env, obj, fid);
+	if (raster->stride <= 0)
+		raster->stride = width;
+
+	raster->row = opj_malloc((size_t)width * sample_size);
+	if (raster->row == NULL)
+	{
+		fprintf(stderr,"%s:%d: MEMORY OUT\n",__FILE__,__LINE__);
+		return OPJ_FALSE;
+	}
+	return OPJ_TRUE;
+}
+
+/**
+copies the w x h block at (src_x, src_y) of each component into its plane,
+at (dst_x, dst_y) of the destination. Samples keep their decoded values.
+*/
+static OPJ_BOOL write_java_planes(JNIEnv *env, java_raster_t *raster, opj_image_t *image,
+								  int src_x, int src_y, int w, int h, int dst_x, int dst_y)
+{
+	int b, x, y;
+
+	/* a tile decoded before its palette was known has fewer components */
+	if (image->numcomps < (OPJ_UINT32)raster->numbands)
+		return OPJ_FALSE;
+
+	for (b = 0; b < raster->numbands; b++)
+	{
+		const OPJ_INT32 *data = image->comps[b].data;
+		jarray band = raster->bands[b];
+
+		for (y = 0; y < h; y++)
+		{
+			const OPJ_INT32 *src = data + (OPJ_SIZE_T)(src_y + y) * image->comps[b].w + src_x;
+			jsize dst = raster->offset + (dst_y + y) * raster->stride + dst_x;
+
+			switch (raster->data_type)
+			{
+			case PLANES_INT:
+				(*env)->SetIntArrayRegion(env, (jintArray)band, dst, w, (const jint*)src);
+				break;
+			case PLANES_BYTE:
+				{
+					jbyte *row = (jbyte*)raster->row;
+					for (x = 0; x < w; x++)
+						row[x] = (jbyte)src[x];
+					(*env)->SetByteArrayRegion(env, (jbyteArray)band, dst, w, row);
+				}
+				break;
+			default:
+				{
+					jshort *row = (jshort*)raster->row;
+					for (x = 0; x < w; x++)
+						row[x] = (jshort)src[x];
+					(*env)->SetShortArrayRegion(env, (jshortArray)band, dst, w, row);
+				}
+				break;
+			}
+			if ((*env)->ExceptionCheck(env))
+				return OPJ_FALSE;
+		}
+	}
+	return OPJ_TRUE;
+}
+
+/**
+copies the w x h block at (src_x, src_y) of the image components into the
+Java array, at (dst_x, dst_y) of the destination.
+*/
+static OPJ_BOOL write_java_raster(JNIEnv *env, java_raster_t *raster, opj_image_t *image,
+								  int src_x, int src_y, int w, int h, int dst_x, int dst_y)
+{
+	int x, y;
+	int *red, *green, *blue, *alpha = NULL;
+	unsigned char rc, gc, bc, ac = 255;/* 255: FULLY_OPAQUE; 0: FULLY_TRANSPARENT */
+
+	if (raster->kind == OUTPUT_PLANAR)
+		return write_java_planes(env, raster, image, src_x, src_y, w, h, dst_x, dst_y);
+
+	if (image->numcomps >= 3)
+	{
+		red = image->comps[0].data;
+		green = image->comps[1].data;
+		blue = image->comps[2].data;
+		if (image->numcomps == 4)
+			alpha = image->comps[3].data;
+	}
+	else
+	{
+		red = green = blue = image->comps[0].data;
+		if (image->numcomps == 2)
+			alpha = image->comps[1].data;
+	}
+
+	for (y = 0; y < h; y++)
+	{
+		OPJ_SIZE_T src = (OPJ_SIZE_T)(src_y + y) * image->comps[0].w + src_x;
+		jsize dst = raster->offset + (dst_y + y) * raster->stride + dst_x;
+
+		switch (raster->kind)
+		{
+		case OUTPUT_ARGB:
+			{
+				jint *row = (jint*)raster->row;
+				for (x = 0; x < w; x++)
+				{
+					rc = (unsigned char)red[src + x];
+					gc = (unsigned char)green[src + x];
+					bc = (unsigned char)blue[src + x];
+					if (alpha)
+					{
+						ac = (unsigned char)alpha[src + x];
+					}
+					/*                 A        R          G       B
+					*/
+					row[x] = (jint)((ac<<24) | (rc<<16) | (gc<<8) | bc);
+				}
+				(*env)->SetIntArrayRegion(env, (jintArray)raster->array, dst, w, row);
+			}
+			break;
+		case OUTPUT_GRAY16:
+			{
+				jshort *row = (jshort*)raster->row;
+				for (x = 0; x < w; x++)
+					row[x] = (jshort)red[src + x];
+				(*env)->SetShortArrayRegion(env, (jshortArray)raster->array, dst, w, row);
+			}
+			break;
+		default:
+			{
+				jbyte *row = (jbyte*)raster->row;
+				for (x = 0; x < w; x++)
+					row[x] = (jbyte)red[src + x];
+				(*env)->SetByteArrayRegion(env, (jbyteArray)raster->array, dst, w, row);
+			}
+			break;
+		}
+		if ((*env)->ExceptionCheck(env))
+			return OPJ_FALSE;
+	}
+	return OPJ_TRUE;
+}
+
+static void close_java_raster(JNIEnv *env, java_raster_t *raster)
+{
+	int b;
+
+	if (raster->bands)
+	{
+		for (b = 0; b < raster->numbands; b++)
+			(*env)->DeleteLocalRef(env, raster->bands[b]);
+		opj_free(raster->bands);
+		raster->bands = NULL;
+		raster->numbands = 0;
+	}
+	if (raster->row)
+	{
+		opj_free(raster->row);
+		raster->row = NULL;
+	}
+	if (raster->array)
+	{
+		(*env)->DeleteLocalRef(env, raster->array);
+		raster->array = NULL;
+	}
+}
+
+
 JNIEXPORT jint JNICALL Java_org_openJpeg_OpenJPEGJavaDecoder_internalGetDecodeFormat(JNIEnv *env, jobject obj,jobjectArray javaParameters) 
 {
 	int format = -1;
@@ -478,7 +1112,7 @@ JNIEXPORT jint JNICALL Java_org_openJpeg_OpenJPEGJavaDecoder_internalGetDecodeFo
 	decodeInfo.javaParameters = javaParameters;
 
 	decodeInfo.argc = (*env)->GetArrayLength(decodeInfo.env, decodeInfo.javaParameters);
-	if ( catchAndRelease(&decodeInfo) == -1)
+	if ( catchAndRelease(&decodeInfo))
 		return -1;
 
 	//decode from buffer
@@ -494,22 +1128,26 @@ JNIEXPORT jint JNICALL Java_org_openJpeg_OpenJPEGJavaDecoder_internalGetDecodeFo
 			return -1;
 
 		}
-		fid = (*env)->GetFieldID(decodeInfo.env, klass,"compressedStream", "[B");
+		memset(&buf_info, 0, sizeof(opj_buffer_info_t));
+		if (direct_buffer_info(env, obj, klass, &buf_info))
+			return buffer_format(&buf_info);
+
+		fid = DECODER_FIELD(decodeInfo.env, klass, compressed_stream, "compressedStream", "[B");
 		if((*env)->ExceptionOccurred(decodeInfo.env))
 			return -1;
 
 		decodeInfo.jbaCompressed = (*env)->GetObjectField(decodeInfo.env, obj, fid);
-		if ( catchAndRelease(&decodeInfo) == -1)
+		if ( catchAndRelease(&decodeInfo))
 			return -1;
 
 		if (decodeInfo.jbaCompressed != NULL)
 		{
 			buf_info.len = (*env)->GetArrayLength(decodeInfo.env, decodeInfo.jbaCompressed);
-			if ( catchAndRelease(&decodeInfo) == -1)
+			if ( catchAndRelease(&decodeInfo))
 				return -1;
 
 			decodeInfo.jbBodyCompressed = (*env)->GetByteArrayElements(decodeInfo.env, decodeInfo.jbaCompressed, &isCopy);
-			if ( catchAndRelease(&decodeInfo) == -1)
+			if ( catchAndRelease(&decodeInfo))
 				return -1;
 
 			buf_info.buf = (unsigned char*)decodeInfo.jbBodyCompressed;
@@ -529,12 +1167,12 @@ JNIEXPORT jint JNICALL Java_org_openJpeg_OpenJPEGJavaDecoder_internalGetDecodeFo
 		{
 			decodeInfo.argv[i] = NULL;
 			object = (*env)->GetObjectArrayElement(env, javaParameters, i);
-			if ( catchAndRelease(&decodeInfo) == -1)
+			if ( catchAndRelease(&decodeInfo))
 				return -1;
 			if (object != NULL)
 			{
 				decodeInfo.argv[i] = (*env)->GetStringUTFChars(env, object, &isCopy);
-				if ( catchAndRelease(&decodeInfo) == -1)
+				if ( catchAndRelease(&decodeInfo))
 					return -1;
 			}
 
@@ -572,9 +1210,8 @@ JNIEXPORT jint JNICALL Java_org_openJpeg_OpenJPEGJavaDecoder_internalDecodeJ2Kto
 	opj_buffer_info_t buf_info;
 	int i, decod_format;
 	int width, height;
-	OPJ_BOOL hasAlpha, fails = OPJ_FALSE;
+	OPJ_BOOL fails = OPJ_FALSE;
 	OPJ_CODEC_FORMAT codec_format;
-	unsigned char rc, gc, bc, ac;
 
 	/*  ==> Access variables to the Java member variables */
 	jsize		arraySize;
@@ -582,9 +1219,7 @@ JNIEXPORT jint JNICALL Java_org_openJpeg_OpenJPEGJavaDecoder_internalDecodeJ2Kto
 	jobject		object = NULL;
 	jboolean	isCopy = 0;
 	jfieldID	fid;
-	jbyte		 *ptrBBody=NULL;
-	jshort  *ptrSBody = NULL;
-	jint		 *ptrIBody=NULL;
+	java_raster_t raster;
 	callback_variables_t msgErrorCallback_vars;
 	decode_info_t decodeInfo;
 	opj_file_info_t* p_file_info;
@@ -592,6 +1227,7 @@ JNIEXPORT jint JNICALL Java_org_openJpeg_OpenJPEGJavaDecoder_internalDecodeJ2Kto
 	memset(&decodeInfo, 0, sizeof(decode_info_t));
 	decodeInfo.env = env;
 	decodeInfo.javaParameters = javaParameters;
+	memset(&msgErrorCallback_vars, 0, sizeof(callback_variables_t));
 
 	memset(&buf_info, 0, sizeof(opj_buffer_info_t));
 
@@ -599,7 +1235,7 @@ JNIEXPORT jint JNICALL Java_org_openJpeg_OpenJPEGJavaDecoder_internalDecodeJ2Kto
 	/* JNI reference to the calling class 
 	*/
 	klass = (*env)->GetObjectClass(decodeInfo.env, obj);
-	if ( catchAndRelease(&decodeInfo) == -1)
+	if ( catchAndRelease(&decodeInfo))
 		return -1;
 	if (klass == 0)
 	{
@@ -613,46 +1249,54 @@ JNIEXPORT jint JNICALL Java_org_openJpeg_OpenJPEGJavaDecoder_internalDecodeJ2Kto
 	*/
 	msgErrorCallback_vars.env = decodeInfo.env;
 	msgErrorCallback_vars.jobj = &obj;
-	msgErrorCallback_vars.message_mid = (*env)->GetMethodID(decodeInfo.env, klass, "logMessage", "(Ljava/lang/String;)V");
-	if ( catchAndRelease(&decodeInfo) == -1)
+	msgErrorCallback_vars.message_mid = DECODER_METHOD(decodeInfo.env, klass, log_message, "logMessage", "(Ljava/lang/String;)V");
+	if ( catchAndRelease(&decodeInfo))
 		return -1;
 
-	msgErrorCallback_vars.error_mid = (*env)->GetMethodID(decodeInfo.env, klass, "logError", "(Ljava/lang/String;)V");
-	if ( catchAndRelease(&decodeInfo) == -1)
+	msgErrorCallback_vars.error_mid = DECODER_METHOD(decodeInfo.env, klass, log_error, "logError", "(Ljava/lang/String;)V");
+	if ( catchAndRelease(&decodeInfo))
 		return -1;
 
-	
-	/* Preparing the transfer of the codestream from Java to C*/
-	/*printf("C: before transfering codestream\n");*/
-	fid = (*env)->GetFieldID(decodeInfo.env, klass,"compressedStream", "[B");
-	if ( catchAndRelease(&decodeInfo) == -1)
+	read_log_options(env, obj, klass, &msgErrorCallback_vars);
+	if ( catchAndRelease(&decodeInfo))
 		return -1;
+	decodeInfo.msg_vars = &msgErrorCallback_vars;
 
-	decodeInfo.jbaCompressed = (*env)->GetObjectField(decodeInfo.env, obj, fid);
-	if ( catchAndRelease(&decodeInfo) == -1)
-		return -1;
 
-	if (decodeInfo.jbaCompressed != NULL)
+	/* A direct ByteBuffer is decoded in place; otherwise transfer the codestream from Java to C*/
+	if (!direct_buffer_info(env, obj, klass, &buf_info))
 	{
-		buf_info.len = (*env)->GetArrayLength(decodeInfo.env, decodeInfo.jbaCompressed);
-		if ( catchAndRelease(&decodeInfo) == -1)
+		/*printf("C: before transfering codestream\n");*/
+		fid = DECODER_FIELD(decodeInfo.env, klass, compressed_stream, "compressedStream", "[B");
+		if ( catchAndRelease(&decodeInfo))
 			return -1;
 
-		decodeInfo.jbBodyCompressed = (*env)->GetByteArrayElements(decodeInfo.env, decodeInfo.jbaCompressed, &isCopy);
-		if ( catchAndRelease(&decodeInfo) == -1)
+		decodeInfo.jbaCompressed = (*env)->GetObjectField(decodeInfo.env, obj, fid);
+		if ( catchAndRelease(&decodeInfo))
 			return -1;
 
-		buf_info.buf = (unsigned char*)decodeInfo.jbBodyCompressed;
-		buf_info.cur = buf_info.buf;
-	}
-	//if we don't have a buffer, then try to get a file name
+		if (decodeInfo.jbaCompressed != NULL)
+		{
+			buf_info.len = (*env)->GetArrayLength(decodeInfo.env, decodeInfo.jbaCompressed);
+			if ( catchAndRelease(&decodeInfo))
+				return -1;
+
+			decodeInfo.jbBodyCompressed = (*env)->GetByteArrayElements(decodeInfo.env, decodeInfo.jbaCompressed, &isCopy);
+			if ( catchAndRelease(&decodeInfo))
+				return -1;
+
+			buf_info.buf = (unsigned char*)decodeInfo.jbBodyCompressed;
+			buf_info.cur = buf_info.buf;
+		}
+	}
+	//if we don't have a buffer, then try to get a file name
 	if (!buf_info.buf )
 	{
 		/* Get the String[] containing the parameters, 
 		*  and converts it into a char** to simulate command line arguments.
 		*/
 		arraySize = (*env)->GetArrayLength(decodeInfo.env, decodeInfo.javaParameters);
-		if ( catchAndRelease(&decodeInfo) == -1)
+		if ( catchAndRelease(&decodeInfo))
 			return -1;
 
 		decodeInfo.argc = (int) arraySize;
@@ -672,12 +1316,12 @@ JNIEXPORT jint JNICALL Java_org_openJpeg_OpenJPEGJavaDecoder_internalDecodeJ2Kto
 		{
 			decodeInfo.argv[i] = NULL;
 			object = (*env)->GetObjectArrayElement(decodeInfo.env, decodeInfo.javaParameters, i);
-			if ( catchAndRelease(&decodeInfo) == -1)
+			if ( catchAndRelease(&decodeInfo))
 				return -1;
 			if (object != NULL)
 			{
 				decodeInfo.argv[i] = (*env)->GetStringUTFChars(decodeInfo.env, object, &isCopy);
-				if ( catchAndRelease(&decodeInfo) == -1)
+				if ( catchAndRelease(&decodeInfo))
 					return -1;
 			}
 			 (*env)->DeleteLocalRef(env, object);
@@ -693,6 +1337,16 @@ JNIEXPORT jint JNICALL Java_org_openJpeg_OpenJPEGJavaDecoder_internalDecodeJ2Kto
 	}
 
 	opj_set_default_decoder_parameters(&parameters);
+
+	/* limit the decoded quality layers, 0 decodes them all */
+	fid = DECODER_FIELD(decodeInfo.env, klass, max_quality_layers, "maxQualityLayers", "I");
+	if ( catchAndRelease(&decodeInfo))
+		return -1;
+
+	parameters.cp_layer = (OPJ_UINT32) (*env)->GetIntField(decodeInfo.env, obj, fid);
+	if ( catchAndRelease(&decodeInfo))
+		return -1;
+
 	//extract file name and release decodeInfo.env array
 	if (decodeInfo.argv && decodeInfo.argv[0] && decodeInfo.argv[0][0]!='\0')
 	{
@@ -702,12 +1356,12 @@ JNIEXPORT jint JNICALL Java_org_openJpeg_OpenJPEGJavaDecoder_internalDecodeJ2Kto
 
 		//now check if it is segments
 		/*printf("C: before transfering codestream\n");*/
-		fid = (*env)->GetFieldID(decodeInfo.env, klass,"segmentPositions", "[J");
-		if ( catchAndRelease(&decodeInfo) == -1)
+		fid = DECODER_FIELD(decodeInfo.env, klass, segment_positions, "segmentPositions", "[J");
+		if ( catchAndRelease(&decodeInfo))
 			return -1;
 
 		decodeInfo.segmentPositions = (*env)->GetObjectField(decodeInfo.env, obj, fid);
-		if ( catchAndRelease(&decodeInfo) == -1)
+		if ( catchAndRelease(&decodeInfo))
 			return -1;
 
 		if (decodeInfo.segmentPositions != NULL)
@@ -719,30 +1373,30 @@ JNIEXPORT jint JNICALL Java_org_openJpeg_OpenJPEGJavaDecoder_internalDecodeJ2Kto
 			OPJ_SIZE_T readCount=0;
 
 			numPositions = (*env)->GetArrayLength(decodeInfo.env, decodeInfo.segmentPositions);
-			if ( catchAndRelease(&decodeInfo) == -1)
+			if ( catchAndRelease(&decodeInfo))
 				return -1;
 
 			decodeInfo.bodySegmentPositions = (*env)->GetLongArrayElements(decodeInfo.env, decodeInfo.segmentPositions, &isCopy);
-			if ( catchAndRelease(&decodeInfo) == -1)
+			if ( catchAndRelease(&decodeInfo))
 				return -1;
 
-			fid = (*env)->GetFieldID(decodeInfo.env, klass,"segmentLengths", "[J");
-			if ( catchAndRelease(&decodeInfo) == -1)
+			fid = DECODER_FIELD(decodeInfo.env, klass, segment_lengths, "segmentLengths", "[J");
+			if ( catchAndRelease(&decodeInfo))
 				return -1;
 
 			decodeInfo.segmentLengths = (*env)->GetObjectField(decodeInfo.env, obj, fid);
-			if ( catchAndRelease(&decodeInfo) == -1)
+			if ( catchAndRelease(&decodeInfo))
 				return -1;
 
 			if (decodeInfo.segmentLengths != NULL)
 			{
 
 				numLengths = (*env)->GetArrayLength(decodeInfo.env, decodeInfo.segmentLengths);
-				if ( catchAndRelease(&decodeInfo) == -1)
+				if ( catchAndRelease(&decodeInfo))
 					return -1;
 
 				decodeInfo.bodySegmentLengths = (*env)->GetLongArrayElements(decodeInfo.env, decodeInfo.segmentLengths, &isCopy);
-				if ( catchAndRelease(&decodeInfo) == -1)
+				if ( catchAndRelease(&decodeInfo))
 					return -1;
 			}
 			if (numPositions == 0 || numLengths == 0 || numPositions != numLengths)
@@ -780,28 +1434,7 @@ JNIEXPORT jint JNICALL Java_org_openJpeg_OpenJPEGJavaDecoder_internalDecodeJ2Kto
 	}
 	else
 	{
-		/* Preparing the transfer of the codestream from Java to C*/
-		/*printf("C: before transfering codestream\n");*/
-		fid = (*env)->GetFieldID(decodeInfo.env, klass,"compressedStream", "[B");
-		if ( catchAndRelease(&decodeInfo) == -1)
-			return -1;
-
-		decodeInfo.jbaCompressed = (*env)->GetObjectField(decodeInfo.env, obj, fid);
-		if ( catchAndRelease(&decodeInfo) == -1)
-			return -1;
-
-		if (decodeInfo.jbaCompressed != NULL)
-		{
-			buf_info.len = (*env)->GetArrayLength(decodeInfo.env, decodeInfo.jbaCompressed);
-			if ( catchAndRelease(&decodeInfo) == -1)
-				return -1;
-
-			decodeInfo.jbBodyCompressed = (*env)->GetByteArrayElements(decodeInfo.env, decodeInfo.jbaCompressed, &isCopy);
-			if ( catchAndRelease(&decodeInfo) == -1)
-				return -1;
-
-			buf_info.buf = (unsigned char*)decodeInfo.jbBodyCompressed;
-		}
+		/* buf_info already points at the direct buffer or the pinned compressedStream */
 		if (!buf_info.buf )
 		{
 			release(&decodeInfo);
@@ -859,8 +1492,8 @@ JNIEXPORT jint JNICALL Java_org_openJpeg_OpenJPEGJavaDecoder_internalDecodeJ2Kto
 					break;
 				}
 
-				opj_set_info_handler(decodeInfo.codec, error_callback, &msgErrorCallback_vars);
-				opj_set_info_handler(decodeInfo.codec, warning_callback, &msgErrorCallback_vars);
+				opj_set_error_handler(decodeInfo.codec, error_callback, &msgErrorCallback_vars);
+				opj_set_warning_handler(decodeInfo.codec, warning_callback, &msgErrorCallback_vars);
 				opj_set_info_handler(decodeInfo.codec, info_callback, &msgErrorCallback_vars);
 
 				if( !opj_setup_decoder(decodeInfo.codec, &parameters)) 
@@ -868,40 +1501,42 @@ JNIEXPORT jint JNICALL Java_org_openJpeg_OpenJPEGJavaDecoder_internalDecodeJ2Kto
 					fprintf(stderr,"%s:%d:\n\topj_setup_decoder failed\n",__FILE__,__LINE__);
 					break;
 				}
+				/* checked by the codec before each tile and precinct */
+				opj_set_decode_cancel_flag(decodeInfo.codec, cancel_flag(env, obj, klass));
 
-				fid = (*env)->GetFieldID(decodeInfo.env, klass,"userChangedTile", "I");
-				if ( catchAndRelease(&decodeInfo) == -1)
+				fid = DECODER_FIELD(decodeInfo.env, klass, user_changed_tile, "userChangedTile", "I");
+				if ( catchAndRelease(&decodeInfo))
 					return -1;
 
 				user_changed_tile = (int) (*env)->GetIntField(decodeInfo.env, obj, fid);
-				if ( catchAndRelease(&decodeInfo) == -1)
+				if ( catchAndRelease(&decodeInfo))
 					return -1;
 
-				fid = (*env)->GetFieldID(decodeInfo.env, klass,"userChangedReduction", "I");
-				if ( catchAndRelease(&decodeInfo) == -1)
+				fid = DECODER_FIELD(decodeInfo.env, klass, user_changed_reduction, "userChangedReduction", "I");
+				if ( catchAndRelease(&decodeInfo))
 					return -1;
 
 				user_changed_reduction = (int) (*env)->GetIntField(decodeInfo.env, obj, fid);
-				if ( catchAndRelease(&decodeInfo) == -1)
+				if ( catchAndRelease(&decodeInfo))
 					return -1;
 
 				if(user_changed_tile && user_changed_reduction)
 				{
 					int reduction;
-					fid = (*env)->GetFieldID(decodeInfo.env, klass,"tileIn", "I");
-					if ( catchAndRelease(&decodeInfo) == -1)
+					fid = DECODER_FIELD(decodeInfo.env, klass, tile_in, "tileIn", "I");
+					if ( catchAndRelease(&decodeInfo))
 						return -1;
 
 					tile_index = (int) (*env)->GetIntField(decodeInfo.env, obj, fid);
-					if ( catchAndRelease(&decodeInfo) == -1)
+					if ( catchAndRelease(&decodeInfo))
 						return -1;
 
-					fid = (*env)->GetFieldID(decodeInfo.env, klass,"reductionIn", "I");
-					if ( catchAndRelease(&decodeInfo) == -1)
+					fid = DECODER_FIELD(decodeInfo.env, klass, reduction_in, "reductionIn", "I");
+					if ( catchAndRelease(&decodeInfo))
 						return -1;
 
 					reduction = (int) (*env)->GetIntField(decodeInfo.env, obj, fid);
-					if ( catchAndRelease(&decodeInfo) == -1)
+					if ( catchAndRelease(&decodeInfo))
 						return -1;
 
 					opj_set_decoded_resolution_factor(decodeInfo.codec, reduction);
@@ -913,20 +1548,20 @@ JNIEXPORT jint JNICALL Java_org_openJpeg_OpenJPEGJavaDecoder_internalDecodeJ2Kto
 					break;
 				}
 
-				fid = (*env)->GetFieldID(decodeInfo.env, klass,"maxTiles", "I");
-				if ( catchAndRelease(&decodeInfo) == -1)
+				fid = DECODER_FIELD(decodeInfo.env, klass, max_tiles, "maxTiles", "I");
+				if ( catchAndRelease(&decodeInfo))
 					return -1;
 
 				max_tiles = (int) (*env)->GetIntField(decodeInfo.env, obj, fid);
-				if ( catchAndRelease(&decodeInfo) == -1)
+				if ( catchAndRelease(&decodeInfo))
 					return -1;
 
-				fid = (*env)->GetFieldID(decodeInfo.env, klass,"maxReduction", "I");
-				if ( catchAndRelease(&decodeInfo) == -1)
+				fid = DECODER_FIELD(decodeInfo.env, klass, max_reduction, "maxReduction", "I");
+				if ( catchAndRelease(&decodeInfo))
 					return -1;
 
 				max_reduction = (int) (*env)->GetIntField(decodeInfo.env, obj, fid);
-				if ( catchAndRelease(&decodeInfo) == -1)
+				if ( catchAndRelease(&decodeInfo))
 					return -1;
 
 				if( !(user_changed_tile && user_changed_reduction)
@@ -940,36 +1575,36 @@ JNIEXPORT jint JNICALL Java_org_openJpeg_OpenJPEGJavaDecoder_internalDecodeJ2Kto
 					max_tiles = cstr->tw * cstr->th;
 
 					//    FLImage_put_max_tile_and_reduction(max_tiles, max_factor);
-					fid = (*env)->GetFieldID(decodeInfo.env, klass,"maxTiles", "I");
-					if ( catchAndRelease(&decodeInfo) == -1)
+					fid = DECODER_FIELD(decodeInfo.env, klass, max_tiles, "maxTiles", "I");
+					if ( catchAndRelease(&decodeInfo))
 						return -1;
 
 					(*env)->SetIntField(decodeInfo.env, obj, fid, max_tiles);
-					if ( catchAndRelease(&decodeInfo) == -1)
+					if ( catchAndRelease(&decodeInfo))
 						return -1;
 
-					fid = (*env)->GetFieldID(decodeInfo.env, klass,"maxReduction", "I");
-					if ( catchAndRelease(&decodeInfo) == -1)
+					fid = DECODER_FIELD(decodeInfo.env, klass, max_reduction, "maxReduction", "I");
+					if ( catchAndRelease(&decodeInfo))
 						return -1;
 
 					(*env)->SetIntField(decodeInfo.env, obj, fid, max_reduction);
-					if ( catchAndRelease(&decodeInfo) == -1)
+					if ( catchAndRelease(&decodeInfo))
 						return -1;
 
-					fid = (*env)->GetFieldID(decodeInfo.env, klass,"userChangedTile", "I");
-					if ( catchAndRelease(&decodeInfo) == -1)
+					fid = DECODER_FIELD(decodeInfo.env, klass, user_changed_tile, "userChangedTile", "I");
+					if ( catchAndRelease(&decodeInfo))
 						return -1;
 
 					(*env)->SetIntField(decodeInfo.env, obj, fid, 1);
-					if ( catchAndRelease(&decodeInfo) == -1)
+					if ( catchAndRelease(&decodeInfo))
 						return -1;
 
-					fid = (*env)->GetFieldID(decodeInfo.env, klass,"userChangedReduction", "I");
-					if ( catchAndRelease(&decodeInfo) == -1)
+					fid = DECODER_FIELD(decodeInfo.env, klass, user_changed_reduction, "userChangedReduction", "I");
+					if ( catchAndRelease(&decodeInfo))
 						return -1;
 
 					(*env)->SetIntField(decodeInfo.env, obj, fid, 1);
-					if ( catchAndRelease(&decodeInfo) == -1)
+					if ( catchAndRelease(&decodeInfo))
 						return -1;
 				}
 
@@ -980,46 +1615,46 @@ JNIEXPORT jint JNICALL Java_org_openJpeg_OpenJPEGJavaDecoder_internalDecodeJ2Kto
 
 					x0 = y0 = x1 = y1 = 0;
 
-					fid = (*env)->GetFieldID(decodeInfo.env, klass,"userChangedArea", "I");
-					if ( catchAndRelease(&decodeInfo) == -1)
+					fid = DECODER_FIELD(decodeInfo.env, klass, user_changed_area, "userChangedArea", "I");
+					if ( catchAndRelease(&decodeInfo))
 						return -1;
 
 					user_changed_area = (int) (*env)->GetIntField(decodeInfo.env, obj, fid);
-					if ( catchAndRelease(&decodeInfo) == -1)
+					if ( catchAndRelease(&decodeInfo))
 						return -1;
 
 					if(user_changed_area)
 					{
-						fid = (*env)->GetFieldID(decodeInfo.env, klass,"areaX0", "I");
-						if ( catchAndRelease(&decodeInfo) == -1)
+						fid = DECODER_FIELD(decodeInfo.env, klass, area_x0, "areaX0", "I");
+						if ( catchAndRelease(&decodeInfo))
 							return -1;
 
 						x0 = (unsigned int) (*env)->GetIntField(decodeInfo.env, obj, fid);
-						if ( catchAndRelease(&decodeInfo) == -1)
+						if ( catchAndRelease(&decodeInfo))
 							return -1;
 
-						fid = (*env)->GetFieldID(decodeInfo.env, klass,"areaY0", "I");
-						if ( catchAndRelease(&decodeInfo) == -1)
+						fid = DECODER_FIELD(decodeInfo.env, klass, area_y0, "areaY0", "I");
+						if ( catchAndRelease(&decodeInfo))
 							return -1;
 
 						y0 = (unsigned int) (*env)->GetIntField(decodeInfo.env, obj, fid);
-						if ( catchAndRelease(&decodeInfo) == -1)
+						if ( catchAndRelease(&decodeInfo))
 							return -1;
 
-						fid = (*env)->GetFieldID(decodeInfo.env, klass,"areaX1", "I");
-						if ( catchAndRelease(&decodeInfo) == -1)
+						fid = DECODER_FIELD(decodeInfo.env, klass, area_x1, "areaX1", "I");
+						if ( catchAndRelease(&decodeInfo))
 							return -1;
 
 						x1 = (unsigned int) (*env)->GetIntField(decodeInfo.env, obj, fid);
-						if ( catchAndRelease(&decodeInfo) == -1)
+						if ( catchAndRelease(&decodeInfo))
 							return -1;
 
-						fid = (*env)->GetFieldID(decodeInfo.env, klass,"areaY1", "I");
-						if ( catchAndRelease(&decodeInfo) == -1)
+						fid = DECODER_FIELD(decodeInfo.env, klass, area_y1, "areaY1", "I");
+						if ( catchAndRelease(&decodeInfo))
 							return -1;
 
 						y1 = (unsigned int) (*env)->GetIntField(decodeInfo.env, obj, fid);
-						if ( catchAndRelease(&decodeInfo) == -1)
+						if ( catchAndRelease(&decodeInfo))
 							return -1;
 					}
 
@@ -1061,346 +1696,909 @@ JNIEXPORT jint JNICALL Java_org_openJpeg_OpenJPEGJavaDecoder_internalDecodeJ2Kto
 			}
 			decodeInfo.deleteImage = TRUE;
 
-			if(decodeInfo.image->color_space != OPJ_CLRSPC_SYCC
-				&& decodeInfo.image->numcomps == 3
-				&& decodeInfo.image->comps[0].dx == decodeInfo.image->comps[0].dy
-				&& decodeInfo.image->comps[1].dx != 1)
-				decodeInfo.image->color_space = OPJ_CLRSPC_SYCC;
-			else
-				if(decodeInfo.image->numcomps <= 2)
-					decodeInfo.image->color_space = OPJ_CLRSPC_GRAY;
-
-			if(decodeInfo.image->color_space == OPJ_CLRSPC_SYCC)
-			{
-				color_sycc_to_rgb(decodeInfo.image);
-			}
-			if(decodeInfo.image->icc_profile_buf)
-			{
-#if defined(HAVE_LIBLCMS1) || defined(HAVE_LIBLCMS2)
-				color_apply_icc_profile(decodeInfo.image);
-#endif
-
-				opj_free(decodeInfo.image->icc_profile_buf);
-				decodeInfo.image->icc_profile_buf = NULL;
-				decodeInfo.image->icc_profile_len = 0;
-			}
+			prepare_image(decodeInfo.image);
 
 			width = decodeInfo.image->comps[0].w;
 			height = decodeInfo.image->comps[0].h;
 			/* Set JAVA width and height:
 			*/
-			fid = (*env)->GetFieldID(decodeInfo.env, klass, "width", "I");
-			if ( catchAndRelease(&decodeInfo) == -1)
+			fid = DECODER_FIELD(decodeInfo.env, klass, width, "width", "I");
+			if ( catchAndRelease(&decodeInfo) )
 				return -1;
 
 			(*env)->SetIntField(decodeInfo.env, obj, fid, width);
-			if ( catchAndRelease(&decodeInfo) == -1)
+			if ( catchAndRelease(&decodeInfo) )
 				return -1;
 
-			fid = (*env)->GetFieldID(decodeInfo.env, klass, "height", "I");
-			if ( catchAndRelease(&decodeInfo) == -1)
+			fid = DECODER_FIELD(decodeInfo.env, klass, height, "height", "I");
+			if ( catchAndRelease(&decodeInfo) )
 				return -1;
 
 			(*env)->SetIntField(decodeInfo.env, obj, fid, height);
-			if ( catchAndRelease(&decodeInfo) == -1)
+			if ( catchAndRelease(&decodeInfo) )
 				return -1;
 
 
-			fid = (*env)->GetFieldID(decodeInfo.env, klass, "bitsPerSample", "I");
-			if ( catchAndRelease(&decodeInfo) == -1)
+			fid = DECODER_FIELD(decodeInfo.env, klass, bits_per_sample, "bitsPerSample", "I");
+			if ( catchAndRelease(&decodeInfo) )
 				return -1;
 
 			(*env)->SetIntField(decodeInfo.env, obj, fid, decodeInfo.image->comps[0].prec);
-			if ( catchAndRelease(&decodeInfo) == -1)
+			if ( catchAndRelease(&decodeInfo) )
 				return -1;
 
-			fid = (*env)->GetFieldID(decodeInfo.env, klass, "samplesPerPixel", "I");
-			if ( catchAndRelease(&decodeInfo) == -1)
+			fid = DECODER_FIELD(decodeInfo.env, klass, samples_per_pixel, "samplesPerPixel", "I");
+			if ( catchAndRelease(&decodeInfo) )
 				return -1;
 
 			(*env)->SetIntField(decodeInfo.env, obj, fid, decodeInfo.image->numcomps);
-			if ( catchAndRelease(&decodeInfo) == -1)
+			if ( catchAndRelease(&decodeInfo) )
 				return -1;
 
-			if ((decodeInfo.image->numcomps >= 3
-				&& decodeInfo.image->comps[0].dx == decodeInfo.image->comps[1].dx
-				&& decodeInfo.image->comps[1].dx == decodeInfo.image->comps[2].dx
-				&& decodeInfo.image->comps[0].dy == decodeInfo.image->comps[1].dy
-				&& decodeInfo.image->comps[1].dy == decodeInfo.image->comps[2].dy
-				&& decodeInfo.image->comps[0].prec == decodeInfo.image->comps[1].prec
-				&& decodeInfo.image->comps[1].prec == decodeInfo.image->comps[2].prec
-				)/* RGB[A] */
-				||
-				(decodeInfo.image->numcomps == 2
-				&& decodeInfo.image->comps[0].dx == decodeInfo.image->comps[1].dx
-				&& decodeInfo.image->comps[0].dy == decodeInfo.image->comps[1].dy
-				&& decodeInfo.image->comps[0].prec == decodeInfo.image->comps[1].prec
-				)
-				) /* GA */
+			/* Allocate (or reuse the caller's) JAVA memory and copy the pixels:
+			*/
+			if (!open_java_raster(env, obj, klass, decodeInfo.image, width, height, &raster))
 			{
-				jmethodID mid;	
-				int  has_alpha4, has_alpha2, has_rgb;
-				int *red, *green, *blue, *alpha;
+				close_java_raster(env, &raster);
+				release(&decodeInfo);
+				return -1;
+			}
+			fails = !write_java_raster(env, &raster, decodeInfo.image, 0, 0, width, height, 0, 0);
+			close_java_raster(env, &raster);
 
-				alpha = NULL;
+			release(&decodeInfo);
+			if(fails)
+				return -1;
 
-				has_rgb = (decodeInfo.image->numcomps == 3);
-				has_alpha4 = (decodeInfo.image->numcomps == 4);
-				has_alpha2 = (decodeInfo.image->numcomps == 2);
-				hasAlpha = (has_alpha4 || has_alpha2);
+			return 0; /* OK */
+} /* Java_OpenJPEGJavaDecoder_internalDecodeJ2KtoImage() */
 
-				if(has_rgb)
-				{
-					red = decodeInfo.image->comps[0].data;
-					green = decodeInfo.image->comps[1].data;
-					blue = decodeInfo.image->comps[2].data;
+/* -------------------------------
+* DECODER SESSION, CALLED BY OpenJPEGJavaDecoderSession
+* -----------------------------*/
 
-					if(has_alpha4)
-					{
-						alpha = decodeInfo.image->comps[3].data;
-					}
+/**
+native state of an OpenJPEGJavaDecoderSession: the codec keeps the parsed main
+header between decodes, so a decode only costs the tiles it touches.
+*/
+/**
+an ImageInputStream read by the codec through an org.openJpeg.ImageInputStreamSource
+*/
+typedef struct java_stream
+{
+	JavaVM *vm;
+	/** global reference to the ImageInputStreamSource */
+	jobject source;
+	jmethodID read_mid;
+	jmethodID seek_mid;
+	/** memory of the direct buffer receiving each read */
+	OPJ_BYTE *chunk;
+	OPJ_SIZE_T chunk_size;
+	OPJ_OFF_T position;
+} java_stream_t;
 
-				}	/* if(has_rgb) */
-				else
-				{
-					red = green = blue = decodeInfo.image->comps[0].data;
-					if(has_alpha2)
-					{
-						alpha = decodeInfo.image->comps[1].data;
-					}
-				}	/* if(has_rgb) */
+/**
+the stream callbacks run on the thread of the JNI call that drives the codec
+*/
+static JNIEnv* java_stream_env(java_stream_t *java_stream)
+{
+	JNIEnv *env = NULL;
+	if ((*java_stream->vm)->GetEnv(java_stream->vm, (void**)&env, JNI_VERSION_1_2) != JNI_OK)
+		return NULL;
+	return env;
+}
 
-				/* Allocate JAVA memory:
-				*/
-				mid = (*env)->GetMethodID(decodeInfo.env, klass, "alloc24", "()V");
-				if ( catchAndRelease(&decodeInfo) == -1)
-					return -1;
+static OPJ_SIZE_T java_stream_read(void *p_buffer, OPJ_SIZE_T p_nb_bytes, void *p_user_data)
+{
+	java_stream_t *java_stream = (java_stream_t*)p_user_data;
+	JNIEnv *env = java_stream_env(java_stream);
+	OPJ_SIZE_T total = 0;
 
-				(*env)->CallVoidMethod(decodeInfo.env, obj, mid);
-				if ( catchAndRelease(&decodeInfo) == -1)
-					return -1;
+	if (env == NULL)
+		return (OPJ_SIZE_T)-1;
+	while (total < p_nb_bytes)
+	{
+		OPJ_SIZE_T wanted = p_nb_bytes - total;
+		jint read;
 
-				ac = 255;/* 255: FULLY_OPAQUE; 0: FULLY_TRANSPARENT */
+		if (wanted > java_stream->chunk_size)
+			wanted = java_stream->chunk_size;
+		read = (*env)->CallIntMethod(env, java_stream->source, java_stream->read_mid, (jint)wanted);
+		if ((*env)->ExceptionCheck(env))
+		{
+			/* the codec keeps calling Java: it only sees an end of stream */
+			(*env)->ExceptionClear(env);
+			break;
+		}
+		if (read <= 0)
+			break;
+		memcpy((OPJ_BYTE*)p_buffer + total, java_stream->chunk, (size_t)read);
+		total += (OPJ_SIZE_T)read;
+	}
+	java_stream->position += (OPJ_OFF_T)total;
+	return total ? total : (OPJ_SIZE_T)-1;
+}
 
-				/* Get the pointer to the Java structure where the data must be copied
-				*/
-				fid = (*env)->GetFieldID(decodeInfo.env, klass,"image24", "[I");
-				if ( catchAndRelease(&decodeInfo) == -1)
-					return -1;
+static OPJ_BOOL java_stream_seek(OPJ_OFF_T p_nb_bytes, void *p_user_data)
+{
+	java_stream_t *java_stream = (java_stream_t*)p_user_data;
+	JNIEnv *env = java_stream_env(java_stream);
+	jboolean done;
+
+	if (env == NULL)
+		return OPJ_FALSE;
+	done = (*env)->CallBooleanMethod(env, java_stream->source, java_stream->seek_mid, (jlong)p_nb_bytes);
+	if ((*env)->ExceptionCheck(env))
+	{
+		(*env)->ExceptionClear(env);
+		return OPJ_FALSE;
+	}
+	if (!done)
+		return OPJ_FALSE;
+	java_stream->position = p_nb_bytes;
+	return OPJ_TRUE;
+}
 
-				decodeInfo.jia = (*env)->GetObjectField(decodeInfo.env, obj, fid);
-				if ( catchAndRelease(&decodeInfo) == -1)
-					return -1;
+static OPJ_OFF_T java_stream_skip(OPJ_OFF_T p_nb_bytes, void *p_user_data)
+{
+	java_stream_t *java_stream = (java_stream_t*)p_user_data;
+	return java_stream_seek(java_stream->position + p_nb_bytes, p_user_data) ? p_nb_bytes : -1;
+}
 
-				if (decodeInfo.jia == NULL)
-				{
-					release(&decodeInfo);
-					return -1;
-				}
+/**
+binds java_stream to an ImageInputStreamSource and creates the codec stream
+reading it. Returns the stream and the codestream format, or NULL.
+*/
+static opj_stream_t* java_stream_create(JNIEnv *env, java_stream_t *java_stream, jobject source, int *format)
+{
+	opj_stream_t *stream;
+	opj_buffer_info_t magic;
+	jclass klass;
+	jfieldID fid;
+	jobject chunk;
+	jlong length;
+	jint read;
+
+	*format = -1;
+	klass = (*env)->GetObjectClass(env, source);
+	if (klass == 0)
+		return NULL;
+	java_stream->read_mid = (*env)->GetMethodID(env, klass, "read", "(I)I");
+	if (java_stream->read_mid == NULL)
+		return NULL;
+	java_stream->seek_mid = (*env)->GetMethodID(env, klass, "seek", "(J)Z");
+	if (java_stream->seek_mid == NULL)
+		return NULL;
+	fid = (*env)->GetFieldID(env, klass, "length", "J");
+	if (fid == NULL)
+		return NULL;
+	length = (*env)->GetLongField(env, source, fid);
+	fid = (*env)->GetFieldID(env, klass, "chunk", "Ljava/nio/ByteBuffer;");
+	if (fid == NULL)
+		return NULL;
+	chunk = (*env)->GetObjectField(env, source, fid);
+	if (chunk == NULL)
+		return NULL;
+	java_stream->chunk = (OPJ_BYTE*)(*env)->GetDirectBufferAddress(env, chunk);
+	java_stream->chunk_size = (OPJ_SIZE_T)(*env)->GetDirectBufferCapacity(env, chunk);
+	(*env)->DeleteLocalRef(env, chunk);
+	if (java_stream->chunk == NULL || java_stream->chunk_size < 12 || length < 12)
+		return NULL;
+	if ((*env)->GetJavaVM(env, &java_stream->vm) != 0)
+		return NULL;
+	java_stream->source = (*env)->NewGlobalRef(env, source);
+	if (java_stream->source == NULL)
+		return NULL;
+
+	/* the format is told by the first bytes */
+	read = (*env)->CallIntMethod(env, java_stream->source, java_stream->read_mid, (jint)12);
+	if ((*env)->ExceptionCheck(env) || read != 12)
+		return NULL;
+	memset(&magic, 0, sizeof(opj_buffer_info_t));
+	magic.buf = java_stream->chunk;
+	magic.len = 12;
+	*format = buffer_format(&magic);
+	if (*format == -1 || !java_stream_seek(0, java_stream))
+		return NULL;
+
+	stream = opj_stream_create(java_stream->chunk_size, OPJ_TRUE);
+	if (stream == NULL)
+		return NULL;
+	opj_stream_set_read_function(stream, java_stream_read);
+	opj_stream_set_skip_function(stream, java_stream_skip);
+	opj_stream_set_seek_function(stream, java_stream_seek);
+	opj_stream_set_user_data(stream, java_stream);
+	opj_stream_set_user_data_length(stream, (OPJ_UINT64)length);
+	return stream;
+}
 
-				decodeInfo.jiBody = (*env)->GetIntArrayElements(decodeInfo.env, decodeInfo.jia, 0);
-				if ( catchAndRelease(&decodeInfo) == -1)
-					return -1;
-				ptrIBody = decodeInfo.jiBody;
-				for(i = 0; i < width*height; i++)
-				{
-					rc = (unsigned char) *red++;
-					gc = (unsigned char)*green++;
-					bc = (unsigned char)*blue++;
-					if(hasAlpha)
-					{
-						ac = (unsigned char)*alpha++;;
-					}
-					/*                         A        R          G       B
-					*/
-					*ptrIBody++ = (int)((ac<<24) | (rc<<16) | (gc<<8) | bc);
+static void java_stream_release(java_stream_t *java_stream)
+{
+	JNIEnv *env;
+	if (java_stream->source == NULL)
+		return;
+	env = java_stream_env(java_stream);
+	if (env != NULL)
+		(*env)->DeleteGlobalRef(env, java_stream->source);
+	java_stream->source = NULL;
+}
 
-				}	/* for(i) */
-			}/* if (decodeInfo.image->numcomps >= 3  */ 
-			else
-				if(decodeInfo.image->numcomps == 1) /* Grey */
-				{
-					/* 1 component 8 or 16 bpp decodeInfo.image
-					*/
-					int *grey = decodeInfo.image->comps[0].data;
-					if(decodeInfo.image->comps[0].prec <= 8) 
-					{
-						jmethodID mid;
+typedef struct decode_session
+{
+	opj_codec_t *codec;
+	opj_stream_t *stream;
+	/** main header image, only used as a template for the decoded tiles */
+	opj_image_t *header;
+	/** codestream memory, when the session reads from a buffer */
+	opj_buffer_info_t buf_info;
+	/** codestream source, when the session reads an ImageInputStream */
+	java_stream_t java_stream;
+	/** ICC profile, which the codec hands out with the first decoded tile only */
+	OPJ_BYTE *icc_profile_buf;
+	OPJ_UINT32 icc_profile_len;
+	OPJ_UINT32 reduction;
+	OPJ_UINT32 tx0, ty0, tdx, tdy, tw, th;
+	/** set once the codec failed: it lost its main header and cannot decode anymore */
+	OPJ_BOOL broken;
+	/** Java object receiving the messages of the current call */
+	jobject logger;
+	callback_variables_t msg_vars;
+} decode_session_t;
+
+static void destroy_session(decode_session_t *session)
+{
+	if (session->codec)
+		opj_destroy_codec(session->codec);
+	if (session->stream)
+		opj_stream_destroy_v3(session->stream);
+	java_stream_release(&session->java_stream);
+	if (session->header)
+		opj_image_destroy(session->header);
+	if (session->icc_profile_buf)
+		opj_free(session->icc_profile_buf);
+	if (session->msg_vars.ring)
+		opj_free(session->msg_vars.ring);
+	opj_free(session);
+}
 
-						/* Allocate JAVA memory:
-						*/
-						mid = (*env)->GetMethodID(decodeInfo.env, klass, "alloc8", "()V");
-						if ( catchAndRelease(&decodeInfo) == -1)
-							return -1;
+/**
+points the message callbacks of the session at the Java object of the current call
+*/
+static OPJ_BOOL attach_logger(JNIEnv *env, decode_session_t *session, jobject logger)
+{
+	jclass klass;
 
-						(*env)->CallVoidMethod(decodeInfo.env, obj, mid);
-						if ( catchAndRelease(&decodeInfo) == -1)
-							return -1;
+	session->logger = logger;
+	session->msg_vars.env = env;
+	session->msg_vars.jobj = &session->logger;
 
-						fid = (*env)->GetFieldID(decodeInfo.env, klass,"image8", "[B");
-						if ( catchAndRelease(&decodeInfo) == -1)
-							return -1;
+	klass = (*env)->GetObjectClass(env, logger);
+	if (klass == 0)
+		return OPJ_FALSE;
+	session->msg_vars.message_mid = DECODER_METHOD(env, klass, log_message, "logMessage", "(Ljava/lang/String;)V");
+	if ((*env)->ExceptionCheck(env))
+		return OPJ_FALSE;
+	session->msg_vars.error_mid = DECODER_METHOD(env, klass, log_error, "logError", "(Ljava/lang/String;)V");
+	if ((*env)->ExceptionCheck(env))
+		return OPJ_FALSE;
+	if (!read_log_options(env, logger, klass, &session->msg_vars))
+		return OPJ_FALSE;
+	(*env)->DeleteLocalRef(env, klass);
+	return OPJ_TRUE;
+}
 
-						decodeInfo.jba = (*env)->GetObjectField(decodeInfo.env, obj, fid);
-						if ( catchAndRelease(&decodeInfo) == -1)
-							return -1;
+static OPJ_BOOL set_int_field(JNIEnv *env, jobject obj, jclass klass, const char *name, jint value)
+{
+	jfieldID fid = (*env)->GetFieldID(env, klass, name, "I");
+	if ((*env)->ExceptionCheck(env))
+		return OPJ_FALSE;
+	(*env)->SetIntField(env, obj, fid, value);
+	return !(*env)->ExceptionCheck(env);
+}
 
-						decodeInfo.jbBody = (*env)->GetByteArrayElements(decodeInfo.env, decodeInfo.jba, 0);
-						if ( catchAndRelease(&decodeInfo) == -1)
-							return -1;
+/**
+same as set_int_field, for a field ID of the decoder_ids cache
+*/
+static OPJ_BOOL set_int_field_id(JNIEnv *env, jobject obj, jfieldID fid, jint value)
+{
+	if (fid == NULL)
+		return OPJ_FALSE;
+	(*env)->SetIntField(env, obj, fid, value);
+	return !(*env)->ExceptionCheck(env);
+}
 
-						ptrBBody = decodeInfo.jbBody;
-						for(i=0; i<width*height; i++) 
-						{
-							*ptrBBody++ = *grey++;
-						}
-						/* Replace image8 buffer:
-						*/
-					} 
-					else /* prec[9:16] */
-					{
-						jmethodID mid;
-						int *grey;
-						int ushift = 0, dshift = 0, force16 = 0;
-
-						grey = decodeInfo.image->comps[0].data;
-						/* Allocate JAVA memory:
-						*/
-						mid = (*env)->GetMethodID(decodeInfo.env, klass, "alloc16", "()V");
-						if ( catchAndRelease(&decodeInfo) == -1)
-							return -1;
+static OPJ_BOOL set_int_array_field(JNIEnv *env, jobject obj, jclass klass, const char *name, const jint *values, jsize count)
+{
+	jintArray array;
+	jfieldID fid = (*env)->GetFieldID(env, klass, name, "[I");
+	if ((*env)->ExceptionCheck(env))
+		return OPJ_FALSE;
+	array = (*env)->NewIntArray(env, count);
+	if (array == NULL)
+		return OPJ_FALSE;
+	(*env)->SetIntArrayRegion(env, array, 0, count, values);
+	(*env)->SetObjectField(env, obj, fid, array);
+	(*env)->DeleteLocalRef(env, array);
+	return !(*env)->ExceptionCheck(env);
+}
 
-						(*env)->CallVoidMethod(decodeInfo.env, obj, mid);
-						if ( catchAndRelease(&decodeInfo) == -1)
-							return -1;
+/**
+hands the precision, sampling and signedness of every component to Java
+*/
+static OPJ_BOOL set_component_fields(JNIEnv *env, jobject obj, jclass klass, opj_image_t *header)
+{
+	OPJ_UINT32 i, n = header->numcomps;
+	jint *values;
+	jint is_signed = 0;
+	OPJ_BOOL ok;
 
-						fid = (*env)->GetFieldID(decodeInfo.env, klass,"image16", "[S");
-						if ( catchAndRelease(&decodeInfo) == -1)
-							return -1;
+	values = (jint*)opj_malloc(4 * n * sizeof(jint));
+	if (values == NULL)
+	{
+		fprintf(stderr,"%s:%d: MEMORY OUT\n",__FILE__,__LINE__);
+		return OPJ_FALSE;
+	}
+	for (i = 0; i < n; i++)
+	{
+		values[i] = (jint)header->comps[i].prec;
+		values[n + i] = (jint)header->comps[i].dx;
+		values[2 * n + i] = (jint)header->comps[i].dy;
+		values[3 * n + i] = header->comps[i].sgnd ? 1 : 0;
+		if (header->comps[i].sgnd)
+			is_signed = 1;
+	}
+	ok = set_int_array_field(env, obj, klass, "bitsPerComponent", values, (jsize)n)
+		&& set_int_array_field(env, obj, klass, "componentSubsamplingX", values + n, (jsize)n)
+		&& set_int_array_field(env, obj, klass, "componentSubsamplingY", values + 2 * n, (jsize)n)
+		&& set_int_array_field(env, obj, klass, "componentSigned", values + 3 * n, (jsize)n)
+		&& set_int_field(env, obj, klass, "signedComponents", is_signed);
+	opj_free(values);
+	return ok;
+}
 
-						decodeInfo.jsa = (*env)->GetObjectField(decodeInfo.env, obj, fid);
-						if ( catchAndRelease(&decodeInfo) == -1)
-							return -1;
+JNIEXPORT jlong JNICALL Java_org_openJpeg_OpenJPEGJavaDecoderSession_internalOpen(JNIEnv *env, jobject obj,
+	jobject decoder, jstring fileName, jobject codestream, jobject source)
+{
+	opj_dparameters_t parameters;
+	opj_codestream_info_v2_t *cstr = NULL;
+	decode_session_t *session;
+	OPJ_CODEC_FORMAT codec_format;
+	jclass klass, decoder_klass;
+	jfieldID fid;
+	jint max_layers = 0;
+	int decod_format = -1;
+	OPJ_BOOL fails = OPJ_TRUE;
+
+	klass = (*env)->GetObjectClass(env, obj);
+	decoder_klass = (*env)->GetObjectClass(env, decoder);
+	if (klass == 0 || decoder_klass == 0)
+		return 0;
+
+	session = (decode_session_t*)opj_calloc(1, sizeof(decode_session_t));
+	if (session == NULL)
+	{
+		fprintf(stderr,"%s:%d: MEMORY OUT\n",__FILE__,__LINE__);
+		return 0;
+	}
 
-						decodeInfo.jsBody = (*env)->GetShortArrayElements(decodeInfo.env, decodeInfo.jsa, 0);
-						if ( catchAndRelease(&decodeInfo) == -1)
-							return -1;
+	if (codestream != NULL)
+	{
+		/* the Java session keeps the buffer referenced until it is closed */
+		session->buf_info.buf = (OPJ_BYTE*)(*env)->GetDirectBufferAddress(env, codestream);
+		session->buf_info.len = (OPJ_SIZE_T)(*env)->GetDirectBufferCapacity(env, codestream);
+		session->buf_info.cur = session->buf_info.buf;
+		if (session->buf_info.buf != NULL && session->buf_info.len != (OPJ_SIZE_T)-1)
+			decod_format = buffer_format(&session->buf_info);
+	}
+	else if (source != NULL)
+	{
+		session->stream = java_stream_create(env, &session->java_stream, source, &decod_format);
+		if (session->stream == NULL)
+			decod_format = -1;
+	}
+	else if (fileName != NULL)
+	{
+		const char *name = (*env)->GetStringUTFChars(env, fileName, NULL);
+		if (name == NULL)
+		{
+			destroy_session(session);
+			return 0;
+		}
+		decod_format = getDecodeFormat(name, 0);
+		if (decod_format != -1)
+			session->stream = opj_stream_create_default_file_stream_v3(name, 1);
+		(*env)->ReleaseStringUTFChars(env, fileName, name);
+	}
 
-						ptrSBody = decodeInfo.jsBody;
+	if(decod_format == J2K_CFMT)
+		codec_format = OPJ_CODEC_J2K;
+	else if(decod_format == JP2_CFMT)
+		codec_format = OPJ_CODEC_JP2;
+	else
+	{
+		fprintf(stderr,"%s:%d: decode format missing\n",__FILE__,__LINE__);
+		destroy_session(session);
+		return 0;
+	}
 
-						for(i=0; i<width*height; i++) 
-						{
-							//disable shift up for signed data: don't know why we are doing this
-							*ptrSBody++ = *grey++;
-						}
-						/* Replace image16 buffer:
-						*/
-					}
-				}	
-				else 
-				{
-					int *grey;
+	while (1)
+	{
+		if (session->stream == NULL)
+			session->stream = opj_stream_create_buffer_stream(&session->buf_info, 1);
+		if (session->stream == NULL)
+		{
+			fprintf(stderr,"%s:%d: NO decodeInfo.stream\n",__FILE__,__LINE__);
+			break;
+		}
+		session->codec = opj_create_decompress(codec_format);
+		if (session->codec == NULL)
+		{
+			fprintf(stderr,"%s:%d: NO coded\n",__FILE__,__LINE__);
+			break;
+		}
+		if (!attach_logger(env, session, decoder))
+			break;
+		opj_set_error_handler(session->codec, error_callback, &session->msg_vars);
+		opj_set_warning_handler(session->codec, warning_callback, &session->msg_vars);
+		opj_set_info_handler(session->codec, info_callback, &session->msg_vars);
+
+		opj_set_default_decoder_parameters(&parameters);
+		parameters.decod_format = decod_format;
+		fid = DECODER_FIELD(env, decoder_klass, max_quality_layers, "maxQualityLayers", "I");
+		if (fid == NULL)
+			break;
+		max_layers = (*env)->GetIntField(env, decoder, fid);
+		/* limit the decoded quality layers, 0 decodes them all */
+		parameters.cp_layer = (OPJ_UINT32)max_layers;
+		if( !opj_setup_decoder(session->codec, &parameters))
+		{
+			fprintf(stderr,"%s:%d:\n\topj_setup_decoder failed\n",__FILE__,__LINE__);
+			break;
+		}
+		if( !opj_read_header(session->stream, session->codec, &session->header))
+		{
+			fprintf(stderr,"%s:%d:\n\topj_read_header failed\n",__FILE__,__LINE__);
+			break;
+		}
+		cstr = opj_get_cstr_info(session->codec);
+		if (cstr == NULL)
+			break;
+
+		session->tx0 = cstr->tx0;
+		session->ty0 = cstr->ty0;
+		session->tdx = cstr->tdx;
+		session->tdy = cstr->tdy;
+		session->tw = cstr->tw;
+		session->th = cstr->th;
+
+		if (!set_int_field(env, obj, klass, "imageX0", (jint)session->header->x0)
+			|| !set_int_field(env, obj, klass, "imageY0", (jint)session->header->y0)
+			|| !set_int_field(env, obj, klass, "imageX1", (jint)session->header->x1)
+			|| !set_int_field(env, obj, klass, "imageY1", (jint)session->header->y1)
+			|| !set_int_field(env, obj, klass, "tileX0", (jint)cstr->tx0)
+			|| !set_int_field(env, obj, klass, "tileY0", (jint)cstr->ty0)
+			|| !set_int_field(env, obj, klass, "tileWidth", (jint)cstr->tdx)
+			|| !set_int_field(env, obj, klass, "tileHeight", (jint)cstr->tdy)
+			|| !set_int_field(env, obj, klass, "numTilesX", (jint)cstr->tw)
+			|| !set_int_field(env, obj, klass, "numTilesY", (jint)cstr->th)
+			|| !set_int_field(env, obj, klass, "numComponents", (jint)session->header->numcomps)
+			|| !set_int_field(env, obj, klass, "componentDx", (jint)session->header->comps[0].dx)
+			|| !set_int_field(env, obj, klass, "componentDy", (jint)session->header->comps[0].dy)
+			|| !set_int_field(env, obj, klass, "bitsPerSample", (jint)session->header->comps[0].prec)
+			|| !set_int_field(env, obj, klass, "numResolutions", (jint)cstr->m_default_tile_info.tccp_info->numresolutions)
+			|| !set_int_field(env, obj, klass, "numQualityLayers", (jint)cstr->m_default_tile_info.numlayers)
+			|| !set_component_fields(env, obj, klass, session->header))
+			break;
+
+		fails = OPJ_FALSE;
+		break;
+	}
+	if (cstr)
+		opj_destroy_cstr_info(&cstr);
+	flush_log_messages(&session->msg_vars);
+	if (fails)
+	{
+		destroy_session(session);
+		return 0;
+	}
+	return (jlong)(intptr_t)session;
+}
 
-					fputs(bar, stderr);
-					fprintf(stderr,"%s:%d:Can show only first component of decodeInfo.image\n"
-						"  components(%d) prec(%d) color_space[%d](%s)\n"
-						"  RECT(%d,%d,%d,%d)\n",__FILE__,__LINE__,decodeInfo.image->numcomps,
-						decodeInfo.image->comps[0].prec,
-						decodeInfo.image->color_space,clr_space(decodeInfo.image->color_space),
-						decodeInfo.image->x0,decodeInfo.image->y0,decodeInfo.image->x1,decodeInfo.image->y1 );
+/**
+decodes the [x0,x1[ x [y0,y1[ reference grid area, already clipped to the image,
+at the given reduction, one tile at a time, into the decoder's Java image.
+*/
+JNIEXPORT jint JNICALL Java_org_openJpeg_OpenJPEGJavaDecoderSession_internalDecode(JNIEnv *env, jobject obj,
+	jlong handle, jobject decoder, jint x0, jint y0, jint x1, jint y1, jint reduction)
+{
+	decode_session_t *session = (decode_session_t*)(intptr_t)handle;
+	opj_image_t *tile = NULL;
+	java_raster_t raster;
+	OPJ_BOOL raster_open = OPJ_FALSE;
+	OPJ_BOOL fails = OPJ_FALSE;
+	jclass klass;
+	OPJ_INT32 dx, dy, ox0, oy0, ox1, oy1;
+	OPJ_UINT32 tx, ty, first_tx, first_ty, last_tx, last_ty;
+	volatile OPJ_INT32 *cancel;
+	jmethodID tile_decoded = NULL;
+	jint tiles_done = 0, tiles_total;
+	jobject listener;
+
+	if (session == NULL || session->broken || x0 >= x1 || y0 >= y1)
+		return -1;
 
-					for(i = 0; i < decodeInfo.image->numcomps; ++i)
-					{
-						fprintf(stderr,"[%d]dx(%d) dy(%d) w(%d) h(%d) signed(%u)\n",i,
-							decodeInfo.image->comps[i].dx ,decodeInfo.image->comps[i].dy,
-							decodeInfo.image->comps[i].w,decodeInfo.image->comps[i].h,
-							decodeInfo.image->comps[i].sgnd);
-					}
-					fputs(bar, stderr);
+	klass = (*env)->GetObjectClass(env, decoder);
+	if (klass == 0 || !attach_logger(env, session, decoder))
+		return -1;
+	cancel = cancel_flag(env, decoder, klass);
+	opj_set_decode_cancel_flag(session->codec, cancel);
 
-					/* 1 component 8 or 16 bpp decodeInfo.image
-					*/
-					grey = decodeInfo.image->comps[0].data;
-					if(decodeInfo.image->comps[0].prec <= 8) 
-					{
-						jmethodID mid;
+	if ((OPJ_UINT32)reduction != session->reduction)
+	{
+		if (!opj_set_decoded_resolution_factor(session->codec, (OPJ_UINT32)reduction))
+		{
+			fprintf(stderr,"%s:%d:\n\topj_set_decoded_resolution_factor failed\n",__FILE__,__LINE__);
+			flush_log_messages(&session->msg_vars);
+			return -1;
+		}
+		session->reduction = (OPJ_UINT32)reduction;
+	}
 
-						/* Allocate JAVA memory:
-						*/
-						mid = (*env)->GetMethodID(decodeInfo.env, klass, "alloc8", "()V");
-						if ( catchAndRelease(&decodeInfo) == -1)
-							return -1;
+	/* area in the coordinates of the reduced first component */
+	dx = (OPJ_INT32)session->header->comps[0].dx;
+	dy = (OPJ_INT32)session->header->comps[0].dy;
+	ox0 = opj_int_ceildivpow2(opj_int_ceildiv(x0, dx), reduction);
+	oy0 = opj_int_ceildivpow2(opj_int_ceildiv(y0, dy), reduction);
+	ox1 = opj_int_ceildivpow2(opj_int_ceildiv(x1, dx), reduction);
+	oy1 = opj_int_ceildivpow2(opj_int_ceildiv(y1, dy), reduction);
+	if (ox0 >= ox1 || oy0 >= oy1)
+		return -1;
 
-						(*env)->CallVoidMethod(decodeInfo.env, obj, mid);
-						if ( catchAndRelease(&decodeInfo) == -1)
-							return -1;
+	first_tx = ((OPJ_UINT32)x0 - session->tx0) / session->tdx;
+	first_ty = ((OPJ_UINT32)y0 - session->ty0) / session->tdy;
+	last_tx = opj_uint_min(((OPJ_UINT32)x1 - 1 - session->tx0) / session->tdx, session->tw - 1);
+	last_ty = opj_uint_min(((OPJ_UINT32)y1 - 1 - session->ty0) / session->tdy, session->th - 1);
+	tiles_total = (jint)((last_tx - first_tx + 1) * (last_ty - first_ty + 1));
 
-						fid = (*env)->GetFieldID(decodeInfo.env, klass,"image8", "[B");
-						if ( catchAndRelease(&decodeInfo) == -1)
-							return -1;
+	/* progress goes to Java as ints, only when someone listens */
+	listener = (*env)->GetObjectField(env, decoder, DECODER_FIELD(env, klass, tile_listener,
+		"tileListener", "Lorg/openJpeg/OpenJPEGJavaDecoder$TileListener;"));
+	if ((*env)->ExceptionCheck(env))
+		return -1;
+	if (listener != NULL)
+	{
+		(*env)->DeleteLocalRef(env, listener);
+		tile_decoded = DECODER_METHOD(env, klass, tile_decoded, "tileDecoded", "(IIIIII)V");
+		if ((*env)->ExceptionCheck(env))
+			return -1;
+	}
 
-						decodeInfo.jba = (*env)->GetObjectField(decodeInfo.env, obj, fid);
-						if ( catchAndRelease(&decodeInfo) == -1)
-							return -1;
+	for (ty = first_ty; ty <= last_ty && !fails; ty++)
+	{
+		for (tx = first_tx; tx <= last_tx && !fails; tx++)
+		{
+			OPJ_INT32 tile_x0, tile_y0, ix0, iy0, ix1, iy1;
 
-						decodeInfo.jbBody = (*env)->GetByteArrayElements(decodeInfo.env, decodeInfo.jba, 0);
-						if ( catchAndRelease(&decodeInfo) == -1)
-							return -1;
+			fails = OPJ_TRUE;
+			/* cancelled between two tiles: the codec can still decode */
+			if (cancel && *cancel)
+				break;
+			tile = opj_image_create0();
+			if (tile == NULL)
+				break;
+			opj_copy_image_header(session->header, tile);
 
-						ptrBBody = decodeInfo.jbBody;
-						for(i=0; i<width*height; i++) 
-						{
-							*ptrBBody++ = *grey++;
-						}
-						/* Replace image8 buffer:
-						*/
-					} 
-					else /* prec[9:16] */
-					{
-						jmethodID mid;
-						int *grey;
-						int ushift = 0, dshift = 0, force16 = 0;
+			if (!opj_get_decoded_tile(session->codec, session->stream, tile, ty * session->tw + tx))
+			{
+				if (!(cancel && *cancel))
+					fprintf(stderr,"%s:%d:\n\topj_get_decoded_tile failed\n",__FILE__,__LINE__);
+				session->broken = OPJ_TRUE;
+				break;
+			}
 
-						grey = decodeInfo.image->comps[0].data;
+			/* keep the ICC profile for the tiles decoded after the first one */
+			if (tile->icc_profile_buf && session->icc_profile_buf == NULL)
+			{
+				session->icc_profile_buf = (OPJ_BYTE*)opj_malloc(tile->icc_profile_len);
+				if (session->icc_profile_buf)
+				{
+					memcpy(session->icc_profile_buf, tile->icc_profile_buf, tile->icc_profile_len);
+					session->icc_profile_len = tile->icc_profile_len;
+				}
+			}
+			else if (tile->icc_profile_buf == NULL && session->icc_profile_buf)
+			{
+				tile->icc_profile_buf = (OPJ_BYTE*)opj_malloc(session->icc_profile_len);
+				if (tile->icc_profile_buf)
+				{
+					memcpy(tile->icc_profile_buf, session->icc_profile_buf, session->icc_profile_len);
+					tile->icc_profile_len = session->icc_profile_len;
+				}
+			}
+			prepare_image(tile);
 
-						/* Allocate JAVA memory:
-						*/
-						mid = (*env)->GetMethodID(decodeInfo.env, klass, "alloc16", "()V");
-						if ( catchAndRelease(&decodeInfo) == -1)
-							return -1;
+			/* the pixel layout is only known once the palette, if any, is applied */
+			if (!raster_open)
+			{
+				if (!set_int_field_id(env, decoder, DECODER_FIELD(env, klass, width, "width", "I"), ox1 - ox0)
+					|| !set_int_field_id(env, decoder, DECODER_FIELD(env, klass, height, "height", "I"), oy1 - oy0)
+					|| !set_int_field_id(env, decoder, DECODER_FIELD(env, klass, bits_per_sample, "bitsPerSample", "I"),
+						(jint)tile->comps[0].prec)
+					|| !set_int_field_id(env, decoder, DECODER_FIELD(env, klass, samples_per_pixel, "samplesPerPixel", "I"),
+						(jint)tile->numcomps))
+					break;
+				if (!open_java_raster(env, decoder, klass, tile, ox1 - ox0, oy1 - oy0, &raster))
+				{
+					close_java_raster(env, &raster);
+					break;
+				}
+				raster_open = OPJ_TRUE;
+			}
 
-						(*env)->CallVoidMethod(decodeInfo.env, obj, mid);
-						if ( catchAndRelease(&decodeInfo) == -1)
-							return -1;
+			tile_x0 = opj_int_ceildivpow2((OPJ_INT32)tile->comps[0].x0, reduction);
+			tile_y0 = opj_int_ceildivpow2((OPJ_INT32)tile->comps[0].y0, reduction);
+			ix0 = opj_int_max(ox0, tile_x0);
+			iy0 = opj_int_max(oy0, tile_y0);
+			ix1 = opj_int_min(ox1, tile_x0 + (OPJ_INT32)tile->comps[0].w);
+			iy1 = opj_int_min(oy1, tile_y0 + (OPJ_INT32)tile->comps[0].h);
+			if (ix0 < ix1 && iy0 < iy1
+				&& !write_java_raster(env, &raster, tile, ix0 - tile_x0, iy0 - tile_y0,
+									  ix1 - ix0, iy1 - iy0, ix0 - ox0, iy0 - oy0))
+				break;
 
-						fid = (*env)->GetFieldID(decodeInfo.env, klass,"image16", "[S");
-						if ( catchAndRelease(&decodeInfo) == -1)
-							return -1;
+			if (tile_decoded != NULL)
+			{
+				/* the written part of the output; empty if the tile missed the area */
+				ix1 = opj_int_max(ix0, ix1);
+				iy1 = opj_int_max(iy0, iy1);
+				(*env)->CallVoidMethod(env, decoder, tile_decoded, ++tiles_done, tiles_total,
+					(jint)(ix0 - ox0), (jint)(iy0 - oy0), (jint)(ix1 - ix0), (jint)(iy1 - iy0));
+				if ((*env)->ExceptionCheck(env))
+					break;
+			}
 
-						decodeInfo.jsa = (*env)->GetObjectField(decodeInfo.env, obj, fid);
-						if ( catchAndRelease(&decodeInfo) == -1)
-							return -1;
+			opj_image_destroy(tile);
+			tile = NULL;
+			fails = OPJ_FALSE;
+		}
+	}
+	if (tile)
+		opj_image_destroy(tile);
+	if (raster_open)
+		close_java_raster(env, &raster);
+	(*env)->DeleteLocalRef(env, klass);
+	flush_log_messages(&session->msg_vars);
+
+	return fails ? -1 : 0;
+}
 
-						decodeInfo.jsBody = (*env)->GetShortArrayElements(decodeInfo.env, decodeInfo.jsa, 0);
-						if ( catchAndRelease(&decodeInfo) == -1)
-							return -1;
+/**
+byte range of one tile-part, found by walking the SOT markers
+*/
+typedef struct tile_part_range
+{
+	OPJ_UINT32 tile;
+	OPJ_OFF_T start;
+	OPJ_OFF_T header_end;
+	OPJ_OFF_T end;
+} tile_part_range_t;
 
-						ptrSBody = decodeInfo.jsBody;
+static OPJ_BOOL read_at(opj_stream_private_t *stream, OPJ_OFF_T pos, OPJ_BYTE *data, OPJ_SIZE_T size, opj_event_mgr_t *manager)
+{
+	return opj_stream_read_seek(stream, pos, manager)
+		&& opj_stream_read_data(stream, data, size, manager) == size;
+}
 
-						for(i=0; i<width*height; i++) 
-						{
-							*ptrSBody++ = *grey++;
-						}
-						/* Replace image16 buffer:
-						*/
-					}
-				}
-				release(&decodeInfo);
-				if(fails)
-					return -1;
+/**
+walks the tile-parts from the first SOT marker. Only the SOT marker segments and
+the marker segment headers of the tile-part headers are read.
+*/
+static tile_part_range_t* walk_tile_parts(opj_stream_private_t *stream, OPJ_OFF_T first_sot,
+										  OPJ_OFF_T codestream_end, OPJ_UINT32 *count)
+{
+	opj_event_mgr_t quiet;
+	tile_part_range_t *parts = NULL, *grown;
+	OPJ_UINT32 capacity = 0;
+	OPJ_OFF_T pos = first_sot;
+	OPJ_BYTE data[12];
+
+	memset(&quiet, 0, sizeof(opj_event_mgr_t));
+	*count = 0;
+	while (pos + 12 <= codestream_end)
+	{
+		tile_part_range_t *part;
+		OPJ_UINT32 psot;
 
-				return 0; /* OK */
-} /* Java_OpenJPEGJavaDecoder_internalDecodeJ2KtoImage() */
+		if (!read_at(stream, pos, data, 12, &quiet) || ((data[0] << 8) | data[1]) != J2K_MS_SOT)
+			break;
+		if (*count == capacity)
+		{
+			capacity = capacity ? 2 * capacity : 64;
+			grown = (tile_part_range_t*)opj_realloc(parts, capacity * sizeof(tile_part_range_t));
+			if (grown == NULL)
+			{
+				fprintf(stderr,"%s:%d: MEMORY OUT\n",__FILE__,__LINE__);
+				opj_free(parts);
+				*count = 0;
+				return NULL;
+			}
+			parts = grown;
+		}
+		part = &parts[(*count)++];
+		part->tile = ((OPJ_UINT32)data[4] << 8) | data[5];
+		part->start = pos;
+		psot = ((OPJ_UINT32)data[6] << 24) | ((OPJ_UINT32)data[7] << 16) | ((OPJ_UINT32)data[8] << 8) | data[9];
+		/* Psot == 0: the last tile-part runs up to the EOC marker */
+		part->end = psot ? pos + (OPJ_OFF_T)psot : codestream_end;
+
+		/* the tile-part header ends with the SOD marker */
+		part->header_end = part->end;
+		pos += 12;
+		while (pos + 4 <= part->end && read_at(stream, pos, data, 4, &quiet))
+		{
+			if (((data[0] << 8) | data[1]) == J2K_MS_SOD)
+			{
+				part->header_end = pos + 2;
+				break;
+			}
+			pos += 2 + ((data[2] << 8) | data[3]);
+		}
+		if (psot == 0)
+			break;
+		pos = part->end;
+	}
+	return parts;
+}
+
+/**
+returns where the codestream starting at soc ends: the end of its jp2c box in a
+JP2 file, the end of the stream for a raw codestream or a last jp2c box.
+*/
+static OPJ_OFF_T codestream_limit(opj_stream_private_t *stream, OPJ_OFF_T soc, OPJ_OFF_T length, opj_event_mgr_t *manager)
+{
+	OPJ_BYTE box[16];
+	OPJ_UINT64 size = 0;
+	OPJ_OFF_T header = 0;
+
+	if (soc >= 8 && read_at(stream, soc - 8, box + 8, 8, manager) && memcmp(box + 12, "jp2c", 4) == 0)
+	{
+		header = 8;
+		size = ((OPJ_UINT32)box[8] << 24) | ((OPJ_UINT32)box[9] << 16) | ((OPJ_UINT32)box[10] << 8) | box[11];
+	}
+	else if (soc >= 16 && read_at(stream, soc - 16, box, 16, manager) && memcmp(box + 4, "jp2c", 4) == 0
+		&& box[0] == 0 && box[1] == 0 && box[2] == 0 && box[3] == 1)
+	{
+		/* extended length */
+		header = 16;
+		size = ((OPJ_UINT64)(((OPJ_UINT32)box[8] << 24) | ((OPJ_UINT32)box[9] << 16) | ((OPJ_UINT32)box[10] << 8) | box[11]) << 32)
+			| (((OPJ_UINT32)box[12] << 24) | ((OPJ_UINT32)box[13] << 16) | ((OPJ_UINT32)box[14] << 8) | box[15]);
+	}
+	/* a size of 0 is a box running to the end of the file */
+	if (size < (OPJ_UINT64)header || size - (OPJ_UINT64)header > (OPJ_UINT64)(length - soc))
+		return length;
+	return soc - header + (OPJ_OFF_T)size;
+}
+
+/**
+builds an org.openJpeg.CodestreamIndex from the main header markers recorded by
+the codec and the tile-parts found by walking the codestream.
+*/
+JNIEXPORT jobject JNICALL Java_org_openJpeg_OpenJPEGJavaDecoderSession_internalGetIndex(JNIEnv *env, jobject obj, jlong handle)
+{
+	decode_session_t *session = (decode_session_t*)(intptr_t)handle;
+	opj_stream_private_t *stream;
+	opj_codestream_index_t *index;
+	opj_event_mgr_t quiet;
+	tile_part_range_t *parts;
+	OPJ_UINT32 i, count, marknum;
+	OPJ_OFF_T resume, length, codestream_end, codestream_size;
+	OPJ_BYTE eoc[2];
+	jint *ints = NULL;
+	jlong *longs = NULL;
+	jintArray marker_types = NULL, marker_lengths = NULL, part_tiles = NULL;
+	jlongArray marker_positions = NULL, part_starts = NULL, part_header_ends = NULL, part_ends = NULL;
+	jclass klass;
+	jmethodID mid;
+	jobject result = NULL;
+
+	if (session == NULL || session->broken)
+		return NULL;
+	index = opj_get_cstr_index(session->codec);
+	if (index == NULL)
+		return NULL;
+
+	memset(&quiet, 0, sizeof(opj_event_mgr_t));
+	stream = (opj_stream_private_t*)session->stream;
+	resume = opj_stream_tell(stream);
+	length = codestream_limit(stream, (OPJ_OFF_T)index->main_head_start,
+		(OPJ_OFF_T)stream->m_user_data_length, &quiet);
+	/* the tile-parts stop at the EOC marker, or at the end of the codestream without one */
+	codestream_end = length;
+	if (length - 2 >= (OPJ_OFF_T)index->main_head_start && read_at(stream, length - 2, eoc, 2, &quiet)
+		&& ((eoc[0] << 8) | eoc[1]) == J2K_MS_EOC)
+		codestream_end = length - 2;
+	codestream_size = length - (OPJ_OFF_T)index->main_head_start;
+
+	parts = walk_tile_parts(stream, index->main_head_end, codestream_end, &count);
+	/* give the codec its stream back where it left it */
+	opj_stream_read_seek(stream, resume, &quiet);
+
+	marknum = index->marker ? index->marknum : 0;
+	ints = (jint*)opj_malloc((marknum + count + 1) * sizeof(jint));
+	longs = (jlong*)opj_malloc((marknum + count + 1) * sizeof(jlong));
+	while (ints && longs)
+	{
+		marker_types = (*env)->NewIntArray(env, (jsize)marknum);
+		marker_lengths = (*env)->NewIntArray(env, (jsize)marknum);
+		marker_positions = (*env)->NewLongArray(env, (jsize)marknum);
+		part_tiles = (*env)->NewIntArray(env, (jsize)count);
+		part_starts = (*env)->NewLongArray(env, (jsize)count);
+		part_header_ends = (*env)->NewLongArray(env, (jsize)count);
+		part_ends = (*env)->NewLongArray(env, (jsize)count);
+		if ((*env)->ExceptionCheck(env))
+			break;
+
+		for (i = 0; i < marknum; i++)
+		{
+			ints[i] = (jint)index->marker[i].type;
+			longs[i] = (jlong)index->marker[i].pos;
+		}
+		(*env)->SetIntArrayRegion(env, marker_types, 0, (jsize)marknum, ints);
+		(*env)->SetLongArrayRegion(env, marker_positions, 0, (jsize)marknum, longs);
+		for (i = 0; i < marknum; i++)
+			ints[i] = (jint)index->marker[i].len;
+		(*env)->SetIntArrayRegion(env, marker_lengths, 0, (jsize)marknum, ints);
+
+		for (i = 0; i < count; i++)
+		{
+			ints[i] = (jint)parts[i].tile;
+			longs[i] = (jlong)parts[i].start;
+		}
+		(*env)->SetIntArrayRegion(env, part_tiles, 0, (jsize)count, ints);
+		(*env)->SetLongArrayRegion(env, part_starts, 0, (jsize)count, longs);
+		for (i = 0; i < count; i++)
+			longs[i] = (jlong)parts[i].header_end;
+		(*env)->SetLongArrayRegion(env, part_header_ends, 0, (jsize)count, longs);
+		for (i = 0; i < count; i++)
+			longs[i] = (jlong)parts[i].end;
+		(*env)->SetLongArrayRegion(env, part_ends, 0, (jsize)count, longs);
+
+		klass = (*env)->FindClass(env, "org/openJpeg/CodestreamIndex");
+		if (klass == NULL)
+			break;
+		mid = (*env)->GetMethodID(env, klass, "<init>", "(JJJ[I[J[II[I[J[J[J)V");
+		if (mid == NULL)
+			break;
+		result = (*env)->NewObject(env, klass, mid,
+			(jlong)index->main_head_start, (jlong)index->main_head_end,
+			(jlong)codestream_size,
+			marker_types, marker_positions, marker_lengths,
+			(jint)(session->tw * session->th),
+			part_tiles, part_starts, part_header_ends, part_ends);
+		(*env)->DeleteLocalRef(env, klass);
+		break;
+	}
+
+	if (marker_types) (*env)->DeleteLocalRef(env, marker_types);
+	if (marker_lengths) (*env)->DeleteLocalRef(env, marker_lengths);
+	if (marker_positions) (*env)->DeleteLocalRef(env, marker_positions);
+	if (part_tiles) (*env)->DeleteLocalRef(env, part_tiles);
+	if (part_starts) (*env)->DeleteLocalRef(env, part_starts);
+	if (part_header_ends) (*env)->DeleteLocalRef(env, part_header_ends);
+	if (part_ends) (*env)->DeleteLocalRef(env, part_ends);
+	if (ints) opj_free(ints);
+	if (longs) opj_free(longs);
+	if (parts) opj_free(parts);
+	opj_destroy_cstr_index(&index);
+	return result;
+}
+
+JNIEXPORT void JNICALL Java_org_openJpeg_OpenJPEGJavaDecoderSession_internalClose(JNIEnv *env, jobject obj, jlong handle)
+{
+	decode_session_t *session = (decode_session_t*)(intptr_t)handle;
+	if (session)
+		destroy_session(session);
+}
 
 /* end OpenJPEGJavaDecoder.c */
 
@@ -10,6 +10,7 @@ extern "C" {
 
 JNIEXPORT jlong JNICALL Java_org_openJpeg_OpenJPEGJavaEncoder_internalDecodeImageToJ2K(JNIEnv *, jobject, jobjectArray);
 JNIEXPORT jint JNICALL Java_org_openJpeg_OpenJPEGJavaDecoder_internalGetDecodeFormat(JNIEnv *env, jobject obj,jobjectArray javaParameters) ;
+JNIEXPORT void JNICALL Java_org_openJpeg_OpenJPEGJavaDecoder_initIDs(JNIEnv *env, jclass klass);
 
 #ifdef __cplusplus
 }
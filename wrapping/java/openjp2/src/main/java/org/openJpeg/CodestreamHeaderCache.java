@@ -0,0 +1,211 @@
+package org.openJpeg;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Parsed codestream headers shared by the readers of a process, so that a
+ * reader opening a file read shortly before by another reader starts with its
+ * properties, and its {@link CodestreamIndex} once one was built, without
+ * parsing the header again.
+ *
+ * A file is identified by its absolute path, its length and its modification
+ * time, so a rewritten file is parsed again. Other inputs are only cached
+ * under a key given by the caller, see
+ * {@link JP2KOpenJpegImageReader#setHeaderCacheKey(Object)}.
+ *
+ * The cache keeps a bounded number of headers, least recently used out
+ * first. The shared cache holds {@value #DEFAULT_MAX_HEADERS} headers unless
+ * the {@value #MAX_HEADERS_PROPERTY} system property says otherwise; 0 turns
+ * it off.
+ */
+public final class CodestreamHeaderCache {
+
+	/** system property giving the number of headers of the shared cache */
+	public static final String MAX_HEADERS_PROPERTY = "org.openJpeg.imageio-openjpeg.headerCacheSize";
+
+	public static final int DEFAULT_MAX_HEADERS = 256;
+
+	private static volatile CodestreamHeaderCache shared = fromProperty();
+
+	private final int maxHeaders;
+
+	/** least recently used first; guarded by itself */
+	private final LinkedHashMap<Object, Header> headers;
+
+	private long hits;
+	private long misses;
+
+	/**
+	 * @param maxHeaders
+	 *            number of headers kept
+	 */
+	public CodestreamHeaderCache(final int maxHeaders) {
+		if (maxHeaders < 1)
+			throw new IllegalArgumentException("The cache must hold at least one header");
+		this.maxHeaders = maxHeaders;
+		headers = new LinkedHashMap<Object, Header>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Object, Header> eldest) {
+				return size() > maxHeaders;
+			}
+		};
+	}
+
+	private static CodestreamHeaderCache fromProperty() {
+		int maxHeaders = DEFAULT_MAX_HEADERS;
+		final String size = System.getProperty(MAX_HEADERS_PROPERTY);
+		if (size != null) {
+			try {
+				maxHeaders = Integer.parseInt(size.trim());
+			} catch (NumberFormatException e) {
+				// keep the default
+			}
+		}
+		return maxHeaders > 0 ? new CodestreamHeaderCache(maxHeaders) : null;
+	}
+
+	/** The cache used by the readers, null if there is none. */
+	public static CodestreamHeaderCache getShared() {
+		return shared;
+	}
+
+	/** Sets the cache used by the readers from now on, null to stop caching. */
+	public static void setShared(CodestreamHeaderCache cache) {
+		shared = cache;
+	}
+
+	/**
+	 * Returns the key of a file as it is now: the same file, rewritten, gets
+	 * another key.
+	 */
+	public static Object fileKey(File file) {
+		final File absolute = file.getAbsoluteFile();
+		return new FileKey(absolute.getPath(), absolute.length(), absolute.lastModified());
+	}
+
+	/** @return the properties of the header, or null if it is not cached */
+	JP2KCodestreamProperties getProperties(Object key) {
+		final Header header = get(key);
+		return header != null ? header.properties : null;
+	}
+
+	/** @return the index of the codestream, or null if none was cached */
+	CodestreamIndex getIndex(Object key) {
+		synchronized (headers) {
+			final Header header = headers.get(key);
+			return header != null ? header.index : null;
+		}
+	}
+
+	private Header get(Object key) {
+		synchronized (headers) {
+			final Header header = headers.get(key);
+			if (header != null)
+				hits++;
+			else
+				misses++;
+			return header;
+		}
+	}
+
+	/**
+	 * Caches the properties of a header. They must not be modified from now
+	 * on.
+	 */
+	void putProperties(Object key, JP2KCodestreamProperties properties) {
+		synchronized (headers) {
+			final Header header = headers.get(key);
+			if (header != null)
+				header.properties = properties;
+			else
+				headers.put(key, new Header(properties));
+		}
+	}
+
+	/** Adds the index of a codestream whose properties are cached. */
+	void putIndex(Object key, CodestreamIndex index) {
+		synchronized (headers) {
+			final Header header = headers.get(key);
+			if (header != null)
+				header.index = index;
+		}
+	}
+
+	/** Drops every header. The counters are kept. */
+	public void clear() {
+		synchronized (headers) {
+			headers.clear();
+		}
+	}
+
+	public int getMaxHeaders() {
+		return maxHeaders;
+	}
+
+	/** Number of headers held right now. */
+	public int size() {
+		synchronized (headers) {
+			return headers.size();
+		}
+	}
+
+	public long getHits() {
+		synchronized (headers) {
+			return hits;
+		}
+	}
+
+	public long getMisses() {
+		synchronized (headers) {
+			return misses;
+		}
+	}
+
+	private static final class Header {
+		JP2KCodestreamProperties properties;
+		CodestreamIndex index;
+
+		Header(JP2KCodestreamProperties properties) {
+			this.properties = properties;
+		}
+	}
+
+	private static final class FileKey {
+		private final String path;
+		private final long length;
+		private final long lastModified;
+
+		FileKey(String path, long length, long lastModified) {
+			this.path = path;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj == this)
+				return true;
+			if (!(obj instanceof FileKey))
+				return false;
+			final FileKey other = (FileKey) obj;
+			return length == other.length && lastModified == other.lastModified
+					&& path.equals(other.path);
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = path.hashCode();
+			hash = 31 * hash + (int) (length ^ (length >>> 32));
+			return 31 * hash + (int) (lastModified ^ (lastModified >>> 32));
+		}
+
+		@Override
+		public String toString() {
+			return path + " (" + length + " bytes, modified " + lastModified + ")";
+		}
+	}
+}
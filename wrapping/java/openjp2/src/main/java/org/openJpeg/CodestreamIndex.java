@@ -0,0 +1,353 @@
+package org.openJpeg;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Byte layout of a codestream: where the main header lies, the markers found
+ * in it, and the byte range of every tile-part. Offsets are absolute, from the
+ * start of the file or buffer the codestream was read from, so that a client
+ * can fetch a tile with a single ranged read.
+ *
+ * An index is obtained from {@link OpenJPEGJavaDecoderSession#getCodestreamIndex()}
+ * and can be stored next to the image in a compact binary form, see
+ * {@link #write(DataOutput)} and {@link #read(DataInput)}.
+ */
+public final class CodestreamIndex {
+
+	/** "OJCI" */
+	private static final int MAGIC = 0x4f4a4349;
+	private static final int VERSION = 1;
+
+	/** a codestream has at most 65535 tiles */
+	private static final int MAX_TILES = 65535;
+
+	private final long mainHeaderStart;
+	private final long mainHeaderEnd;
+	private final long codestreamSize;
+
+	private final int[] markerTypes;
+	private final long[] markerPositions;
+	private final int[] markerLengths;
+
+	private final int numTiles;
+	private final int[] tilePartTiles;
+	private final long[] tilePartStarts;
+	private final long[] tilePartHeaderEnds;
+	private final long[] tilePartEnds;
+
+	/** tile-part indexes of each tile, in codestream order */
+	private final int[][] tileParts;
+
+	/**
+	 * Called by the native side, and by {@link #read(DataInput)}. The arrays
+	 * are owned by the index.
+	 */
+	CodestreamIndex(long mainHeaderStart, long mainHeaderEnd, long codestreamSize,
+			int[] markerTypes, long[] markerPositions, int[] markerLengths,
+			int numTiles, int[] tilePartTiles, long[] tilePartStarts,
+			long[] tilePartHeaderEnds, long[] tilePartEnds) {
+		this.mainHeaderStart = mainHeaderStart;
+		this.mainHeaderEnd = mainHeaderEnd;
+		this.codestreamSize = codestreamSize;
+		this.markerTypes = markerTypes;
+		this.markerPositions = markerPositions;
+		this.markerLengths = markerLengths;
+		this.numTiles = numTiles;
+		this.tilePartTiles = tilePartTiles;
+		this.tilePartStarts = tilePartStarts;
+		this.tilePartHeaderEnds = tilePartHeaderEnds;
+		this.tilePartEnds = tilePartEnds;
+
+		final int[] counts = new int[numTiles];
+		for (int i = 0; i < tilePartTiles.length; i++) {
+			if (tilePartTiles[i] < 0 || tilePartTiles[i] >= numTiles)
+				throw new IllegalArgumentException("Tile-part " + i + " belongs to tile "
+						+ tilePartTiles[i] + ", outside of the " + numTiles + " tiles");
+			counts[tilePartTiles[i]]++;
+		}
+		tileParts = new int[numTiles][];
+		for (int t = 0; t < numTiles; t++)
+			tileParts[t] = new int[counts[t]];
+		Arrays.fill(counts, 0);
+		for (int i = 0; i < tilePartTiles.length; i++)
+			tileParts[tilePartTiles[i]][counts[tilePartTiles[i]]++] = i;
+	}
+
+	/** Offset of the SOC marker. */
+	public long getMainHeaderStart() {
+		return mainHeaderStart;
+	}
+
+	/** Offset of the first SOT marker, just after the main header. */
+	public long getMainHeaderEnd() {
+		return mainHeaderEnd;
+	}
+
+	/** Size of the codestream, from SOC to the end of EOC. */
+	public long getCodestreamSize() {
+		return codestreamSize;
+	}
+
+	/** Number of markers recorded in the main header. */
+	public int getNumMarkers() {
+		return markerTypes.length;
+	}
+
+	/** Marker code, 0xff4f for SOC, 0xff51 for SIZ, ... */
+	public int getMarkerType(int marker) {
+		return markerTypes[marker];
+	}
+
+	public long getMarkerPosition(int marker) {
+		return markerPositions[marker];
+	}
+
+	/** Length of the marker segment, excluding the marker code. */
+	public int getMarkerLength(int marker) {
+		return markerLengths[marker];
+	}
+
+	public int getNumTiles() {
+		return numTiles;
+	}
+
+	/** Number of tile-parts, of all tiles. */
+	public int getNumTileParts() {
+		return tilePartTiles.length;
+	}
+
+	/** Tile the tile-part belongs to. */
+	public int getTilePartTile(int tilePart) {
+		return tilePartTiles[tilePart];
+	}
+
+	/** Offset of the SOT marker of the tile-part. */
+	public long getTilePartStart(int tilePart) {
+		return tilePartStarts[tilePart];
+	}
+
+	/** Offset of the first byte of packet data, just after the SOD marker. */
+	public long getTilePartHeaderEnd(int tilePart) {
+		return tilePartHeaderEnds[tilePart];
+	}
+
+	/** Offset just past the last byte of the tile-part. */
+	public long getTilePartEnd(int tilePart) {
+		return tilePartEnds[tilePart];
+	}
+
+	/**
+	 * @return the indexes of the tile-parts of a tile, in codestream order,
+	 *         empty if the tile is absent from the codestream
+	 */
+	public int[] getTileParts(int tile) {
+		return tileParts[tile].clone();
+	}
+
+	/** Number of bytes of all the tile-parts of a tile. */
+	public long getTileLength(int tile) {
+		long length = 0;
+		for (int tilePart : tileParts[tile])
+			length += tilePartEnds[tilePart] - tilePartStarts[tilePart];
+		return length;
+	}
+
+	/**
+	 * Writes the index. Offsets are stored as variable length deltas, a few
+	 * bytes per tile-part.
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		writeVarLong(out, mainHeaderStart);
+		writeVarLong(out, mainHeaderEnd - mainHeaderStart);
+		writeVarLong(out, codestreamSize);
+
+		writeVarLong(out, markerTypes.length);
+		long previous = mainHeaderStart;
+		for (int i = 0; i < markerTypes.length; i++) {
+			writeVarLong(out, markerTypes[i]);
+			writeVarLong(out, zigZag(markerPositions[i] - previous));
+			writeVarLong(out, markerLengths[i]);
+			previous = markerPositions[i];
+		}
+
+		writeVarLong(out, numTiles);
+		writeVarLong(out, tilePartTiles.length);
+		previous = mainHeaderEnd;
+		for (int i = 0; i < tilePartTiles.length; i++) {
+			writeVarLong(out, tilePartTiles[i]);
+			writeVarLong(out, zigZag(tilePartStarts[i] - previous));
+			writeVarLong(out, tilePartHeaderEnds[i] - tilePartStarts[i]);
+			writeVarLong(out, tilePartEnds[i] - tilePartHeaderEnds[i]);
+			previous = tilePartEnds[i];
+		}
+	}
+
+	/**
+	 * Reads an index written by {@link #write(DataOutput)}. The counts of a
+	 * corrupted index are checked against the length of the input when it is
+	 * known, that is for an {@link ImageInputStream} of known length.
+	 *
+	 * @throws IOException
+	 *             if the data is not an index, or is truncated
+	 */
+	public static CodestreamIndex read(DataInput in) throws IOException {
+		long length = -1;
+		if (in instanceof ImageInputStream) {
+			final ImageInputStream stream = (ImageInputStream) in;
+			if (stream.length() >= 0)
+				length = stream.length() - stream.getStreamPosition();
+		}
+		return read(in, length >= 0 ? length : Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param length
+	 *            number of bytes left in the input: each marker takes 3 bytes
+	 *            at least, and each tile-part 4
+	 */
+	private static CodestreamIndex read(DataInput in, long length) throws IOException {
+		if (in.readInt() != MAGIC)
+			throw new IOException("Not a codestream index");
+		final int version = in.readUnsignedByte();
+		if (version != VERSION)
+			throw new IOException("Unsupported codestream index version " + version);
+		final long mainHeaderStart = readVarLong(in);
+		final long mainHeaderEnd = mainHeaderStart + readVarLong(in);
+		final long codestreamSize = readVarLong(in);
+
+		final int numMarkers = readCount(in, length / 3);
+		final int[] markerTypes = new int[numMarkers];
+		final long[] markerPositions = new long[numMarkers];
+		final int[] markerLengths = new int[numMarkers];
+		long previous = mainHeaderStart;
+		for (int i = 0; i < numMarkers; i++) {
+			markerTypes[i] = (int) readVarLong(in);
+			markerPositions[i] = previous + unZigZag(readVarLong(in));
+			markerLengths[i] = (int) readVarLong(in);
+			previous = markerPositions[i];
+		}
+
+		final int numTiles = readCount(in, MAX_TILES);
+		final int numTileParts = readCount(in, length / 4);
+		final int[] tilePartTiles = new int[numTileParts];
+		final long[] tilePartStarts = new long[numTileParts];
+		final long[] tilePartHeaderEnds = new long[numTileParts];
+		final long[] tilePartEnds = new long[numTileParts];
+		previous = mainHeaderEnd;
+		for (int i = 0; i < numTileParts; i++) {
+			tilePartTiles[i] = (int) readVarLong(in);
+			tilePartStarts[i] = previous + unZigZag(readVarLong(in));
+			tilePartHeaderEnds[i] = tilePartStarts[i] + readVarLong(in);
+			tilePartEnds[i] = tilePartHeaderEnds[i] + readVarLong(in);
+			previous = tilePartEnds[i];
+		}
+		try {
+			return new CodestreamIndex(mainHeaderStart, mainHeaderEnd, codestreamSize,
+					markerTypes, markerPositions, markerLengths, numTiles,
+					tilePartTiles, tilePartStarts, tilePartHeaderEnds, tilePartEnds);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	public byte[] toByteArray() {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				32 + 8 * (markerTypes.length + tilePartTiles.length));
+		try {
+			write(new DataOutputStream(bytes));
+		} catch (IOException e) {
+			// a ByteArrayOutputStream does not throw
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	public static CodestreamIndex fromByteArray(byte[] data) throws IOException {
+		return read(new DataInputStream(new ByteArrayInputStream(data)), data.length);
+	}
+
+	private static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static void writeVarLong(DataOutput out, long value) throws IOException {
+		while ((value & ~0x7fL) != 0) {
+			out.writeByte((int) (value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private static long readVarLong(DataInput in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			final int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed codestream index");
+	}
+
+	/**
+	 * Reads a count of entries, checked before any array is allocated for
+	 * them.
+	 */
+	private static int readCount(DataInput in, long max) throws IOException {
+		final long count = readVarLong(in);
+		if (count > max || count > Integer.MAX_VALUE / 4)
+			throw new IOException("Malformed codestream index: " + count + " entries");
+		return (int) count;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this)
+			return true;
+		if (!(obj instanceof CodestreamIndex))
+			return false;
+		final CodestreamIndex other = (CodestreamIndex) obj;
+		return mainHeaderStart == other.mainHeaderStart
+				&& mainHeaderEnd == other.mainHeaderEnd
+				&& codestreamSize == other.codestreamSize
+				&& numTiles == other.numTiles
+				&& Arrays.equals(markerTypes, other.markerTypes)
+				&& Arrays.equals(markerPositions, other.markerPositions)
+				&& Arrays.equals(markerLengths, other.markerLengths)
+				&& Arrays.equals(tilePartTiles, other.tilePartTiles)
+				&& Arrays.equals(tilePartStarts, other.tilePartStarts)
+				&& Arrays.equals(tilePartHeaderEnds, other.tilePartHeaderEnds)
+				&& Arrays.equals(tilePartEnds, other.tilePartEnds);
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = (int) (mainHeaderStart ^ (mainHeaderStart >>> 32));
+		hash = 31 * hash + (int) (codestreamSize ^ (codestreamSize >>> 32));
+		hash = 31 * hash + numTiles;
+		hash = 31 * hash + Arrays.hashCode(tilePartStarts);
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return "CodestreamIndex[main header " + mainHeaderStart + "-" + mainHeaderEnd
+				+ ", " + markerTypes.length + " markers, " + numTiles + " tiles, "
+				+ tilePartTiles.length + " tile-parts, " + codestreamSize + " bytes]";
+	}
+}
@@ -0,0 +1,45 @@
+package org.openJpeg;
+
+/**
+ * Cancels a decode run by an {@link OpenJPEGJavaDecoderPool} from another
+ * thread, typically when the image is no longer wanted. The decoder running
+ * the decode stops before its next tile or precinct, and releases its native
+ * memory. A cancellation made before the decode starts keeps it from running.
+ *
+ * A cancellation serves one decode.
+ */
+public final class DecodeCancellation {
+
+	private boolean cancelled;
+
+	/** the decoder running the decode, null before and after it */
+	private OpenJPEGJavaDecoder decoder;
+
+	/** Cancels the decode, from any thread. */
+	public synchronized void cancel() {
+		cancelled = true;
+		if (decoder != null)
+			decoder.cancel();
+	}
+
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Binds the decoder about to run the decode.
+	 * 
+	 * @return false if the decode was cancelled already
+	 */
+	synchronized boolean attach(OpenJPEGJavaDecoder decoder) {
+		if (cancelled)
+			return false;
+		this.decoder = decoder;
+		return true;
+	}
+
+	/** Unbinds the decoder, before it goes back to its pool. */
+	synchronized void detach() {
+		decoder = null;
+	}
+}
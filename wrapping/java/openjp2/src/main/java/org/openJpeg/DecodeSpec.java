@@ -0,0 +1,150 @@
+package org.openJpeg;
+
+/**
+ * What one decode request asks for: the tile or the area, the resolution and
+ * the number of quality layers. A spec is immutable, so one instance can be
+ * shared by any number of threads; the with methods return modified copies.
+ *
+ * @see OpenJPEGJavaDecoder#configure(DecodeSpec)
+ * @see OpenJPEGJavaDecoderPool
+ */
+public final class DecodeSpec {
+
+	/** The whole image, at full resolution and with all its quality layers. */
+	public static final DecodeSpec FULL_IMAGE = new DecodeSpec(-1, 0, false, 0, 0, 0, 0, 0);
+
+	private final int tile;
+	private final int reduction;
+	private final boolean hasArea;
+	private final int areaX0;
+	private final int areaY0;
+	private final int areaX1;
+	private final int areaY1;
+	private final int maxQualityLayers;
+
+	private DecodeSpec(int tile, int reduction, boolean hasArea, int areaX0, int areaY0,
+			int areaX1, int areaY1, int maxQualityLayers) {
+		this.tile = tile;
+		this.reduction = reduction;
+		this.hasArea = hasArea;
+		this.areaX0 = areaX0;
+		this.areaY0 = areaY0;
+		this.areaX1 = areaX1;
+		this.areaY1 = areaY1;
+		this.maxQualityLayers = maxQualityLayers;
+	}
+
+	/**
+	 * @param tile
+	 *            raster order index of the only tile to decode, -1 to decode
+	 *            the area, or the whole image
+	 */
+	public DecodeSpec withTile(int tile) {
+		if (tile < -1)
+			throw new IllegalArgumentException("Invalid tile index: " + tile);
+		return new DecodeSpec(tile, reduction, hasArea, areaX0, areaY0, areaX1, areaY1, maxQualityLayers);
+	}
+
+	/**
+	 * @param reduction
+	 *            number of discarded resolution levels, 0 for full resolution
+	 */
+	public DecodeSpec withReduction(int reduction) {
+		if (reduction < 0)
+			throw new IllegalArgumentException("Negative reduction: " + reduction);
+		return new DecodeSpec(tile, reduction, hasArea, areaX0, areaY0, areaX1, areaY1, maxQualityLayers);
+	}
+
+	/**
+	 * Restricts the decode to an area of the full resolution reference grid,
+	 * see {@link OpenJPEGJavaDecoder#setAreaIn(int, int, int, int)}. The area
+	 * is ignored when a tile is set.
+	 */
+	public DecodeSpec withArea(int x0, int y0, int x1, int y1) {
+		if (x0 < 0 || y0 < 0 || x1 <= x0 || y1 <= y0)
+			throw new IllegalArgumentException("Invalid area: (" + x0 + "," + y0 + ")-(" + x1
+					+ "," + y1 + ")");
+		return new DecodeSpec(tile, reduction, true, x0, y0, x1, y1, maxQualityLayers);
+	}
+
+	/**
+	 * @param layers
+	 *            the number of quality layers to decode, 0 to decode them all
+	 */
+	public DecodeSpec withMaxQualityLayers(int layers) {
+		if (layers < 0)
+			throw new IllegalArgumentException("Negative number of quality layers: " + layers);
+		return new DecodeSpec(tile, reduction, hasArea, areaX0, areaY0, areaX1, areaY1, layers);
+	}
+
+	public int getTile() {
+		return tile;
+	}
+
+	public int getReduction() {
+		return reduction;
+	}
+
+	public boolean hasArea() {
+		return hasArea;
+	}
+
+	public int getAreaX0() {
+		return areaX0;
+	}
+
+	public int getAreaY0() {
+		return areaY0;
+	}
+
+	public int getAreaX1() {
+		return areaX1;
+	}
+
+	public int getAreaY1() {
+		return areaY1;
+	}
+
+	public int getMaxQualityLayers() {
+		return maxQualityLayers;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this)
+			return true;
+		if (!(obj instanceof DecodeSpec))
+			return false;
+		final DecodeSpec other = (DecodeSpec) obj;
+		return tile == other.tile && reduction == other.reduction && hasArea == other.hasArea
+				&& areaX0 == other.areaX0 && areaY0 == other.areaY0 && areaX1 == other.areaX1
+				&& areaY1 == other.areaY1 && maxQualityLayers == other.maxQualityLayers;
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = tile;
+		hash = 31 * hash + reduction;
+		hash = 31 * hash + areaX0;
+		hash = 31 * hash + areaY0;
+		hash = 31 * hash + areaX1;
+		hash = 31 * hash + areaY1;
+		return 31 * hash + maxQualityLayers;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder builder = new StringBuilder("DecodeSpec[");
+		if (tile >= 0)
+			builder.append("tile ").append(tile);
+		else if (hasArea)
+			builder.append("area (").append(areaX0).append(',').append(areaY0).append(")-(")
+					.append(areaX1).append(',').append(areaY1).append(')');
+		else
+			builder.append("whole image");
+		builder.append(", reduction ").append(reduction);
+		if (maxQualityLayers > 0)
+			builder.append(", ").append(maxQualityLayers).append(" layers");
+		return builder.append(']').toString();
+	}
+}
@@ -0,0 +1,301 @@
+package org.openJpeg;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decoded tiles shared by all the readers and tiled images of a process, so
+ * that the hot tiles of a file are decoded once. A tile is identified by its
+ * file, whose length and modification time are part of the key, and by how it
+ * was decoded: tile index, reduction, quality layers and component layout.
+ *
+ * The cache holds at most a given number of bytes of pixels. Beyond it, the
+ * least recently used tiles are evicted. Lookups and insertions go through a
+ * concurrent map and take no lock; an eviction runs on one thread at a time,
+ * and the other threads do not wait for it.
+ *
+ * Cached rasters are shared: they must not be modified.
+ *
+ * The shared cache is off by default. It is turned on by setting the
+ * {@value #MAX_BYTES_PROPERTY} system property to a number of bytes, or by
+ * {@link #setShared(DecodedTileCache)}.
+ */
+public final class DecodedTileCache {
+
+	/** system property giving the size, in bytes, of the shared cache */
+	public static final String MAX_BYTES_PROPERTY = "org.openJpeg.imageio-openjpeg.tileCacheBytes";
+
+	/** layout of the tiles of a {@link JP2KTiledImage}: the pixels of {@link OpenJPEGJavaDecoder#decode()} */
+	public static final int IMAGE_TILE = 0;
+
+	/** layout of the rasters of {@link JP2KOpenJpegImageReader#readTileRaster(int, int, int)} */
+	public static final int TILE_RASTER = 1;
+
+	/** layout of the tiles of a planar {@link JP2KTiledImage}: one band per component */
+	public static final int PLANAR_IMAGE_TILE = 2;
+
+	private static volatile DecodedTileCache shared = fromProperty();
+
+	private final long maxBytes;
+
+	/** an eviction brings the cache down to this size, so that it does not run on every insertion */
+	private final long evictedBytes;
+
+	private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+
+	private final AtomicLong bytes = new AtomicLong();
+
+	private final ReentrantLock evicting = new ReentrantLock();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param maxBytes
+	 *            number of bytes of pixels the cache may hold
+	 */
+	public DecodedTileCache(long maxBytes) {
+		if (maxBytes <= 0)
+			throw new IllegalArgumentException("The cache size must be positive: " + maxBytes);
+		this.maxBytes = maxBytes;
+		evictedBytes = maxBytes - maxBytes / 8;
+	}
+
+	private static DecodedTileCache fromProperty() {
+		final String size = System.getProperty(MAX_BYTES_PROPERTY);
+		if (size == null)
+			return null;
+		try {
+			final long maxBytes = Long.parseLong(size.trim());
+			return maxBytes > 0 ? new DecodedTileCache(maxBytes) : null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/** The cache used by the readers and tiled images, null if there is none. */
+	public static DecodedTileCache getShared() {
+		return shared;
+	}
+
+	/**
+	 * Sets the cache used by the readers and tiled images from now on, null
+	 * to stop caching.
+	 */
+	public static void setShared(DecodedTileCache cache) {
+		shared = cache;
+	}
+
+	/**
+	 * @return the cached tile, or null if it is not cached
+	 */
+	public Raster get(Key key) {
+		final Entry entry = entries.get(key);
+		if (entry == null) {
+			misses.increment();
+			return null;
+		}
+		entry.lastAccess = System.nanoTime();
+		hits.increment();
+		return entry.raster;
+	}
+
+	/**
+	 * Caches a decoded tile, then evicts the least recently used tiles if the
+	 * cache is over its size. A tile larger than the whole cache is not
+	 * cached.
+	 */
+	public void put(Key key, Raster raster) {
+		final long weight = weight(raster);
+		if (weight > maxBytes)
+			return;
+		final Entry previous = entries.put(key, new Entry(raster, weight));
+		final long total = bytes.addAndGet(previous != null ? weight - previous.weight : weight);
+		if (total > maxBytes)
+			evict();
+	}
+
+	/** Drops every cached tile. The counters are kept. */
+	public void clear() {
+		for (Map.Entry<Key, Entry> e : entries.entrySet())
+			remove(e.getKey(), e.getValue());
+	}
+
+	private void evict() {
+		// one thread evicts, the others go on
+		if (!evicting.tryLock())
+			return;
+		try {
+			if (bytes.get() <= maxBytes)
+				return;
+			final List<Candidate> candidates = new ArrayList<Candidate>(entries.size());
+			for (Map.Entry<Key, Entry> e : entries.entrySet())
+				candidates.add(new Candidate(e.getKey(), e.getValue()));
+			Collections.sort(candidates);
+			for (Candidate candidate : candidates) {
+				if (bytes.get() <= evictedBytes)
+					break;
+				if (remove(candidate.key, candidate.entry))
+					evictions.increment();
+			}
+		} finally {
+			evicting.unlock();
+		}
+	}
+
+	private boolean remove(Key key, Entry entry) {
+		if (!entries.remove(key, entry))
+			return false;
+		bytes.addAndGet(-entry.weight);
+		return true;
+	}
+
+	/** a tile and its last access time, read once: lookups keep changing it */
+	private static final class Candidate implements Comparable<Candidate> {
+		final Key key;
+		final Entry entry;
+		final long lastAccess;
+
+		Candidate(Key key, Entry entry) {
+			this.key = key;
+			this.entry = entry;
+			lastAccess = entry.lastAccess;
+		}
+
+		/** least recently used first */
+		public int compareTo(Candidate other) {
+			return Long.signum(lastAccess - other.lastAccess);
+		}
+	}
+
+	/** Number of bytes held by the pixels of a raster. */
+	static long weight(Raster raster) {
+		final DataBuffer buffer = raster.getDataBuffer();
+		return (long) buffer.getSize() * buffer.getNumBanks()
+				* (DataBuffer.getDataTypeSize(buffer.getDataType()) / 8);
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/** Number of bytes of pixels held right now. */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/** Number of tiles held right now. */
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "DecodedTileCache[" + size() + " tiles, " + getBytes() + "/" + maxBytes + " bytes, "
+				+ getHits() + " hits, " + getMisses() + " misses, " + getEvictions() + " evictions]";
+	}
+
+	private static final class Entry {
+		final Raster raster;
+		final long weight;
+		volatile long lastAccess = System.nanoTime();
+
+		Entry(Raster raster, long weight) {
+			this.raster = raster;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * Identifies a decoded tile. The length and modification time of the file
+	 * are part of the key, so that a rewritten file does not hit the tiles of
+	 * its previous content.
+	 */
+	public static final class Key {
+		private final String path;
+		private final long length;
+		private final long lastModified;
+		private final int tile;
+		private final int reduction;
+		private final int qualityLayers;
+		private final int layout;
+
+		/**
+		 * @param path
+		 *            absolute path of the file
+		 * @param tile
+		 *            raster order index of the codestream tile
+		 * @param reduction
+		 *            number of discarded resolution levels
+		 * @param qualityLayers
+		 *            number of decoded quality layers, 0 for all of them
+		 * @param layout
+		 *            {@link #IMAGE_TILE}, {@link #PLANAR_IMAGE_TILE} or
+		 *            {@link #TILE_RASTER}
+		 */
+		public Key(String path, long length, long lastModified, int tile, int reduction,
+				int qualityLayers, int layout) {
+			if (path == null)
+				throw new IllegalArgumentException("path is null");
+			this.path = path;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.tile = tile;
+			this.reduction = reduction;
+			this.qualityLayers = qualityLayers;
+			this.layout = layout;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj == this)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			final Key other = (Key) obj;
+			return tile == other.tile && reduction == other.reduction
+					&& qualityLayers == other.qualityLayers && layout == other.layout
+					&& length == other.length && lastModified == other.lastModified
+					&& path.equals(other.path);
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = path.hashCode();
+			hash = 31 * hash + (int) (length ^ (length >>> 32));
+			hash = 31 * hash + (int) (lastModified ^ (lastModified >>> 32));
+			hash = 31 * hash + tile;
+			hash = 31 * hash + reduction;
+			hash = 31 * hash + qualityLayers;
+			return 31 * hash + layout;
+		}
+
+		@Override
+		public String toString() {
+			return "Key[" + path + ", tile " + tile + ", reduction " + reduction + ", "
+					+ (qualityLayers > 0 ? qualityLayers + " layers" : "all layers")
+					+ (layout == TILE_RASTER ? ", raster" : layout == PLANAR_IMAGE_TILE ? ", planar" : "") + "]";
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package org.openJpeg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Feeds the native decoder from an ImageInputStream. The native stream calls
+ * {@link #read(int)} and {@link #seek(long)} whenever the codec needs data, so
+ * only the bytes the decode touches are read, through one direct buffer reused
+ * by every read.
+ *
+ * Positions are relative to the stream position when the source was created,
+ * which is where the codestream must start. The stream must not be moved by
+ * anybody else while a decode runs.
+ */
+final class ImageInputStreamSource {
+
+	/** the native stream buffers its reads in chunks of this size */
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private final ImageInputStream stream;
+
+	/** stream position of the first codestream byte */
+	private final long start;
+
+	/** number of codestream bytes, read by the native side */
+	private final long length;
+
+	/** receives the bytes of each read, read in place by the native side */
+	private final ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+
+	private final byte[] transfer = new byte[CHUNK_SIZE];
+
+	/** first failure of the stream, the native side only sees an end of stream */
+	private IOException failure;
+
+	/**
+	 * @throws IOException
+	 *             if the stream length cannot be found
+	 */
+	ImageInputStreamSource(ImageInputStream stream) throws IOException {
+		this.stream = stream;
+		start = stream.getStreamPosition();
+		long end = stream.length();
+		if (end < 0) {
+			// the codec needs the length: walk the stream once to find it
+			// (skipBytes does not stop at the end of every stream)
+			end = start;
+			int read;
+			while ((read = stream.read(transfer)) > 0)
+				end += read;
+			stream.seek(start);
+		}
+		length = end - start;
+	}
+
+	/**
+	 * Called by the native side: reads at most the given number of bytes into
+	 * the chunk buffer.
+	 *
+	 * @return the number of bytes read, -1 at the end of the stream or on
+	 *         failure
+	 */
+	int read(int count) {
+		try {
+			final int read = stream.read(transfer, 0, Math.min(count, CHUNK_SIZE));
+			if (read > 0) {
+				chunk.clear();
+				chunk.put(transfer, 0, read);
+			}
+			return read;
+		} catch (IOException e) {
+			fail(e);
+			return -1;
+		}
+	}
+
+	/**
+	 * Called by the native side: moves to a codestream position.
+	 */
+	boolean seek(long position) {
+		try {
+			stream.seek(start + position);
+			return true;
+		} catch (IOException e) {
+			fail(e);
+			return false;
+		}
+	}
+
+	private void fail(IOException e) {
+		if (failure == null)
+			failure = e;
+	}
+
+	/**
+	 * @return the first read or seek failure, null if there was none
+	 */
+	IOException getFailure() {
+		return failure;
+	}
+
+	/** Number of codestream bytes, from the start position on. */
+	long getLength() {
+		return length;
+	}
+
+	/** The buffer holding the bytes of the last {@link #read(int)}. */
+	ByteBuffer getChunk() {
+		return chunk;
+	}
+
+	/** Moves the stream back to the start of the codestream. */
+	void rewind() throws IOException {
+		stream.seek(start);
+	}
+}
@@ -25,12 +25,24 @@ class JP2KCodestreamProperties {
 	/** the tile image height */
 	private int tileHeight;
 
+	/** column of the upper-left corner of tile (0,0), zero or negative */
+	private int tileGridXOffset;
+
+	/** row of the upper-left corner of tile (0,0), zero or negative */
+	private int tileGridYOffset;
+
 	/** sample model for the whole image */
 	private SampleModel sampleModel = null;
 
 	/** color model */
 	private ColorModel colorModel = null;
 
+	/** sample model of the planar decode, one band per component; null if not available */
+	private SampleModel planarSampleModel = null;
+
+	/** color model of the planar decode; null if not available */
+	private ColorModel planarColorModel = null;
+
 	/** max number of available quality layers */
 	private int maxAvailableQualityLayers = -1;
 
@@ -42,10 +54,22 @@ class JP2KCodestreamProperties {
 
 	private boolean isSigned;
 
+	/** signedness of each component */
+	private boolean[] componentSigned;
+
+	/** true if the image type is the planar one */
+	private boolean planar;
+
 	private int[] bitsPerComponent;
 
 	private int[] componentIndexes;
 
+	/** image width at each reduction, full resolution first */
+	private int[] resolutionWidths;
+
+	/** image height at each reduction, full resolution first */
+	private int[] resolutionHeights;
+
 	protected JP2KCodestreamProperties() {
 
 	}
@@ -106,6 +130,22 @@ class JP2KCodestreamProperties {
 		this.tileHeight = tileHeight;
 	}
 
+	public int getTileGridXOffset() {
+		return tileGridXOffset;
+	}
+
+	public void setTileGridXOffset(int tileGridXOffset) {
+		this.tileGridXOffset = tileGridXOffset;
+	}
+
+	public int getTileGridYOffset() {
+		return tileGridYOffset;
+	}
+
+	public void setTileGridYOffset(int tileGridYOffset) {
+		this.tileGridYOffset = tileGridYOffset;
+	}
+
 	public SampleModel getSampleModel() {
 		return sampleModel;
 	}
@@ -122,6 +162,22 @@ class JP2KCodestreamProperties {
 		this.colorModel = cm;
 	}
 
+	public SampleModel getPlanarSampleModel() {
+		return planarSampleModel;
+	}
+
+	public void setPlanarSampleModel(SampleModel planarSampleModel) {
+		this.planarSampleModel = planarSampleModel;
+	}
+
+	public ColorModel getPlanarColorModel() {
+		return planarColorModel;
+	}
+
+	public void setPlanarColorModel(ColorModel planarColorModel) {
+		this.planarColorModel = planarColorModel;
+	}
+
 	public int getMaxAvailableQualityLayers() {
 		return maxAvailableQualityLayers;
 	}
@@ -155,6 +211,23 @@ class JP2KCodestreamProperties {
 		this.isSigned = isSigned;
 	}
 
+	public boolean[] getComponentSigned() {
+		return componentSigned != null ? componentSigned.clone()
+				: componentSigned;
+	}
+
+	public void setComponentSigned(boolean[] componentSigned) {
+		this.componentSigned = componentSigned;
+	}
+
+	public boolean isPlanar() {
+		return planar;
+	}
+
+	public void setPlanar(boolean planar) {
+		this.planar = planar;
+	}
+
 	public int[] getBitsPerComponent() {
 		return bitsPerComponent != null ? bitsPerComponent.clone()
 				: bitsPerComponent;
@@ -173,4 +246,22 @@ class JP2KCodestreamProperties {
 		this.componentIndexes = componentIndexes;
 	}
 
+	public int[] getResolutionWidths() {
+		return resolutionWidths != null ? resolutionWidths.clone()
+				: resolutionWidths;
+	}
+
+	public void setResolutionWidths(int[] resolutionWidths) {
+		this.resolutionWidths = resolutionWidths;
+	}
+
+	public int[] getResolutionHeights() {
+		return resolutionHeights != null ? resolutionHeights.clone()
+				: resolutionHeights;
+	}
+
+	public void setResolutionHeights(int[] resolutionHeights) {
+		this.resolutionHeights = resolutionHeights;
+	}
+
 }
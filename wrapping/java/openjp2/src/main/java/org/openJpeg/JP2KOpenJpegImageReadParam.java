@@ -7,6 +7,45 @@ import javax.imageio.ImageTypeSpecifier;
 
 public class JP2KOpenJpegImageReadParam extends ImageReadParam {
 
+    /** maximum number of quality layers to decode, 0 decodes them all */
+    private int maxQualityLayers = 0;
+
+    /** true to read one band per component */
+    private boolean planarOutput = false;
+
+    /**
+     * Limits the read to the first quality layers of the codestream, which is
+     * much faster for previews and thumbnails of multi-layer images.
+     * 
+     * @param maxQualityLayers
+     *            the number of layers to decode, 0 to decode them all
+     */
+    public void setMaxQualityLayers(int maxQualityLayers) {
+        if (maxQualityLayers < 0)
+            throw new IllegalArgumentException("Negative number of quality layers: " + maxQualityLayers);
+        this.maxQualityLayers = maxQualityLayers;
+    }
+
+    public int getMaxQualityLayers() {
+        return maxQualityLayers;
+    }
+
+    /**
+     * Reads the image in its planar layout: one band per component, each
+     * holding the samples of its component as decoded, at full precision.
+     * The image then has the sample and color models of the planar image
+     * type of the reader, see
+     * {@link JP2KOpenJpegImageReader#getImageTypes(int)}. Images without a
+     * planar type are read as usual.
+     */
+    public void setPlanarOutput(boolean planarOutput) {
+        this.planarOutput = planarOutput;
+    }
+
+    public boolean isPlanarOutput() {
+        return planarOutput;
+    }
+
     public Object clone() throws CloneNotSupportedException {
         final JP2KOpenJpegImageReadParam retVal = new JP2KOpenJpegImageReadParam();
         retVal.setController(this.getController());
@@ -25,6 +64,8 @@ public class JP2KOpenJpegImageReadParam extends ImageReadParam {
         retVal.setSourceSubsampling(getSourceXSubsampling(),
                 getSourceYSubsampling(), getSubsamplingXOffset(),
                 getSubsamplingYOffset());
+        retVal.setMaxQualityLayers(getMaxQualityLayers());
+        retVal.setPlanarOutput(isPlanarOutput());
         return retVal;
     }
 
@@ -43,6 +84,10 @@ public class JP2KOpenJpegImageReadParam extends ImageReadParam {
         final ImageTypeSpecifier type = param.getDestinationType();
         if (type != null)
         	setDestinationType(type);
+        if (param instanceof JP2KOpenJpegImageReadParam) {
+            setMaxQualityLayers(((JP2KOpenJpegImageReadParam) param).getMaxQualityLayers());
+            setPlanarOutput(((JP2KOpenJpegImageReadParam) param).isPlanarOutput());
+        }
 
     }
 }
@@ -1,9 +1,32 @@
 package org.openJpeg;
 
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -12,8 +35,10 @@ import javax.imageio.ImageReader;
 import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
 
 import org.codecCentral.imageio.generic.GenericImageReader;
+import org.codecCentral.imageio.generic.Utils;
 
 public class JP2KOpenJpegImageReader extends GenericImageReader {
 
@@ -26,14 +51,43 @@ public class JP2KOpenJpegImageReader extends GenericImageReader {
 		}
 	}
 
+	/** decoded tiles kept by each image returned by readAsRenderedImage */
+	private static final int MAX_CACHED_TILES = 32;
+
+	/** smallest side of the default thumbnails */
+	public static final int DEFAULT_THUMBNAIL_MIN_SIZE = 32;
+
+	/**
+	 * set org.openJpeg.imageio-openjpeg.mmap to true to read files through a
+	 * memory mapping: a file truncated while mapped crashes the JVM, and on
+	 * Windows it cannot be replaced until the mapping is collected
+	 */
+	private static final boolean MEMORY_MAPPED_INPUT = Boolean.getBoolean("org.openJpeg.imageio-openjpeg.mmap");
+
 	private boolean isRawSource;
 	private final List<JP2KCodestreamProperties> multipleCodestreams = new ArrayList<JP2KCodestreamProperties>();
 
+	/** key of the input in the header cache, given by the caller */
+	private Object headerCacheKey;
+
+	/** key the header of the input was looked up with, null if it was not */
+	private Object resolvedHeaderKey;
+
+	/** byte layout of the input codestream, read on demand */
+	private CodestreamIndex codestreamIndex;
+
+	/** thumbnails are the reduced resolutions at least this large on both sides */
+	private int thumbnailMinSize = DEFAULT_THUMBNAIL_MIN_SIZE;
+
+	/** quality layers decoded for the thumbnails, 0 for all of them */
+	private int thumbnailQualityLayers = 0;
+
 	protected JP2KOpenJpegImageReader(ImageReaderSpi originatingProvider) {
 		super(originatingProvider);
 		
 		decoder = new OpenJPEGJavaDecoder();
-
+		// region reads on large files seek a lot: read them through a mapping if asked to
+		((OpenJPEGJavaDecoder) decoder).setMemoryMappedInput(MEMORY_MAPPED_INPUT);
 	}
 
 
@@ -44,8 +98,7 @@ public class JP2KOpenJpegImageReader extends GenericImageReader {
 	 *            index of the selected image
 	 */
 	public int getHeight(int imageIndex) throws IOException {
-		checkImageIndex(imageIndex);
-		return multipleCodestreams.get(imageIndex).getHeight();
+		return getCodestreamProperties(imageIndex).getHeight();
 	}
 
 	/**
@@ -55,8 +108,7 @@ public class JP2KOpenJpegImageReader extends GenericImageReader {
 	 *            index of the selected image
 	 */
 	public int getWidth(int imageIndex) throws IOException {
-		checkImageIndex(imageIndex);
-		return multipleCodestreams.get(imageIndex).getWidth();
+		return getCodestreamProperties(imageIndex).getWidth();
 	}
 
 	/**
@@ -70,7 +122,7 @@ public class JP2KOpenJpegImageReader extends GenericImageReader {
 	 * @see javax.imageio.ImageReader#getImageMetadata(int)
 	 */
 	public IIOMetadata getImageMetadata(int imageIndex) throws IOException {
-		return new JP2KImageMetadata(multipleCodestreams.get(imageIndex));
+		return new JP2KImageMetadata(getCodestreamProperties(imageIndex));
 	}
 
 	/**
@@ -93,7 +145,13 @@ public class JP2KOpenJpegImageReader extends GenericImageReader {
 	 * <code>ImageTypeSpecifiers</code>s. At least one legal image type will be
 	 * returned. This implementation simply returns an
 	 * <code>ImageTypeSpecifier</code> set in compliance with the property of
-	 * the dataset contained within the underlying data source.
+	 * the dataset contained within the underlying data source, followed, when
+	 * the components all have the same size and there are at most 4 of them,
+	 * by the planar type: one band per component, at full precision, in the
+	 * bank layout the native decoder writes. Color images deeper than 8 bits
+	 * or signed only have the planar type. The planar type is read by
+	 * setting it as destination type, or through
+	 * {@link JP2KOpenJpegImageReadParam#setPlanarOutput(boolean)}.
 	 * 
 	 * @param imageIndex
 	 *            the index of the image to be retrieved.
@@ -105,29 +163,942 @@ public class JP2KOpenJpegImageReader extends GenericImageReader {
 	 */
 	public Iterator<ImageTypeSpecifier> getImageTypes(int imageIndex)
 			throws IOException {
-		checkImageIndex(imageIndex);
 		final List<ImageTypeSpecifier> l = new java.util.ArrayList<ImageTypeSpecifier>();
-		final JP2KCodestreamProperties codestreamP = multipleCodestreams
-				.get(imageIndex);
-
-		// Setting SampleModel and ColorModel for the whole image
-		// if (codestreamP.getColorModel() == null ||
-		// codestreamP.getSampleModel() == null) {
-		// try {
-		// initializeSampleModelAndColorModel(codestreamP);
-		// } catch (KduException kdue) {
-		// throw new RuntimeException(
-		// "Error while setting sample and color model", kdue);
-		// }
-		// }
+		final JP2KCodestreamProperties codestreamP = getCodestreamProperties(imageIndex);
 
 		final ImageTypeSpecifier imageType = new ImageTypeSpecifier(
 				codestreamP.getColorModel(), codestreamP.getSampleModel());
 		l.add(imageType);
+		if (codestreamP.getPlanarSampleModel() != null && !codestreamP.isPlanar())
+			l.add(new ImageTypeSpecifier(codestreamP.getPlanarColorModel(),
+					codestreamP.getPlanarSampleModel()));
 		return l.iterator();
 	}
 
 
+	/**
+	 * Reads the image. A source region is decoded natively: only the tiles
+	 * and code-blocks it overlaps are decoded, and the returned image is
+	 * exactly the requested window, intersected with the image bounds.
+	 * 
+	 * Source subsampling is served by discarding resolution levels: the image
+	 * is decoded at the largest reduction whose factor, 2^reduction, divides
+	 * both subsampling factors, and only the remaining factor is applied by
+	 * picking pixels of the reduced image.
+	 * 
+	 * A {@link JP2KOpenJpegImageReadParam} can also limit the number of decoded
+	 * quality layers.
+	 * 
+	 * When the param has a destination image, the pixels are written into it,
+	 * at the destination offset, and the destination is returned. They are
+	 * decoded straight into its raster when its layout is the one of the
+	 * decode (packed RGB ints, one gray band, or one bank per component), the
+	 * whole output fits in it and no band selection or pixel picking is
+	 * needed. Otherwise they are decoded aside, then copied once into the
+	 * selected destination bands, clipped to the destination.
+	 * 
+	 * A planar read, see {@link #getImageTypes(int)}, returns an image whose
+	 * bands wrap the component planes the native decoder filled, without any
+	 * packing or copy.
+	 * 
+	 * An {@link #abort()} stops the decode before its next tile or precinct.
+	 * The read then returns the destination of the param, partly written, or
+	 * null.
+	 * 
+	 * Progress listeners hear about each decoded codestream tile. Update
+	 * listeners get the region of each tile once its pixels are in the
+	 * returned image, unless the read picks pixels out of the decode.
+	 * 
+	 * @see javax.imageio.ImageReader#read(int, javax.imageio.ImageReadParam)
+	 */
+	public BufferedImage read(int imageIndex, ImageReadParam param)
+			throws IOException {
+		startRead();
+		final int maxQualityLayers = maxQualityLayers(param);
+		final OpenJPEGJavaDecoder readDecoder = (OpenJPEGJavaDecoder) decoder;
+		readDecoder.setMaxQualityLayers(maxQualityLayers);
+		final boolean planar = isPlanarRead(imageIndex, param);
+		// the generic path has no tile progress to report
+		final boolean listening = progressListeners != null || updateListeners != null;
+		if (!planar && !listening && (param == null || (param.getSourceRegion() == null && maxQualityLayers == 0
+				&& param.getSourceXSubsampling() == 1 && param.getSourceYSubsampling() == 1
+				&& param.getDestination() == null)))
+			return super.read(imageIndex, param);
+		if (param == null)
+			param = getDefaultReadParam();
+		checkImageIndex(imageIndex);
+		final BufferedImage destination = param.getDestination();
+
+		final OpenJPEGJavaDecoderSession session = openSession(readDecoder);
+		if (session == null)
+			return readWithoutSession(imageIndex, param);
+		readDecoder.setPlanarOutput(planar);
+		processImageStarted(imageIndex);
+		final ReadProgress progress = listening ? new ReadProgress(readDecoder, false) : null;
+		readDecoder.setTileListener(progress);
+		try {
+			// clipped to the image, subsampling offsets applied
+			final Rectangle region = getSourceRegion(param, session.getWidth(), session.getHeight());
+			if (region.isEmpty())
+				throw new IllegalArgumentException(
+						"The source region does not intersect the image");
+			final int xSubsampling = param.getSourceXSubsampling();
+			final int ySubsampling = param.getSourceYSubsampling();
+			final int reduction = subsamplingReduction(imageIndex, session, xSubsampling, ySubsampling);
+			if (LOGGER.isLoggable(Level.FINE))
+				LOGGER.fine("Decoding source region " + region + " at reduction " + reduction);
+
+			final boolean decodesOutput = param.getSourceBands() == null && param.getDestinationBands() == null
+					&& decodesOutput(session, region, reduction, xSubsampling, ySubsampling);
+			if (progress != null && destination != null)
+				progress.updateImage(destination, param.getDestinationOffset());
+			if (destination != null && decodesOutput
+					&& decodeIntoDestination(imageIndex, param, session, region, reduction)) {
+				if (abortRequested())
+					processReadAborted();
+				else
+					processImageComplete();
+				return destination;
+			}
+			// the updates go to the image being decoded, if it is the one returned
+			if (progress != null)
+				progress.updateDecoded(destination == null && decodesOutput,
+						planar ? getCodestreamProperties(imageIndex) : null);
+
+			final Rectangle decoded = session.decodePixels(region, reduction);
+			if (decoded == null) {
+				if (abortRequested()) {
+					processReadAborted();
+					return destination;
+				}
+				if (session.getStreamFailure() != null)
+					throw session.getStreamFailure();
+				throw new IOException("Unable to decode the source region " + region);
+			}
+			BufferedImage image = session.getDecoder().createBufferedImage();
+			if (planar)
+				image = withPlanarColorModel(image, getCodestreamProperties(imageIndex));
+			if (xSubsampling != 1 || ySubsampling != 1)
+				image = subsample(image, decoded, region, xSubsampling, ySubsampling, reduction,
+						session.reducedX(session.getImageX0(), 0), session.reducedY(session.getImageY0(), 0));
+			if (destination != null) {
+				copyToDestination(image.getRaster(), param);
+				image = destination;
+			}
+			processImageComplete();
+			return image;
+		} finally {
+			readDecoder.setTileListener(null);
+			readDecoder.setPlanarOutput(false);
+			session.close();
+		}
+	}
+
+	/**
+	 * Reads the image through the generic decode, for inputs no session can
+	 * be opened on, then applies the source region, subsampling and
+	 * destination of the param to the whole image. The quality layers are
+	 * those set on the decoder.
+	 */
+	private BufferedImage readWithoutSession(int imageIndex, ImageReadParam param) throws IOException {
+		BufferedImage image = super.read(imageIndex, null);
+		if (image == null)
+			return param.getDestination();
+		final Rectangle region = getSourceRegion(param, image.getWidth(), image.getHeight());
+		if (region.isEmpty())
+			throw new IllegalArgumentException("The source region does not intersect the image");
+		image = subsample(image, new Rectangle(0, 0, image.getWidth(), image.getHeight()), region,
+				param.getSourceXSubsampling(), param.getSourceYSubsampling(), 0, 0, 0);
+		if (param.getDestination() == null)
+			return image;
+		copyToDestination(image.getRaster(), param);
+		return param.getDestination();
+	}
+
+	/**
+	 * Tells whether the image is read planar: it is its only image type, or
+	 * the param asks for it, either through
+	 * {@link JP2KOpenJpegImageReadParam#setPlanarOutput(boolean)} or as
+	 * destination type, and the image has one.
+	 */
+	private boolean isPlanarRead(int imageIndex, ImageReadParam param) throws IOException {
+		if (getCodestreamProperties(imageIndex).isPlanar())
+			return true;
+		if (param == null)
+			return false;
+		final ImageTypeSpecifier type = param.getDestinationType();
+		if (!(param instanceof JP2KOpenJpegImageReadParam
+				&& ((JP2KOpenJpegImageReadParam) param).isPlanarOutput())
+				&& !(type != null && type.getSampleModel() instanceof BandedSampleModel))
+			return false;
+		final SampleModel planar = getCodestreamProperties(imageIndex).getPlanarSampleModel();
+		return planar != null && (type == null || !(type.getSampleModel() instanceof BandedSampleModel)
+				|| (type.getSampleModel().getDataType() == planar.getDataType()
+						&& type.getSampleModel().getNumBands() == planar.getNumBands()));
+	}
+
+	/**
+	 * Decodes the region straight into the destination image of the param, if
+	 * the decode output can be written there as is.
+	 * 
+	 * @return false if nothing was decoded: the destination does not fit
+	 * @throws IOException
+	 *             if the decode failed, unless it was aborted
+	 */
+	private boolean decodeIntoDestination(int imageIndex, ImageReadParam param,
+			OpenJPEGJavaDecoderSession session, Rectangle region, int reduction) throws IOException {
+		final int xSubsampling = param.getSourceXSubsampling();
+		final int ySubsampling = param.getSourceYSubsampling();
+		if (param.getSourceBands() != null || param.getDestinationBands() != null
+				|| !decodesOutput(session, region, reduction, xSubsampling, ySubsampling))
+			return false;
+		final int width = (region.width + xSubsampling - 1) / xSubsampling;
+		final int height = (region.height + ySubsampling - 1) / ySubsampling;
+
+		final WritableRaster raster = param.getDestination().getRaster();
+		final Point offset = param.getDestinationOffset();
+		if (offset.x < 0 || offset.y < 0 || offset.x + width > raster.getWidth()
+				|| offset.y + height > raster.getHeight())
+			return false;
+		final OpenJPEGJavaDecoder destinationDecoder = session.getDecoder();
+		final boolean planar = destinationDecoder.isPlanarOutput();
+		if (!setDestination(destinationDecoder, getCodestreamProperties(imageIndex), session, raster,
+				raster.getMinX() + offset.x, raster.getMinY() + offset.y))
+			return false;
+		try {
+			if (session.decodePixels(region, reduction) == null && !abortRequested()) {
+				if (session.getStreamFailure() != null)
+					throw session.getStreamFailure();
+				throw new IOException("Unable to decode the source region " + region);
+			}
+		} finally {
+			destinationDecoder.clearDestination();
+			destinationDecoder.setPlanarOutput(planar);
+		}
+		return true;
+	}
+
+	/**
+	 * Tells whether the window decoded for the region is the read output
+	 * itself, without any pixel picking.
+	 */
+	private static boolean decodesOutput(OpenJPEGJavaDecoderSession session, Rectangle region,
+			int reduction, int xSubsampling, int ySubsampling) {
+		if (xSubsampling != 1 << reduction || ySubsampling != 1 << reduction)
+			return false;
+		final Rectangle window = session.reducedWindow(region, reduction);
+		return window.x == (session.reducedX(session.getImageX0(), 0) + region.x) >> reduction
+				&& window.y == (session.reducedY(session.getImageY0(), 0) + region.y) >> reduction
+				&& window.width == (region.width + xSubsampling - 1) / xSubsampling
+				&& window.height == (region.height + ySubsampling - 1) / ySubsampling;
+	}
+
+	/**
+	 * Points the decoder at the pixels of a raster, from the given position,
+	 * if the raster holds them the way the decode produces them: packed RGB
+	 * ints, one gray band, or one bank per component.
+	 * 
+	 * @return false if the raster layout does not match
+	 */
+	private static boolean setDestination(OpenJPEGJavaDecoder decoder, JP2KCodestreamProperties properties,
+			OpenJPEGJavaDecoderSession session, WritableRaster raster, int x, int y) {
+		final SampleModel sampleModel = raster.getSampleModel();
+		final DataBuffer buffer = raster.getDataBuffer();
+		final int sx = x - raster.getSampleModelTranslateX();
+		final int sy = y - raster.getSampleModelTranslateY();
+		final int dataType = properties.getDataBufferType();
+
+		if (dataType == DataBuffer.TYPE_INT && !decoder.isPlanarOutput()) {
+			// packed (A)RGB; opaque pixels get an alpha of 255, which RGB rasters ignore
+			if (!(sampleModel instanceof SinglePixelPackedSampleModel)
+					|| buffer.getDataType() != DataBuffer.TYPE_INT)
+				return false;
+			final SinglePixelPackedSampleModel packed = (SinglePixelPackedSampleModel) sampleModel;
+			final int[] masks = packed.getBitMasks();
+			final boolean hasAlpha = properties.getNumComponents() == 2 || properties.getNumComponents() == 4;
+			if (masks.length < 3 || masks[0] != 0x00ff0000 || masks[1] != 0x0000ff00
+					|| masks[2] != 0x000000ff || (masks.length == 4 && masks[3] != 0xff000000)
+					|| (masks.length == 3 && hasAlpha))
+				return false;
+			decoder.setDestination(buffer, buffer.getOffset() + packed.getOffset(sx, sy),
+					packed.getScanlineStride());
+			return true;
+		}
+		if (!(sampleModel instanceof ComponentSampleModel))
+			return false;
+		final ComponentSampleModel components = (ComponentSampleModel) sampleModel;
+		if (components.getPixelStride() != 1)
+			return false;
+		final int[] banks = components.getBankIndices();
+		final int[] bandOffsets = components.getBandOffsets();
+		final int[] bufferOffsets = buffer.getOffsets();
+
+		if (!decoder.isPlanarOutput() && sampleModel.getNumBands() == 1
+				&& properties.getNumComponents() == 1 && banks[0] == 0
+				&& (buffer.getDataType() == dataType || (dataType == DataBuffer.TYPE_USHORT
+						&& buffer.getDataType() == DataBuffer.TYPE_SHORT))) {
+			decoder.setDestination(buffer, bufferOffsets[0] + components.getOffset(sx, sy, 0),
+					components.getScanlineStride());
+			return true;
+		}
+
+		// one bank per component, all placed alike; a planar read turns any other layout down
+		final int numComponents = properties.getNumComponents();
+		if (!(sampleModel instanceof BandedSampleModel) || sampleModel.getNumBands() != numComponents
+				|| properties.getPlanarSampleModel() == null
+				|| buffer.getDataType() != properties.getPlanarSampleModel().getDataType())
+			return false;
+		for (int b = 0; b < numComponents; b++)
+			if (banks[b] != b || bandOffsets[b] != bandOffsets[0] || bufferOffsets[b] != bufferOffsets[0])
+				return false;
+		decoder.setPlanarOutput(true);
+		decoder.setDestination(buffer, bufferOffsets[0] + components.getOffset(sx, sy, 0),
+				components.getScanlineStride());
+		return true;
+	}
+
+	/**
+	 * Copies decoded pixels into the destination image of the param, at its
+	 * offset and into its destination bands, clipped to the destination.
+	 */
+	private static void copyToDestination(Raster decoded, ImageReadParam param) {
+		final int[] sourceBands = param.getSourceBands();
+		final int[] destinationBands = param.getDestinationBands();
+		Raster source = decoded;
+		if (sourceBands != null)
+			source = source.createChild(source.getMinX(), source.getMinY(), source.getWidth(),
+					source.getHeight(), source.getMinX(), source.getMinY(), sourceBands);
+		WritableRaster target = param.getDestination().getRaster();
+		if (destinationBands != null)
+			target = target.createWritableChild(target.getMinX(), target.getMinY(), target.getWidth(),
+					target.getHeight(), target.getMinX(), target.getMinY(), destinationBands);
+		if (source.getNumBands() != target.getNumBands())
+			throw new IllegalArgumentException("The decoded image has " + source.getNumBands()
+					+ " bands, the destination " + target.getNumBands());
+		final Point offset = param.getDestinationOffset();
+		target.setRect(target.getMinX() + offset.x - source.getMinX(),
+				target.getMinY() + offset.y - source.getMinY(), source);
+	}
+
+	/**
+	 * Every reduced resolution of the codestream whose sides are at least
+	 * {@link #getThumbnailMinSize()} pixels is a thumbnail, the largest one
+	 * first: thumbnail i is the image at reduction i + 1, half the size of
+	 * thumbnail i - 1. A thumbnail only reads and decodes the lowest
+	 * resolution levels, which makes it very cheap.
+	 */
+	public boolean readerSupportsThumbnails() {
+		return true;
+	}
+
+	public int getNumThumbnails(int imageIndex) throws IOException {
+		final JP2KCodestreamProperties properties = getCodestreamProperties(imageIndex);
+		final int[] widths = properties.getResolutionWidths();
+		final int[] heights = properties.getResolutionHeights();
+		int thumbnails = 0;
+		while (thumbnails + 1 < widths.length && widths[thumbnails + 1] >= thumbnailMinSize
+				&& heights[thumbnails + 1] >= thumbnailMinSize)
+			thumbnails++;
+		return thumbnails;
+	}
+
+	public int getThumbnailWidth(int imageIndex, int thumbnailIndex) throws IOException {
+		checkThumbnailIndex(imageIndex, thumbnailIndex);
+		return getCodestreamProperties(imageIndex).getResolutionWidths()[thumbnailIndex + 1];
+	}
+
+	public int getThumbnailHeight(int imageIndex, int thumbnailIndex) throws IOException {
+		checkThumbnailIndex(imageIndex, thumbnailIndex);
+		return getCodestreamProperties(imageIndex).getResolutionHeights()[thumbnailIndex + 1];
+	}
+
+	/**
+	 * Decodes a thumbnail: the whole image at reduction thumbnailIndex + 1,
+	 * limited to {@link #getThumbnailQualityLayers()} quality layers if set.
+	 */
+	public BufferedImage readThumbnail(int imageIndex, int thumbnailIndex) throws IOException {
+		startRead();
+		checkThumbnailIndex(imageIndex, thumbnailIndex);
+		final int reduction = thumbnailIndex + 1;
+		final OpenJPEGJavaDecoder thumbnailDecoder = (OpenJPEGJavaDecoder) decoder;
+		thumbnailDecoder.setMaxQualityLayers(thumbnailQualityLayers);
+		final JP2KCodestreamProperties properties = getCodestreamProperties(imageIndex);
+		processThumbnailStarted(imageIndex, thumbnailIndex);
+		final OpenJPEGJavaDecoderSession session = openSession(thumbnailDecoder);
+		if (session == null)
+			throw new IOException("Unable to read the codestream header");
+		thumbnailDecoder.setPlanarOutput(properties.isPlanar());
+		if (progressListeners != null || updateListeners != null) {
+			final ReadProgress progress = new ReadProgress(thumbnailDecoder, true);
+			progress.updateDecoded(true, properties.isPlanar() ? properties : null);
+			thumbnailDecoder.setTileListener(progress);
+		}
+		final BufferedImage thumbnail;
+		try {
+			if (session.decodeResolution(reduction) != 0) {
+				if (abortRequested()) {
+					processReadAborted();
+					return null;
+				}
+				if (session.getStreamFailure() != null)
+					throw session.getStreamFailure();
+				throw new IOException("Unable to decode the thumbnail at reduction " + reduction);
+			}
+			thumbnail = properties.isPlanar()
+					? withPlanarColorModel(thumbnailDecoder.createBufferedImage(), properties)
+					: thumbnailDecoder.createBufferedImage();
+		} finally {
+			thumbnailDecoder.setTileListener(null);
+			thumbnailDecoder.setPlanarOutput(false);
+			session.close();
+		}
+		processThumbnailComplete();
+		return thumbnail;
+	}
+
+	/**
+	 * Gives a planar image the color model of the image type, which knows the
+	 * precision of each component. A decode whose planes do not match the
+	 * image type, like a palette expanded to RGB, is returned as is.
+	 */
+	private static BufferedImage withPlanarColorModel(BufferedImage image,
+			JP2KCodestreamProperties properties) {
+		final ColorModel colorModel = properties.getPlanarColorModel();
+		final WritableRaster raster = image.getRaster();
+		if (colorModel == null || !colorModel.isCompatibleRaster(raster))
+			return image;
+		return new BufferedImage(colorModel, raster, false, null);
+	}
+
+	/**
+	 * Reports the tiles of a session decode to the progress and update
+	 * listeners of the read, on the decoding thread.
+	 */
+	private final class ReadProgress implements OpenJPEGJavaDecoder.TileListener {
+		private final OpenJPEGJavaDecoder decoder;
+		private final boolean thumbnail;
+
+		/** receives the updates; null until the decoded image is wrapped */
+		private BufferedImage image;
+		private int offsetX;
+		private int offsetY;
+		/** true if the decoded pixels are those of the returned image */
+		private boolean updates;
+		/** the planar color model to wrap the decoded image with, if any */
+		private JP2KCodestreamProperties planarProperties;
+
+		ReadProgress(OpenJPEGJavaDecoder decoder, boolean thumbnail) {
+			this.decoder = decoder;
+			this.thumbnail = thumbnail;
+		}
+
+		/** Sends the updates to an image the decode writes into, from the given offset. */
+		void updateImage(BufferedImage destination, Point offset) {
+			image = destination;
+			offsetX = offset.x;
+			offsetY = offset.y;
+			updates = true;
+		}
+
+		/**
+		 * Sends the updates to the image wrapping the output arrays of the
+		 * decoder, if it is the one returned.
+		 */
+		void updateDecoded(boolean returned, JP2KCodestreamProperties planarProperties) {
+			image = null;
+			offsetX = 0;
+			offsetY = 0;
+			updates = returned;
+			this.planarProperties = planarProperties;
+		}
+
+		public void tileDecoded(int tilesDone, int tilesTotal, int x, int y, int width, int height) {
+			final float percentage = 100f * tilesDone / tilesTotal;
+			if (thumbnail)
+				processThumbnailProgress(percentage);
+			else
+				processImageProgress(percentage);
+			if (updateListeners == null || !updates || width <= 0 || height <= 0)
+				return;
+			if (image == null) {
+				// the output arrays exist from the first tile on
+				image = decoder.createBufferedImage();
+				if (image == null)
+					return;
+				if (planarProperties != null)
+					image = withPlanarColorModel(image, planarProperties);
+			}
+			if (thumbnail)
+				processThumbnailUpdate(image, offsetX + x, offsetY + y, width, height, 1, 1, null);
+			else
+				processImageUpdate(image, offsetX + x, offsetY + y, width, height, 1, 1, null);
+		}
+	}
+
+	private void checkThumbnailIndex(int imageIndex, int thumbnailIndex) throws IOException {
+		final int thumbnails = getNumThumbnails(imageIndex);
+		if (thumbnailIndex < 0 || thumbnailIndex >= thumbnails)
+			throw new IndexOutOfBoundsException("Thumbnail index " + thumbnailIndex
+					+ " is outside of [0," + thumbnails + "[");
+	}
+
+	/**
+	 * Sets the size under which reduced resolutions are not offered as
+	 * thumbnails.
+	 * 
+	 * @param minSize
+	 *            smallest width and height of a thumbnail, in pixels
+	 */
+	public void setThumbnailMinSize(int minSize) {
+		if (minSize < 1)
+			throw new IllegalArgumentException("Invalid thumbnail size: " + minSize);
+		thumbnailMinSize = minSize;
+	}
+
+	public int getThumbnailMinSize() {
+		return thumbnailMinSize;
+	}
+
+	/**
+	 * Limits the thumbnail decodes to the first quality layers, which are
+	 * usually enough at such sizes.
+	 * 
+	 * @param layers
+	 *            the number of layers to decode, 0 to decode them all
+	 */
+	public void setThumbnailQualityLayers(int layers) {
+		if (layers < 0)
+			throw new IllegalArgumentException("Negative number of quality layers: " + layers);
+		thumbnailQualityLayers = layers;
+	}
+
+	public int getThumbnailQualityLayers() {
+		return thumbnailQualityLayers;
+	}
+
+	/**
+	 * Returns a {@link JP2KTiledImage} whose tiles are decoded on demand, one
+	 * codestream tile at a time, so that the full raster is never allocated.
+	 * A subsampling of 2^n in both directions is served by the n-th
+	 * resolution. The image keeps the input open until it is disposed: the
+	 * reader input must not be changed or used meanwhile.
+	 * 
+	 * Source regions, other subsamplings, inputs without native session
+	 * support and pixel layouts that are not the decode output are read at
+	 * once, through {@link #read(int, ImageReadParam)}. No tile is decoded
+	 * before it is requested: a decode failure is thrown by
+	 * {@link JP2KTiledImage#getTile(int, int)}.
+	 */
+	public RenderedImage readAsRenderedImage(int imageIndex, ImageReadParam param)
+			throws IOException {
+		final int xSubsampling = param != null ? param.getSourceXSubsampling() : 1;
+		final int ySubsampling = param != null ? param.getSourceYSubsampling() : 1;
+		if ((param != null && param.getSourceRegion() != null) || xSubsampling != ySubsampling
+				|| Integer.bitCount(xSubsampling) != 1)
+			return read(imageIndex, param);
+		final JP2KCodestreamProperties properties = getCodestreamProperties(imageIndex);
+
+		final OpenJPEGJavaDecoder tileDecoder = new OpenJPEGJavaDecoder();
+		tileDecoder.setMemoryMappedInput(MEMORY_MAPPED_INPUT);
+		tileDecoder.setMaxQualityLayers(maxQualityLayers(param));
+		final OpenJPEGJavaDecoderSession session = openSession(tileDecoder);
+		if (session == null)
+			return read(imageIndex, param);
+		final int reduction = subsamplingReduction(imageIndex, session, xSubsampling, ySubsampling);
+		if (1 << reduction != xSubsampling) {
+			session.close();
+			return read(imageIndex, param);
+		}
+
+		final boolean planar = isPlanarRead(imageIndex, param);
+		tileDecoder.setPlanarOutput(planar);
+		final ColorModel colorModel = planar ? properties.getPlanarColorModel() : properties.getColorModel();
+		final SampleModel sampleModel = planar ? properties.getPlanarSampleModel() : properties.getSampleModel();
+		// the tiles are decoded in place: their layout must be the decode output
+		boolean fits = colorModel != null && sampleModel != null && (!planar || sameComponentSize(session));
+		if (fits) {
+			fits = setDestination(tileDecoder, properties, session,
+					Raster.createWritableRaster(sampleModel.createCompatibleSampleModel(1, 1), null), 0, 0);
+			tileDecoder.clearDestination();
+			tileDecoder.setPlanarOutput(planar);
+		}
+		if (!fits) {
+			session.close();
+			if (LOGGER.isLoggable(Level.FINE))
+				LOGGER.fine("Tiled read not available, reading at once");
+			return read(imageIndex, param);
+		}
+		return new JP2KTiledImage(session, reduction, colorModel, sampleModel, MAX_CACHED_TILES);
+	}
+
+	/**
+	 * Reads the image on a decode thread of the given decoder, see
+	 * {@link #read(int, ImageReadParam)}. The calling thread, typically a
+	 * virtual thread, does not run the native decode. The reader must not be
+	 * used until the future completes. Cancelling the future aborts the read.
+	 * 
+	 * @return the image; the future fails with the exception of the read, or
+	 *         with a RejectedExecutionException if the decoder queue is full
+	 */
+	public CompletableFuture<BufferedImage> readAsync(final int imageIndex,
+			final ImageReadParam param, OpenJPEGJavaAsyncDecoder asyncDecoder) {
+		return asyncDecoder.submit(new Callable<BufferedImage>() {
+			public BufferedImage call() throws IOException {
+				return read(imageIndex, param);
+			}
+		}, new Runnable() {
+			public void run() {
+				abort();
+			}
+		});
+	}
+
+	/**
+	 * Requests the current read to stop, from any thread. On top of the
+	 * ImageReader abort flag, the native decode is cancelled: it stops before
+	 * its next tile or precinct and releases its native memory, so that an
+	 * unwanted read stops taking CPU at once.
+	 */
+	public void abort() {
+		super.abort();
+		((OpenJPEGJavaDecoder) decoder).cancel();
+	}
+
+	/** Starts a read: an abort requested before it does not apply to it. */
+	private void startRead() {
+		clearAbortRequest();
+		((OpenJPEGJavaDecoder) decoder).clearCancel();
+	}
+
+	/**
+	 * Reads the samples of the image as the codestream holds them, without
+	 * any color conversion: one band per component, in a banded raster of
+	 * unsigned bytes, unsigned shorts, signed shorts or ints, the narrowest
+	 * type holding every component. Components are neither packed into ARGB
+	 * ints nor dropped. The source region, subsampling and bands of the param
+	 * apply as in {@link #read(int, ImageReadParam)}, its destination settings
+	 * are ignored.
+	 * 
+	 * Images whose components differ in size, which a banded raster cannot
+	 * hold, are read through {@link #read(int, ImageReadParam)}.
+	 * 
+	 * @return the raster, or null if the read was aborted
+	 */
+	public Raster readRaster(int imageIndex, ImageReadParam param) throws IOException {
+		startRead();
+		checkImageIndex(imageIndex);
+		final OpenJPEGJavaDecoder planarDecoder = (OpenJPEGJavaDecoder) decoder;
+		planarDecoder.setMaxQualityLayers(maxQualityLayers(param));
+		final OpenJPEGJavaDecoderSession session = openSession(planarDecoder);
+		if (session == null)
+			return rasterOf(read(imageIndex, param), null);
+		Raster raster = null;
+		planarDecoder.setPlanarOutput(true);
+		try {
+			final Rectangle region = getSourceRegion(param, session.getWidth(), session.getHeight());
+			if (region.isEmpty())
+				throw new IllegalArgumentException(
+						"The source region does not intersect the image");
+			final int xSubsampling = param != null ? param.getSourceXSubsampling() : 1;
+			final int ySubsampling = param != null ? param.getSourceYSubsampling() : 1;
+			final int reduction = subsamplingReduction(imageIndex, session, xSubsampling, ySubsampling);
+			final Rectangle decoded = sameComponentSize(session) ? session.decodePixels(region, reduction) : null;
+			if (decoded != null) {
+				raster = planarDecoder.createPlanarRaster(null);
+				final WritableRaster picked = subsample(raster, decoded, region, xSubsampling, ySubsampling,
+						reduction, session.reducedX(session.getImageX0(), 0),
+						session.reducedY(session.getImageY0(), 0));
+				if (picked != null)
+					raster = picked;
+			} else if (session.getStreamFailure() != null) {
+				throw session.getStreamFailure();
+			}
+		} finally {
+			planarDecoder.setPlanarOutput(false);
+			session.close();
+		}
+		if (raster == null && abortRequested()) {
+			processReadAborted();
+			return null;
+		}
+		if (raster == null) {
+			// components of different sizes, or a palette
+			if (LOGGER.isLoggable(Level.FINE))
+				LOGGER.fine("Planar read not available, reading the image");
+			return rasterOf(read(imageIndex, param), null);
+		}
+		final int[] bands = param != null ? param.getSourceBands() : null;
+		if (bands == null)
+			return raster;
+		return raster.createChild(0, 0, raster.getWidth(), raster.getHeight(), 0, 0, bands);
+	}
+
+	/**
+	 * @param bounds
+	 *            where the raster is placed, null to leave it at 0,0
+	 * @return the raster of an image read, or null if the read was aborted
+	 */
+	private static Raster rasterOf(BufferedImage image, Rectangle bounds) {
+		if (image == null)
+			return null;
+		if (bounds == null)
+			return image.getRaster();
+		return image.getRaster().createTranslatedChild(bounds.x, bounds.y);
+	}
+
+	/**
+	 * Reads a tile of the image, like {@link #readRaster(int, ImageReadParam)}
+	 * reads the image. The tile is decoded on its own: only its codestream
+	 * tile is read and decoded. The raster is placed at the tile position in
+	 * the image, clipped to the image.
+	 * 
+	 * When a shared {@link DecodedTileCache} is set and the input is a file,
+	 * the tile is looked up there first, and added to it once decoded. The
+	 * raster is then shared, and must not be modified.
+	 * 
+	 * @return the raster, or null if the read was aborted
+	 */
+	public Raster readTileRaster(int imageIndex, int tileX, int tileY) throws IOException {
+		startRead();
+		final JP2KCodestreamProperties properties = getCodestreamProperties(imageIndex);
+		final Rectangle bounds = tileBounds(properties, tileX, tileY);
+		final DecodedTileCache cache = DecodedTileCache.getShared();
+		final File file = cache != null ? inputFile() : null;
+		DecodedTileCache.Key cacheKey = null;
+		if (file != null) {
+			final int tileIndex = tileY * numTiles(properties.getWidth(), properties.getTileGridXOffset(),
+					properties.getTileWidth()) + tileX;
+			cacheKey = new DecodedTileCache.Key(file.getAbsolutePath(), file.length(), file.lastModified(),
+					tileIndex, 0, 0, DecodedTileCache.TILE_RASTER);
+			final Raster cached = cache.get(cacheKey);
+			if (cached != null)
+				return cached;
+		}
+		final Raster raster = decodeTileRaster(imageIndex, tileX, tileY, bounds);
+		if (cacheKey != null && raster != null)
+			cache.put(cacheKey, raster);
+		return raster;
+	}
+
+	private Raster decodeTileRaster(int imageIndex, int tileX, int tileY, Rectangle bounds)
+			throws IOException {
+		final OpenJPEGJavaDecoder planarDecoder = (OpenJPEGJavaDecoder) decoder;
+		planarDecoder.setMaxQualityLayers(0);
+		final OpenJPEGJavaDecoderSession session = openSession(planarDecoder);
+		if (session == null)
+			return rasterOf(readTile(imageIndex, tileX, tileY), bounds);
+		Raster raster = null;
+		planarDecoder.setPlanarOutput(true);
+		try {
+			if (sameComponentSize(session)
+					&& session.decodeTile(tileY * session.getNumTilesX() + tileX, 0) == 0)
+				raster = planarDecoder.createPlanarRaster(bounds.getLocation());
+			else if (session.getStreamFailure() != null)
+				throw session.getStreamFailure();
+		} finally {
+			planarDecoder.setPlanarOutput(false);
+			session.close();
+		}
+		if (raster == null && abortRequested()) {
+			processReadAborted();
+			return null;
+		}
+		if (raster == null)
+			return rasterOf(readTile(imageIndex, tileX, tileY), bounds);
+		return raster;
+	}
+
+	/**
+	 * Reads a tile of the image, decoding its codestream tile only.
+	 */
+	public BufferedImage readTile(int imageIndex, int tileX, int tileY) throws IOException {
+		final ImageReadParam param = getDefaultReadParam();
+		param.setSourceRegion(tileBounds(getCodestreamProperties(imageIndex), tileX, tileY));
+		return read(imageIndex, param);
+	}
+
+	public boolean canReadRaster(int imageIndex) throws IOException {
+		return true;
+	}
+
+	/**
+	 * Returns the pixels of a tile of the image grid, which follows the
+	 * codestream tiles, clipped to the image.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the tile is outside of the tile grid
+	 */
+	private static Rectangle tileBounds(JP2KCodestreamProperties properties, int tileX, int tileY) {
+		final int tileWidth = properties.getTileWidth();
+		final int tileHeight = properties.getTileHeight();
+		final int gridX = properties.getTileGridXOffset();
+		final int gridY = properties.getTileGridYOffset();
+		final int numTilesX = numTiles(properties.getWidth(), gridX, tileWidth);
+		final int numTilesY = numTiles(properties.getHeight(), gridY, tileHeight);
+		if (tileX < 0 || tileX >= numTilesX || tileY < 0 || tileY >= numTilesY)
+			throw new IllegalArgumentException("Tile (" + tileX + "," + tileY
+					+ ") is outside of the " + numTilesX + "x" + numTilesY + " tile grid");
+		return new Rectangle(gridX + tileX * tileWidth, gridY + tileY * tileHeight, tileWidth, tileHeight)
+				.intersection(new Rectangle(0, 0, properties.getWidth(), properties.getHeight()));
+	}
+
+	private static int numTiles(int size, int gridOffset, int tileSize) {
+		return (size - gridOffset + tileSize - 1) / tileSize;
+	}
+
+	/** Whether the decoded components can share one banded raster. */
+	private static boolean sameComponentSize(OpenJPEGJavaDecoderSession session) {
+		final int[] dx = session.getComponentSubsamplingX();
+		final int[] dy = session.getComponentSubsamplingY();
+		for (int i = 1; i < dx.length; i++)
+			if (dx[i] != dx[0] || dy[i] != dy[0])
+				return false;
+		return true;
+	}
+
+	private static int maxQualityLayers(ImageReadParam param) {
+		return param instanceof JP2KOpenJpegImageReadParam
+				? ((JP2KOpenJpegImageReadParam) param).getMaxQualityLayers() : 0;
+	}
+
+	/**
+	 * Returns the largest reduction whose factor divides both subsampling
+	 * factors, within the resolution levels of the codestream.
+	 */
+	private int subsamplingReduction(int imageIndex, OpenJPEGJavaDecoderSession session,
+			int xSubsampling, int ySubsampling) {
+		int levels = session.getNumResolutions() - 1;
+		if (imageIndex < multipleCodestreams.size()) {
+			final JP2KCodestreamProperties properties = multipleCodestreams.get(imageIndex);
+			levels = Math.min(levels, properties.getSourceDWTLevels());
+			final int maxFactor = properties.getMaxSupportedSubSamplingFactor();
+			while (maxFactor > 0 && levels > 0 && (1 << levels) > maxFactor)
+				levels--;
+		}
+		int reduction = 0;
+		while (reduction < levels && xSubsampling % (2 << reduction) == 0
+				&& ySubsampling % (2 << reduction) == 0)
+			reduction++;
+		return reduction;
+	}
+
+	/**
+	 * Picks, in an image decoded at the given reduction, the pixels of the
+	 * subsampled source region. Returns the image itself when the reduction
+	 * already did all the subsampling.
+	 */
+	private static BufferedImage subsample(BufferedImage image, Rectangle decoded,
+			Rectangle region, int xSubsampling, int ySubsampling, int reduction,
+			int originX, int originY) {
+		final WritableRaster target = subsample(image.getRaster(), decoded, region,
+				xSubsampling, ySubsampling, reduction, originX, originY);
+		if (target == null)
+			return image;
+		return new BufferedImage(image.getColorModel(), target,
+				image.isAlphaPremultiplied(), null);
+	}
+
+	/**
+	 * Picks, in a raster decoded at the given reduction, the pixels of the
+	 * subsampled source region. Returns null when the reduction already did
+	 * all the subsampling.
+	 * 
+	 * @param decoded
+	 *            bounds of the image, in pixels of the reduced first component
+	 * @param originX
+	 *            first column of the full resolution image, on the first
+	 *            component
+	 * @param originY
+	 *            first row of the full resolution image, on the first
+	 *            component
+	 */
+	private static WritableRaster subsample(Raster source, Rectangle decoded,
+			Rectangle region, int xSubsampling, int ySubsampling, int reduction,
+			int originX, int originY) {
+		final int width = (region.width + xSubsampling - 1) / xSubsampling;
+		final int height = (region.height + ySubsampling - 1) / ySubsampling;
+		final int[] columns = new int[width];
+		final int[] rows = new int[height];
+		boolean identity = width == decoded.width && height == decoded.height;
+		for (int i = 0; i < width; i++) {
+			columns[i] = Math.min(Math.max(((originX + region.x + i * xSubsampling) >> reduction) - decoded.x, 0),
+					decoded.width - 1);
+			identity &= columns[i] == i;
+		}
+		for (int j = 0; j < height; j++) {
+			rows[j] = Math.min(Math.max(((originY + region.y + j * ySubsampling) >> reduction) - decoded.y, 0),
+					decoded.height - 1);
+			identity &= rows[j] == j;
+		}
+		if (identity)
+			return null;
+
+		final WritableRaster target = source.createCompatibleWritableRaster(width, height);
+		Object pixel = null;
+		for (int j = 0; j < height; j++) {
+			for (int i = 0; i < width; i++) {
+				pixel = source.getDataElements(columns[i], rows[j], pixel);
+				target.setDataElements(i, j, pixel);
+			}
+		}
+		return target;
+	}
+
+	/**
+	 * Returns the file the input designates, or null if it is not a file.
+	 */
+	private File inputFile() {
+		if (input instanceof File)
+			return (File) input;
+		if (input instanceof URL && ((URL) input).getProtocol().equalsIgnoreCase("file"))
+			return Utils.urlToFile((URL) input);
+		return null;
+	}
+
+	/**
+	 * Opens a native decoder session over the input, with the given decoder
+	 * receiving the pixels, or returns null if the input can only be decoded
+	 * through the generic path.
+	 */
+	private OpenJPEGJavaDecoderSession openSession(OpenJPEGJavaDecoder openJpegDecoder)
+			throws IOException {
+		Object source = input;
+		if (source instanceof URL) {
+			final URL url = (URL) source;
+			if (url.getProtocol().equalsIgnoreCase("file")) {
+				source = Utils.urlToFile(url);
+			} else {
+				final InputStream stream = url.openStream();
+				try {
+					source = readFully(stream);
+				} finally {
+					stream.close();
+				}
+			}
+		}
+
+		if (source instanceof File)
+			return OpenJPEGJavaDecoderSession.open(((File) source).getPath(), null, openJpegDecoder);
+		if (source instanceof ImageInputStream)
+			return OpenJPEGJavaDecoderSession.open((ImageInputStream) source, openJpegDecoder);
+		if (source instanceof byte[]) {
+			final byte[] bytes = (byte[]) source;
+			final ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+			buffer.put(bytes).flip();
+			return OpenJPEGJavaDecoderSession.open(null, buffer, openJpegDecoder);
+		}
+		return null;
+	}
+
+	private static byte[] readFully(InputStream stream) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final byte[] chunk = new byte[64 * 1024];
+		int read;
+		while ((read = stream.read(chunk)) > 0)
+			bytes.write(chunk, 0, read);
+		return bytes.toByteArray();
+	}
+
 	/**
 	 * Disposes all the resources, native and non, used by this
 	 * {@link ImageReader} subclass.
@@ -146,8 +1117,7 @@ public class JP2KOpenJpegImageReader extends GenericImageReader {
 	 *            index of the selected image
 	 */
 	public int getTileHeight(int imageIndex) throws IOException {
-		checkImageIndex(imageIndex);
-		final int tileHeight = multipleCodestreams.get(imageIndex).getTileHeight();
+		final int tileHeight = getCodestreamProperties(imageIndex).getTileHeight();
 		if (LOGGER.isLoggable(Level.FINE))
 			LOGGER.fine(new StringBuffer("tileHeight:").append(	Integer.toString(tileHeight)).toString());
 		return tileHeight;
@@ -160,14 +1130,29 @@ public class JP2KOpenJpegImageReader extends GenericImageReader {
 	 *            index of the selected image
 	 */
 	public int getTileWidth(int imageIndex) throws IOException {
-		checkImageIndex(imageIndex);
-		final int tileWidth = multipleCodestreams.get(imageIndex).getTileWidth();
+		final int tileWidth = getCodestreamProperties(imageIndex).getTileWidth();
 		if (LOGGER.isLoggable(Level.FINE))
 			LOGGER.fine(new StringBuffer("tileWidth:").append(Integer.toString(tileWidth)).toString());
 		return tileWidth;
 	}
 
 
+	/**
+	 * Returns the column of the upper-left corner of tile (0,0), which is
+	 * negative when the codestream tiles start before the image.
+	 */
+	public int getTileGridXOffset(int imageIndex) throws IOException {
+		return getCodestreamProperties(imageIndex).getTileGridXOffset();
+	}
+
+	/**
+	 * Returns the row of the upper-left corner of tile (0,0), which is
+	 * negative when the codestream tiles start before the image.
+	 */
+	public int getTileGridYOffset(int imageIndex) throws IOException {
+		return getCodestreamProperties(imageIndex).getTileGridYOffset();
+	}
+
 	/**
 	 * Build a default {@link JP2KOpenJpegImageReadParam}
 	 */
@@ -177,8 +1162,206 @@ public class JP2KOpenJpegImageReader extends GenericImageReader {
 
 
 	public int getSourceDWTLevels(int imageIndex) {
+		try {
+			return getCodestreamProperties(imageIndex).getSourceDWTLevels();
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to read the codestream header", e);
+		}
+	}
+
+	/**
+	 * Clears the codestream properties of the previous input.
+	 */
+	public void setInput(Object input, boolean seekForwardOnly,
+			boolean ignoreMetadata) {
+		super.setInput(input, seekForwardOnly, ignoreMetadata);
+		multipleCodestreams.clear();
+		headerCacheKey = null;
+		resolvedHeaderKey = null;
+		codestreamIndex = null;
+	}
+
+	/**
+	 * Sets the key under which the header of the current input is shared with
+	 * the other readers, through the shared {@link CodestreamHeaderCache}.
+	 * Files get a key of their own, made of their path, length and
+	 * modification time; streams and byte arrays are only cached under a key
+	 * set here. Two inputs with equal keys must hold the same codestream.
+	 * The key is cleared by the next setInput.
+	 */
+	public void setHeaderCacheKey(Object key) {
+		headerCacheKey = key;
+	}
+
+	/**
+	 * Returns the properties of a codestream, probing its main header the
+	 * first time they are needed. The probe only runs opj_read_header and
+	 * opj_get_cstr_info: no tile data is read or decoded. Headers already
+	 * probed by another reader are taken from the shared
+	 * {@link CodestreamHeaderCache}.
+	 */
+	private JP2KCodestreamProperties getCodestreamProperties(int imageIndex)
+			throws IOException {
 		checkImageIndex(imageIndex);
-		return multipleCodestreams.get(imageIndex).getSourceDWTLevels();
+		if (multipleCodestreams.isEmpty()) {
+			final CodestreamHeaderCache cache = CodestreamHeaderCache.getShared();
+			final File file = inputFile();
+			resolvedHeaderKey = cache == null ? null : headerCacheKey != null ? headerCacheKey
+					: file != null ? CodestreamHeaderCache.fileKey(file) : null;
+			JP2KCodestreamProperties properties = resolvedHeaderKey != null
+					? cache.getProperties(resolvedHeaderKey) : null;
+			if (properties == null) {
+				final OpenJPEGJavaDecoderSession session = openSession((OpenJPEGJavaDecoder) decoder);
+				if (session == null)
+					throw new IOException("Unable to read the codestream header");
+				try {
+					properties = probe(session);
+				} finally {
+					session.close();
+				}
+				if (resolvedHeaderKey != null)
+					cache.putProperties(resolvedHeaderKey, properties);
+			}
+			multipleCodestreams.add(properties);
+		}
+		return multipleCodestreams.get(imageIndex);
+	}
+
+	/**
+	 * Returns the byte layout of a codestream: its main header markers and
+	 * the byte range of every tile-part. It is read once, by walking the
+	 * marker segments, and shared through the {@link CodestreamHeaderCache}
+	 * like the header.
+	 * 
+	 * @throws IOException
+	 *             if the index could not be read
+	 */
+	public CodestreamIndex getCodestreamIndex(int imageIndex) throws IOException {
+		getCodestreamProperties(imageIndex);
+		if (codestreamIndex != null)
+			return codestreamIndex;
+		final CodestreamHeaderCache cache = CodestreamHeaderCache.getShared();
+		if (resolvedHeaderKey != null && cache != null)
+			codestreamIndex = cache.getIndex(resolvedHeaderKey);
+		if (codestreamIndex == null) {
+			final OpenJPEGJavaDecoderSession session = openSession((OpenJPEGJavaDecoder) decoder);
+			if (session == null)
+				throw new IOException("Unable to read the codestream index");
+			try {
+				codestreamIndex = session.getCodestreamIndex();
+			} finally {
+				session.close();
+			}
+			if (codestreamIndex == null)
+				throw new IOException("Unable to read the codestream index");
+			if (resolvedHeaderKey != null && cache != null)
+				cache.putIndex(resolvedHeaderKey, codestreamIndex);
+		}
+		return codestreamIndex;
+	}
+
+	private static JP2KCodestreamProperties probe(OpenJPEGJavaDecoderSession session) {
+		final JP2KCodestreamProperties properties = new JP2KCodestreamProperties();
+		final int numComponents = session.getNumComponents();
+		final int[] bits = session.getBitsPerComponent();
+		final int[] indexes = new int[numComponents];
+		int maxBitDepth = 0;
+		for (int i = 0; i < numComponents; i++) {
+			indexes[i] = i;
+			maxBitDepth = Math.max(maxBitDepth, bits[i]);
+		}
+		properties.setWidth(session.getWidth());
+		properties.setHeight(session.getHeight());
+		// the tile grid of the image follows the codestream tiles
+		if (session.getNumTilesX() > 1) {
+			final int gridX = session.reducedX(session.getTileX0(), 0);
+			properties.setTileWidth(session.reducedX(session.getTileX0() + session.getTileWidth(), 0) - gridX);
+			properties.setTileGridXOffset(gridX - session.reducedX(session.getImageX0(), 0));
+		} else {
+			properties.setTileWidth(session.getWidth());
+		}
+		if (session.getNumTilesY() > 1) {
+			final int gridY = session.reducedY(session.getTileY0(), 0);
+			properties.setTileHeight(session.reducedY(session.getTileY0() + session.getTileHeight(), 0) - gridY);
+			properties.setTileGridYOffset(gridY - session.reducedY(session.getImageY0(), 0));
+		} else {
+			properties.setTileHeight(session.getHeight());
+		}
+		properties.setNumComponents(numComponents);
+		properties.setBitsPerComponent(bits);
+		properties.setComponentIndexes(indexes);
+		properties.setMaxBitDepth(maxBitDepth);
+		properties.setSigned(session.isSigned());
+		properties.setComponentSigned(session.getComponentSigned());
+		properties.setSourceDWTLevels(session.getNumResolutions() - 1);
+		properties.setMaxSupportedSubSamplingFactor(1 << (session.getNumResolutions() - 1));
+		properties.setMaxAvailableQualityLayers(session.getNumQualityLayers());
+		final int[] widths = new int[session.getNumResolutions()];
+		final int[] heights = new int[session.getNumResolutions()];
+		for (int r = 0; r < widths.length; r++) {
+			widths[r] = session.reducedX(session.getImageX1(), r) - session.reducedX(session.getImageX0(), r);
+			heights[r] = session.reducedY(session.getImageY1(), r) - session.reducedY(session.getImageY0(), r);
+		}
+		properties.setResolutionWidths(widths);
+		properties.setResolutionHeights(heights);
+		initializeSampleModelAndColorModel(properties, session);
+		return properties;
+	}
+
+	/**
+	 * Sets the sample and color models of the images the decoder returns:
+	 * packed (A)RGB ints when the first components share their sampling and
+	 * depth, one gray band of the first component otherwise. Also sets the
+	 * planar models when the components share their sampling and there are at
+	 * most 4 of them, with the per component precision and signedness. Color
+	 * images deeper than 8 bits, signed, or whose components differ in depth
+	 * get the planar models as image type: packing them would lose samples.
+	 */
+	private static void initializeSampleModelAndColorModel(
+			JP2KCodestreamProperties properties, OpenJPEGJavaDecoderSession session) {
+		final int numComponents = properties.getNumComponents();
+		final int[] bits = properties.getBitsPerComponent();
+		final int[] dx = session.getComponentSubsamplingX();
+		final int[] dy = session.getComponentSubsamplingY();
+		final int colorComponents = numComponents >= 3 ? 3 : numComponents == 2 ? 2 : 1;
+		boolean packed = colorComponents > 1;
+		for (int i = 1; i < colorComponents; i++)
+			packed &= dx[i] == dx[0] && dy[i] == dy[0] && bits[i] == bits[0];
+
+		final int width = properties.getTileWidth();
+		final int height = properties.getTileHeight();
+		final ColorModel colorModel;
+		if (packed) {
+			colorModel = numComponents == 2 || numComponents == 4 ? ColorModel.getRGBdefault()
+					: new DirectColorModel(24, 0x00ff0000, 0x0000ff00, 0x000000ff);
+			properties.setDataBufferType(DataBuffer.TYPE_INT);
+		} else {
+			final int dataType = bits[0] <= 8 ? DataBuffer.TYPE_BYTE : DataBuffer.TYPE_USHORT;
+			colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY),
+					new int[] { Math.max(1, Math.min(bits[0], 16)) }, false, false,
+					Transparency.OPAQUE, dataType);
+			properties.setDataBufferType(dataType);
+		}
+		properties.setColorModel(colorModel);
+		properties.setSampleModel(colorModel.createCompatibleSampleModel(width, height));
+
+		// the planar layout: the component planes as decoded, one bank each
+		if (!sameComponentSize(session))
+			return;
+		final int planarType = OpenJPEGJavaDecoder.planarDataType(bits, properties.getComponentSigned());
+		final ColorModel planarColorModel = OpenJPEGJavaDecoder.planarColorModel(bits, planarType);
+		if (planarColorModel == null)
+			return;
+		final SampleModel planarSampleModel = new BandedSampleModel(planarType, width, height, numComponents);
+		properties.setPlanarColorModel(planarColorModel);
+		properties.setPlanarSampleModel(planarSampleModel);
+		// color components the packed ints would truncate to 8 bits, or drop
+		if (numComponents > 1 && (!packed || properties.getMaxBitDepth() > 8 || properties.isSigned())) {
+			properties.setPlanar(true);
+			properties.setColorModel(planarColorModel);
+			properties.setSampleModel(planarSampleModel);
+			properties.setDataBufferType(planarType);
+		}
 	}
 
 
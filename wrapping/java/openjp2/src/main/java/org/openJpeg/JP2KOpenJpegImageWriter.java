@@ -7,10 +7,13 @@ import java.awt.image.ColorModel;
 import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferUShort;
 import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
 import java.awt.image.SampleModel;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -175,6 +178,15 @@ public class JP2KOpenJpegImageWriter extends GenericImageWriter {
      */
     private static final double SINGLE_PUSH_THRESHOLD_RATIO = 0.95;
 
+    /** The codestream tile size used when the image tiles do not fit */
+    private static final int DEFAULT_TILE_SIZE = 512;
+
+    /** Image tiles smaller than this are not used as codestream tiles */
+    private static final int MIN_IMAGE_TILE_SIZE = 64;
+
+    /** Image tiles of more pixels than this are not used as codestream tiles */
+    private static final long MAX_IMAGE_TILE_PIXELS = 2048 * 2048;
+
     /**
      * The file to be written
      */
@@ -451,8 +463,29 @@ public class JP2KOpenJpegImageWriter extends GenericImageWriter {
         final int rowSize = (destinationWidth * nComponents);
         final int bandSize = destinationHeight * destinationWidth;
         final int imageSize = bandSize * nComponents;
-        
-        
+
+        // //
+        //
+        // Encoding the image one tile at a time, unless it must be resampled
+        //
+        // //
+        // the widest component, as packed models such as 565 RGB have uneven ones
+        int precision = 8;
+        if (!hasPalette) {
+            precision = 0;
+            for (int size : numberOfBits)
+                precision = Math.max(precision, size);
+        }
+        if (!resampleInputImage && precision > 0 && precision <= 16
+                && (dataType == DataBuffer.TYPE_BYTE || dataType == DataBuffer.TYPE_USHORT
+                        || dataType == DataBuffer.TYPE_SHORT || dataType == DataBuffer.TYPE_INT)) {
+            ((OpenJPEGJavaEncoder) encoder).setNbResolutions(6);
+            writeTiles(inputRenderedImage, hasPalette ? (IndexColorModel) colorModel : null,
+                    hasPalette ? colorModel.getNumColorComponents() : nComponents, precision,
+                    dataType == DataBuffer.TYPE_SHORT, !writeCodeStreamOnly,
+                    setTiling ? tileW : 0, setTiling ? tileH : 0);
+            return;
+        }
        
         DataBuffer buff =  	inputRenderedImage.getData().getDataBuffer();
         if (buff instanceof DataBufferUShort)
@@ -470,6 +503,115 @@ public class JP2KOpenJpegImageWriter extends GenericImageWriter {
     	 writeOnStream();
     }
 
+    /**
+     * Encodes the image through an {@link OpenJPEGJavaEncoderSession}: each
+     * codestream tile is pulled from the image, encoded and written before
+     * the next one, so that the pixels of one tile only are held at a time.
+     * The codestream tiles are the image tiles when their grid starts at the
+     * image origin and their size is reasonable, which makes each one a
+     * single {@link RenderedImage#getTile(int, int)}. A palette is expanded
+     * tile by tile.
+     *
+     * @param tileWidth
+     *            width of the codestream tiles, 0 to choose it
+     */
+    private void writeTiles(RenderedImage image, IndexColorModel palette, int numComponents,
+            int bitsPerSample, boolean signed, boolean jp2, int tileWidth, int tileHeight)
+            throws IOException {
+        if (tileWidth <= 0 || tileHeight <= 0) {
+            tileWidth = image.getTileWidth();
+            tileHeight = image.getTileHeight();
+            if (Math.floorMod(image.getMinX() - image.getTileGridXOffset(), tileWidth) != 0
+                    || Math.floorMod(image.getMinY() - image.getTileGridYOffset(), tileHeight) != 0
+                    || tileWidth < MIN_IMAGE_TILE_SIZE || tileHeight < MIN_IMAGE_TILE_SIZE
+                    || (long) tileWidth * tileHeight > MAX_IMAGE_TILE_PIXELS) {
+                tileWidth = DEFAULT_TILE_SIZE;
+                tileHeight = DEFAULT_TILE_SIZE;
+            }
+        }
+        if (LOGGER.isLoggable(Level.FINE))
+            LOGGER.fine("Encoding " + image.getWidth() + "x" + image.getHeight() + " pixels in "
+                    + tileWidth + "x" + tileHeight + " tiles");
+
+        final OpenJPEGJavaEncoderSession session = OpenJPEGJavaEncoderSession.open(
+                (OpenJPEGJavaEncoder) encoder, outputFile.getAbsolutePath(), jp2, image.getWidth(),
+                image.getHeight(), numComponents, bitsPerSample, signed, tileWidth, tileHeight);
+        if (session == null)
+            throw new IOException("Unable to start encoding into " + outputFile);
+        clearAbortRequest();
+        processImageStarted(0);
+        boolean complete = false;
+        try {
+            final int numTiles = session.getNumTilesX() * session.getNumTilesY();
+            for (int tile = 0; tile < numTiles; tile++) {
+                if (abortRequested())
+                    break;
+                final Rectangle bounds = session.getTileBounds(tile);
+                bounds.translate(image.getMinX(), image.getMinY());
+                Raster raster = pixels(image, bounds);
+                int x = bounds.x;
+                int y = bounds.y;
+                if (palette != null) {
+                    raster = palette.convertToIntDiscrete(
+                            raster.createChild(x, y, bounds.width, bounds.height, 0, 0, null), false)
+                            .getRaster();
+                    x = 0;
+                    y = 0;
+                }
+                if (!session.writeTile(tile, raster, x, y))
+                    throw new IOException("Unable to encode tile " + tile + " into " + outputFile);
+                processImageProgress(100f * (tile + 1) / numTiles);
+            }
+            if (!abortRequested()) {
+                if (!session.finish())
+                    throw new IOException("Unable to complete the codestream of " + outputFile);
+                complete = true;
+            }
+        } finally {
+            session.close();
+            // no truncated codestream is left behind
+            if (!complete)
+                outputFile.delete();
+        }
+        if (!complete) {
+            processWriteAborted();
+            return;
+        }
+
+        // an output stream gets the file written aside
+        if (outputStream != null) {
+            try {
+                final byte[] buffer = new byte[TEMP_BUFFER_SIZE];
+                final InputStream in = new FileInputStream(outputFile);
+                try {
+                    int read;
+                    while ((read = in.read(buffer)) > 0)
+                        outputStream.write(buffer, 0, read);
+                } finally {
+                    in.close();
+                }
+                outputStream.flush();
+            } finally {
+                outputFile.delete();
+            }
+        }
+        processImageComplete();
+    }
+
+    /**
+     * Returns a raster holding the pixels of a region: the image tile
+     * covering it if there is one, which costs no copy, or a copy of the
+     * region.
+     */
+    private static Raster pixels(RenderedImage image, Rectangle region) {
+        final int tileX = Math.floorDiv(region.x - image.getTileGridXOffset(), image.getTileWidth());
+        final int tileY = Math.floorDiv(region.y - image.getTileGridYOffset(), image.getTileHeight());
+        final Raster tile = image.getTile(tileX, tileY);
+        if (tile.getBounds().contains(region))
+            return tile;
+        return image.getData(region);
+    }
+
 
 
  
@@ -0,0 +1,301 @@
+package org.openJpeg;
+
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * A tiled image whose tiles are decoded on demand. The image keeps a decoder
+ * session open on the codestream, and {@link #getTile(int, int)} decodes only
+ * the requested tile, straight into the tile raster. The image tiles follow
+ * the codestream tiles, so that a tile decode reads and decodes one
+ * codestream tile. The last decoded tiles are kept in a bounded cache.
+ *
+ * The image tiles have the size of the first codestream tile at the image
+ * resolution. At a reduction r, the codestream tiles are only uniform if the
+ * tile size is a multiple of 2^r. Otherwise the image tiles straddle two
+ * codestream tiles. The pixels are still right, but a tile decode may then
+ * read two codestream tiles in each direction.
+ *
+ * The image is at a given resolution of the codestream, and its pixels start
+ * at (0,0). Tiles may be requested from several threads; their decodes are
+ * serialized. {@link #dispose()} releases the session.
+ *
+ * When a shared {@link DecodedTileCache} is set and the image comes from a
+ * file, tiles are looked up there before being decoded, and the decoded tiles
+ * are added to it. Tiles must not be modified.
+ */
+public final class JP2KTiledImage implements RenderedImage {
+
+	private final OpenJPEGJavaDecoderSession session;
+
+	private final int reduction;
+
+	private final ColorModel colorModel;
+
+	/** sample model of one tile */
+	private final SampleModel sampleModel;
+
+	private final int width;
+	private final int height;
+	private final int tileWidth;
+	private final int tileHeight;
+	private final int tileGridXOffset;
+	private final int tileGridYOffset;
+
+	/** last decoded tiles, least recently used first; guarded by itself */
+	private final LinkedHashMap<Long, Raster> tiles;
+
+	/**
+	 * @param session
+	 *            the session decoding the tiles, owned by the image from now on
+	 * @param reduction
+	 *            number of discarded resolution levels
+	 * @param colorModel
+	 *            color model of the decoded pixels
+	 * @param sampleModel
+	 *            a sample model of the decoded pixels, of any size
+	 * @param maxCachedTiles
+	 *            number of decoded tiles kept in memory
+	 */
+	JP2KTiledImage(OpenJPEGJavaDecoderSession session, int reduction, ColorModel colorModel,
+			SampleModel sampleModel, final int maxCachedTiles) {
+		this.session = session;
+		this.reduction = reduction;
+		this.colorModel = colorModel;
+
+		final int originX = session.reducedX(session.getImageX0(), reduction);
+		final int originY = session.reducedY(session.getImageY0(), reduction);
+		width = session.reducedX(session.getImageX1(), reduction) - originX;
+		height = session.reducedY(session.getImageY1(), reduction) - originY;
+		final int gridX = session.reducedX(session.getTileX0(), reduction);
+		final int gridY = session.reducedY(session.getTileY0(), reduction);
+		tileWidth = session.reducedX(session.getTileX0() + session.getTileWidth(), reduction) - gridX;
+		tileHeight = session.reducedY(session.getTileY0() + session.getTileHeight(), reduction) - gridY;
+		tileGridXOffset = gridX - originX;
+		tileGridYOffset = gridY - originY;
+		this.sampleModel = sampleModel.createCompatibleSampleModel(tileWidth, tileHeight);
+
+		tiles = new LinkedHashMap<Long, Raster>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Raster> eldest) {
+				return size() > maxCachedTiles;
+			}
+		};
+	}
+
+	/**
+	 * Returns a tile, decoding it if it is not cached.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the tile is outside of the tile grid
+	 * @throws IllegalStateException
+	 *             if the image was disposed, or the tile could not be decoded
+	 */
+	public Raster getTile(int tileX, int tileY) {
+		if (tileX < 0 || tileX >= getNumXTiles() || tileY < 0 || tileY >= getNumYTiles())
+			throw new IllegalArgumentException("Tile (" + tileX + "," + tileY
+					+ ") is outside of the " + getNumXTiles() + "x" + getNumYTiles() + " tile grid");
+		final Long key = Long.valueOf(((long) tileY << 32) | tileX);
+		synchronized (tiles) {
+			Raster tile = tiles.get(key);
+			if (tile == null) {
+				final DecodedTileCache cache = DecodedTileCache.getShared();
+				final DecodedTileCache.Key cacheKey = cache != null
+						? session.tileCacheKey(tileY * session.getNumTilesX() + tileX, reduction,
+								session.getDecoder().isPlanarOutput() ? DecodedTileCache.PLANAR_IMAGE_TILE
+										: DecodedTileCache.IMAGE_TILE) : null;
+				if (cacheKey != null)
+					tile = cache.get(cacheKey);
+				if (tile == null) {
+					tile = decodeTile(tileX, tileY);
+					if (cacheKey != null)
+						cache.put(cacheKey, tile);
+				}
+				tiles.put(key, tile);
+			}
+			return tile;
+		}
+	}
+
+	private Raster decodeTile(int tileX, int tileY) {
+		if (!session.isOpen())
+			throw new IllegalStateException("The image was disposed");
+		final int x = tileXToX(tileX);
+		final int y = tileYToY(tileY);
+		final WritableRaster tile = Raster.createWritableRaster(sampleModel, new Point(x, y));
+
+		// the part of the tile inside the image, mapped to full resolution pixels
+		final int x0 = Math.max(0, x);
+		final int y0 = Math.max(0, y);
+		final int x1 = Math.min(width, x + tileWidth);
+		final int y1 = Math.min(height, y + tileHeight);
+		final int originX = session.reducedX(session.getImageX0(), 0);
+		final int originY = session.reducedY(session.getImageY0(), 0);
+		final int reducedOriginX = session.reducedX(session.getImageX0(), reduction);
+		final int reducedOriginY = session.reducedY(session.getImageY0(), reduction);
+		final int windowX0 = Math.max(0, ((reducedOriginX + x0) << reduction) - originX);
+		final int windowY0 = Math.max(0, ((reducedOriginY + y0) << reduction) - originY);
+		final int windowX1 = Math.min(session.getWidth(), ((reducedOriginX + x1) << reduction) - originX);
+		final int windowY1 = Math.min(session.getHeight(), ((reducedOriginY + y1) << reduction) - originY);
+
+		final OpenJPEGJavaDecoder decoder = session.getDecoder();
+		decoder.setDestination(tile.getDataBuffer(), (y0 - y) * tileWidth + (x0 - x), tileWidth);
+		try {
+			final Rectangle decoded = session.decodePixels(new Rectangle(windowX0, windowY0,
+					windowX1 - windowX0, windowY1 - windowY0), reduction);
+			if (decoded == null)
+				throw new IllegalStateException("Unable to decode tile (" + tileX + "," + tileY + ")");
+		} finally {
+			decoder.clearDestination();
+		}
+		return tile;
+	}
+
+	/**
+	 * Closes the decoder session and drops the cached tiles. Tiles that are
+	 * not cached can no longer be requested.
+	 */
+	public void dispose() {
+		synchronized (tiles) {
+			tiles.clear();
+			session.close();
+		}
+	}
+
+	/** Number of discarded resolution levels of the image. */
+	public int getReduction() {
+		return reduction;
+	}
+
+	private int tileXToX(int tileX) {
+		return tileX * tileWidth + tileGridXOffset;
+	}
+
+	private int tileYToY(int tileY) {
+		return tileY * tileHeight + tileGridYOffset;
+	}
+
+	public Vector<RenderedImage> getSources() {
+		return null;
+	}
+
+	public Object getProperty(String name) {
+		return Image.UndefinedProperty;
+	}
+
+	public String[] getPropertyNames() {
+		return null;
+	}
+
+	public ColorModel getColorModel() {
+		return colorModel;
+	}
+
+	public SampleModel getSampleModel() {
+		return sampleModel;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getMinX() {
+		return 0;
+	}
+
+	public int getMinY() {
+		return 0;
+	}
+
+	public int getNumXTiles() {
+		return (width - tileGridXOffset + tileWidth - 1) / tileWidth;
+	}
+
+	public int getNumYTiles() {
+		return (height - tileGridYOffset + tileHeight - 1) / tileHeight;
+	}
+
+	public int getMinTileX() {
+		return 0;
+	}
+
+	public int getMinTileY() {
+		return 0;
+	}
+
+	public int getTileWidth() {
+		return tileWidth;
+	}
+
+	public int getTileHeight() {
+		return tileHeight;
+	}
+
+	public int getTileGridXOffset() {
+		return tileGridXOffset;
+	}
+
+	public int getTileGridYOffset() {
+		return tileGridYOffset;
+	}
+
+	/**
+	 * Returns the whole image in one raster. This decodes every tile: use
+	 * {@link #getData(Rectangle)} or the tiles for large images.
+	 */
+	public Raster getData() {
+		return getData(new Rectangle(0, 0, width, height));
+	}
+
+	public Raster getData(Rectangle rect) {
+		final WritableRaster raster = Raster.createWritableRaster(
+				sampleModel.createCompatibleSampleModel(rect.width, rect.height), rect.getLocation());
+		return copyData(raster);
+	}
+
+	/**
+	 * Copies the area of the image covered by the raster into the raster,
+	 * decoding the tiles it overlaps only.
+	 */
+	public WritableRaster copyData(WritableRaster raster) {
+		if (raster == null)
+			raster = colorModel.createCompatibleWritableRaster(width, height);
+		final Rectangle bounds = raster.getBounds().intersection(new Rectangle(0, 0, width, height));
+		if (bounds.isEmpty())
+			return raster;
+		final int firstX = Math.max(0, floorDiv(bounds.x - tileGridXOffset, tileWidth));
+		final int firstY = Math.max(0, floorDiv(bounds.y - tileGridYOffset, tileHeight));
+		final int lastX = Math.min(getNumXTiles() - 1,
+				floorDiv(bounds.x + bounds.width - 1 - tileGridXOffset, tileWidth));
+		final int lastY = Math.min(getNumYTiles() - 1,
+				floorDiv(bounds.y + bounds.height - 1 - tileGridYOffset, tileHeight));
+		for (int ty = firstY; ty <= lastY; ty++) {
+			for (int tx = firstX; tx <= lastX; tx++) {
+				final Raster tile = getTile(tx, ty);
+				final Rectangle area = tile.getBounds().intersection(bounds);
+				raster.setRect(tile.createChild(area.x, area.y, area.width, area.height,
+						area.x, area.y, null));
+			}
+		}
+		return raster;
+	}
+
+	private static int floorDiv(int a, int b) {
+		return a >= 0 ? a / b : -((-a + b - 1) / b);
+	}
+}
@@ -0,0 +1,96 @@
+package org.openJpeg;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read only memory mappings of codestream files, shared by all the decoders of
+ * the same file. The native decoder reads a mapping in place, like any other
+ * direct buffer, so seeks to a tile cost nothing and the pages come straight
+ * from the page cache, with no read() call nor copy.
+ *
+ * A mapping lives as long as one of the buffers returned for it is
+ * reachable. Every call returns its own view, with its own position and limit,
+ * so that concurrent decoders never disturb each other.
+ */
+public final class MappedCodestreams {
+
+	private static final ConcurrentHashMap<String, Mapping> MAPPINGS = new ConcurrentHashMap<String, Mapping>();
+
+	private static final ReferenceQueue<MappedByteBuffer> RELEASED = new ReferenceQueue<MappedByteBuffer>();
+
+	/** a mapping, valid as long as the file keeps its size and date */
+	private static final class Mapping extends WeakReference<MappedByteBuffer> {
+		final String path;
+		final long length;
+		final long lastModified;
+
+		Mapping(String path, long length, long lastModified, MappedByteBuffer buffer) {
+			super(buffer, RELEASED);
+			this.path = path;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+	}
+
+	private MappedCodestreams() {
+	}
+
+	/**
+	 * Maps a file, or reuses its current mapping.
+	 *
+	 * @return a read only direct buffer over the whole file, or null if the
+	 *         file is too large to be mapped in one buffer (2 GB and more)
+	 * @throws IOException
+	 *             if the file cannot be opened or mapped
+	 */
+	public static ByteBuffer map(File file) throws IOException {
+		purge();
+		final String path = file.getCanonicalPath();
+		final long length = file.length();
+		final long lastModified = file.lastModified();
+		if (length > Integer.MAX_VALUE)
+			return null;
+
+		Mapping mapping = MAPPINGS.get(path);
+		MappedByteBuffer buffer = mapping != null ? mapping.get() : null;
+		if (buffer == null || mapping.length != length || mapping.lastModified != lastModified) {
+			final RandomAccessFile raf = new RandomAccessFile(path, "r");
+			try {
+				// the mapping stays valid once the channel is closed
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			} finally {
+				raf.close();
+			}
+			// a concurrent caller may map the same file; both mappings are valid
+			MAPPINGS.put(path, new Mapping(path, length, lastModified, buffer));
+		}
+		return buffer.duplicate();
+	}
+
+	/**
+	 * Same as {@link #map(File)}, but returns null instead of failing, for the
+	 * callers that can go back to reading the file.
+	 */
+	static ByteBuffer mapOrNull(String fileName) {
+		try {
+			return map(new File(fileName));
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/** drops the entries of the mappings no longer referenced */
+	private static void purge() {
+		Mapping released;
+		while ((released = (Mapping) RELEASED.poll()) != null)
+			MAPPINGS.remove(released.path, released);
+	}
+}
@@ -0,0 +1,34 @@
+package org.openJpeg;
+
+/**
+ * Levels of the messages of the native codec, for
+ * {@link OpenJPEGJavaDecoder#setNativeLogLevel(int)} and
+ * {@link OpenJPEGJavaEncoder#setNativeLogLevel(int)}.
+ *
+ * A message above the level of the decoder or encoder is dropped by the native
+ * code, before any string is created or any Java method called. The others go
+ * to {@code logError} for errors and {@code logMessage} for warnings and
+ * information, either as the codec emits them or, once the decoder or encoder
+ * buffers them, all at once when the native call ends.
+ */
+public final class NativeLog {
+
+	/** no message at all */
+	public static final int OFF = 0;
+
+	public static final int ERROR = 1;
+
+	public static final int WARNING = 2;
+
+	/** every message, including the progress notes the codec emits per tile */
+	public static final int INFO = 3;
+
+	private NativeLog() {
+	}
+
+	static int checkLevel(int level) {
+		if (level < OFF || level > INFO)
+			throw new IllegalArgumentException("Unknown native log level " + level);
+		return level;
+	}
+}
@@ -0,0 +1,224 @@
+package org.openJpeg;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs decodes on a dedicated, bounded set of platform threads and hands the
+ * results back as futures. A native decode holds its thread for the whole
+ * decode; run from a virtual thread, it would pin the carrier thread and stall
+ * the scheduler. Here the calling thread only waits on a future, which does
+ * not pin.
+ *
+ * Requests wait in a bounded queue. When the queue is full, the returned
+ * future fails at once with a {@link RejectedExecutionException}, so that an
+ * overloaded server can shed load instead of piling up requests. The queue
+ * depth and the decode counts are exposed for monitoring.
+ *
+ * Cancelling a returned future drops the request if it is still queued, and
+ * stops its native decode if it is running: the decode thread is free again
+ * within a tile or precinct.
+ */
+public class OpenJPEGJavaAsyncDecoder implements Closeable {
+
+	private final ThreadPoolExecutor executor;
+
+	/** one decoder per thread */
+	private final OpenJPEGJavaDecoderPool decoders;
+
+	private final int queueCapacity;
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * @param threads
+	 *            number of decode threads, usually the number of cores
+	 * @param queueCapacity
+	 *            number of requests allowed to wait for a thread
+	 */
+	public OpenJPEGJavaAsyncDecoder(int threads, int queueCapacity) {
+		if (threads < 1)
+			throw new IllegalArgumentException("At least one decode thread is needed");
+		if (queueCapacity < 1)
+			throw new IllegalArgumentException("The request queue needs room for one request");
+		this.queueCapacity = queueCapacity;
+		decoders = new OpenJPEGJavaDecoderPool(threads, true);
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), new DecodeThreadFactory());
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/** daemon platform threads, named after the pool */
+	private static final class DecodeThreadFactory implements ThreadFactory {
+		private static final AtomicInteger POOLS = new AtomicInteger();
+		private final int pool = POOLS.incrementAndGet();
+		private final AtomicInteger threads = new AtomicInteger();
+
+		public Thread newThread(Runnable runnable) {
+			final Thread thread = new Thread(runnable, "openjpeg-decode-" + pool + "-"
+					+ threads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	/**
+	 * Decodes a J2K or JP2 file on a decode thread.
+	 *
+	 * @return the decoded image; the future fails with an IOException if the
+	 *         decode failed, and with a RejectedExecutionException if the
+	 *         queue is full
+	 */
+	public CompletableFuture<BufferedImage> decodeAsync(final String fileName, final DecodeSpec spec) {
+		if (fileName == null)
+			throw new IllegalArgumentException("file name is null");
+		final DecodeCancellation cancellation = new DecodeCancellation();
+		return submit(new Callable<BufferedImage>() {
+			public BufferedImage call() throws Exception {
+				final BufferedImage image = decoders.decode(fileName, spec, cancellation);
+				if (image == null)
+					throw new IOException("Unable to decode " + fileName + ", " + spec);
+				return image;
+			}
+		}, cancelling(cancellation));
+	}
+
+	/**
+	 * Decodes the codestream held by a direct buffer, from its position to its
+	 * limit, on a decode thread. The buffer content must not change until the
+	 * future completes.
+	 *
+	 * @see #decodeAsync(String, DecodeSpec)
+	 */
+	public CompletableFuture<BufferedImage> decodeAsync(final ByteBuffer codestream, final DecodeSpec spec) {
+		if (codestream == null || !codestream.isDirect())
+			throw new IllegalArgumentException(
+					"The codestream must be held by a direct ByteBuffer");
+		final ByteBuffer view = codestream.duplicate();
+		final DecodeCancellation cancellation = new DecodeCancellation();
+		return submit(new Callable<BufferedImage>() {
+			public BufferedImage call() throws Exception {
+				final BufferedImage image = decoders.decode(view, spec, cancellation);
+				if (image == null)
+					throw new IOException("Unable to decode the codestream, " + spec);
+				return image;
+			}
+		}, cancelling(cancellation));
+	}
+
+	private static Runnable cancelling(final DecodeCancellation cancellation) {
+		return new Runnable() {
+			public void run() {
+				cancellation.cancel();
+			}
+		};
+	}
+
+	/**
+	 * Runs any decoding work, such as an ImageReader read, on a decode thread.
+	 *
+	 * @return the result of the task; the future fails with the exception of
+	 *         the task, or with a RejectedExecutionException if the queue is
+	 *         full
+	 */
+	public <T> CompletableFuture<T> submit(final Callable<T> task) {
+		return submit(task, null);
+	}
+
+	/**
+	 * Runs a decoding task on a decode thread, like
+	 * {@link #submit(Callable)}. Cancelling the future also runs onCancel,
+	 * which should stop the task if it is running, for instance by aborting
+	 * the ImageReader it reads with.
+	 *
+	 * @param onCancel
+	 *            run, on the cancelling thread, when the future is cancelled;
+	 *            may be null
+	 */
+	public <T> CompletableFuture<T> submit(final Callable<T> task, final Runnable onCancel) {
+		final CompletableFuture<T> future = onCancel != null ? new CancellableFuture<T>(onCancel)
+				: new CompletableFuture<T>();
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					// cancelled while it was queued
+					if (future.isDone())
+						return;
+					try {
+						future.complete(task.call());
+					} catch (Throwable t) {
+						future.completeExceptionally(t);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/** a future whose cancellation reaches the running task */
+	private static final class CancellableFuture<T> extends CompletableFuture<T> {
+		private final Runnable onCancel;
+
+		CancellableFuture(Runnable onCancel) {
+			this.onCancel = onCancel;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			final boolean cancelled = super.cancel(mayInterruptIfRunning);
+			if (cancelled)
+				onCancel.run();
+			return cancelled;
+		}
+	}
+
+	/** Number of requests waiting for a decode thread. */
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/** Number of decodes running right now. */
+	public int getActiveDecodes() {
+		return executor.getActiveCount();
+	}
+
+	/** Approximate number of requests run so far, failed ones included. */
+	public long getCompletedDecodes() {
+		return executor.getCompletedTaskCount();
+	}
+
+	/** Number of requests refused because the queue was full. */
+	public long getRejectedDecodes() {
+		return rejected.get();
+	}
+
+	public int getThreads() {
+		return executor.getMaximumPoolSize();
+	}
+
+	/**
+	 * Stops accepting requests. The queued and running requests still
+	 * complete.
+	 */
+	public void close() {
+		executor.shutdown();
+	}
+}
@@ -1,5 +1,35 @@
 package org.openJpeg;
 
+import java.awt.Point;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.stream.ImageInputStream;
+
 import org.codecCentral.imageio.generic.DecoderBase;
 
 /**
@@ -9,8 +39,8 @@ import org.codecCentral.imageio.generic.DecoderBase;
  */
 public class OpenJPEGJavaDecoder extends DecoderBase {
 
-	/** the quality layers */
-	private int[] layers = null;
+	/** maximum number of quality layers to decode, 0 decodes them all */
+	private int maxQualityLayers = 0;
 
 	private int reductionIn = 0;
 	private int tileIn = -1;
@@ -25,14 +55,123 @@ public class OpenJPEGJavaDecoder extends DecoderBase {
 
 	private int maxTiles = 0;
 	private int maxReduction = 0;
+
+	/** direct buffer holding the codestream; read in place by the native decoder */
+	private ByteBuffer compressedBuffer = null;
+
+	/** caller supplied buffer receiving the decoded pixels, reused across decodes */
+	private DataBuffer destination = null;
+
+	/** index, in the destination bank, of the first decoded pixel */
+	private int destinationOffset = 0;
+
+	/** distance between two decoded rows in the destination; 0 means the image width */
+	private int destinationStride = 0;
+
+	/** runs the tasks of a parallel decode; null to decode on the calling thread */
+	private Executor parallelExecutor = null;
+
+	/** number of tasks, each with its own native codec, sharing a parallel decode */
+	private int parallelWorkers = 0;
+
+	/** decode files through a shared memory mapping instead of buffered reads */
+	private boolean memoryMappedInput = false;
+
+	/** decode one array per component into planes instead of image8/16/24 */
+	private boolean planarOutput = false;
+
+	/** byte[][], short[][] or int[][]: the components of the last planar decode */
+	private Object planes = null;
+
+	/** DataBuffer type of the planes */
+	private int planesDataType = DataBuffer.TYPE_UNDEFINED;
+
+	/**
+	 * a native int, non zero once the decodes are cancelled; polled by the
+	 * native codec before each tile and precinct, without any JNI call.
+	 * Shared with the worker decoders of a parallel decode.
+	 */
+	private ByteBuffer cancelFlag = ByteBuffer.allocateDirect(4).order(ByteOrder.nativeOrder());
+
+	/** told about each tile of the session decodes; read by the native side */
+	private TileListener tileListener = null;
+
+	/** messages of the native codec above this level are dropped; read by the native side */
+	private int nativeLogLevel = NativeLog.WARNING;
+
+	/** if true, the native codec sends its messages at the end of each call; read by the native side */
+	private boolean nativeLogBuffered = false;
+
+	/**
+	 * Receives the progress of a session decode, one call per codestream tile,
+	 * on the decoding thread, once the tile pixels are in the output arrays.
+	 * The native side passes plain ints: no object is created per tile.
+	 */
+	public interface TileListener {
+		/**
+		 * @param tilesDone
+		 *            number of tiles of the decode done so far, this one
+		 *            included
+		 * @param tilesTotal
+		 *            number of tiles of the decode
+		 * @param x
+		 *            first column written by the tile, in the output
+		 * @param y
+		 *            first row written by the tile, in the output
+		 * @param width
+		 *            number of columns written, 0 if the tile is outside
+		 *            the decoded area
+		 * @param height
+		 *            number of rows written
+		 */
+		void tileDecoded(int tilesDone, int tilesTotal, int x, int y, int width, int height);
+	}
 	
 	private static boolean DEBUG_COMPRESS_FROM_BUFFER = false;	
+
+	/** set once the native side has cached its field and method IDs */
+	private static volatile boolean idsInitialized = false;
+
+	/**
+	 * Has the native side look up the field and method IDs it uses once,
+	 * instead of on every decode. Done on the first decode, when the native
+	 * library is known to be loaded.
+	 */
+	static void initNativeIDs() {
+		if (idsInitialized)
+			return;
+		synchronized (OpenJPEGJavaDecoder.class) {
+			if (!idsInitialized) {
+				try {
+					initIDs();
+				} catch (LinkageError e) {
+					// the native side looks the IDs up on each call
+				}
+				idsInitialized = true;
+			}
+		}
+	}
 	
 
 	@Override
     protected int internalDecode(String[] parameters)
 	{
-	   int rc =  	internalDecodeJ2KtoImage(parameters);
+		initNativeIDs();
+		final String fileName = inputFile(parameters);
+		if (memoryMappedInput && fileName != null && segmentPositions == null
+				&& compressedBuffer == null) {
+			final ByteBuffer mapped = MappedCodestreams.mapOrNull(fileName);
+			if (mapped != null) {
+				compressedBuffer = mapped;
+				try {
+					return internalDecode(new String[0]);
+				} finally {
+					compressedBuffer = null;
+				}
+			}
+		}
+	   int rc = parallelDecodeApplies(parameters) ? decodeInParallel(parameters)
+			   : internalDecodeJ2KtoImage(parameters);
 		if (DEBUG_COMPRESS_FROM_BUFFER)
 		{
 			
@@ -60,6 +199,674 @@ public class OpenJPEGJavaDecoder extends DecoderBase {
 		return rc;
 	}
 
+	/**
+	 * Decodes the codestream held by a direct buffer, from its position to its
+	 * limit. The native decoder reads the buffer memory in place, so codestreams
+	 * already held off-heap (NIO reads, network buffers, mapped files) are
+	 * decoded without being copied onto the Java heap.
+	 * 
+	 * @param codestream
+	 *            a direct buffer holding a J2K or JP2 codestream
+	 * @return 0 on success, -1 on failure
+	 */
+	public int decode(ByteBuffer codestream) {
+		if (codestream == null || !codestream.isDirect())
+			throw new IllegalArgumentException(
+					"The codestream must be held by a direct ByteBuffer");
+		compressedBuffer = codestream.slice();
+		try {
+			return internalDecode(new String[0]);
+		} finally {
+			compressedBuffer = null;
+		}
+	}
+
+	/**
+	 * Decodes the codestream starting at the current position of a stream,
+	 * with the same tile, reduction and area settings as {@link #decode()}.
+	 * The stream is not buffered in memory: the native codec reads and seeks
+	 * it through callbacks, so only the main header and the tiles it decodes
+	 * are read. The stream is moved back to the start of the codestream when
+	 * the decode is over. JPT streams are not supported.
+	 * 
+	 * @return 0 on success, -1 on failure
+	 * @throws IOException
+	 *             if the stream failed
+	 */
+	public int decode(ImageInputStream stream) throws IOException {
+		final OpenJPEGJavaDecoderSession session = OpenJPEGJavaDecoderSession.open(stream, this);
+		if (session == null)
+			return -1;
+		try {
+			final boolean tileAndReduction = userChangedTile != 0 && userChangedReduction != 0;
+			final int reduction = tileAndReduction ? reductionIn : 0;
+			if (!tileAndReduction || maxTiles <= 0 || maxReduction <= 0) {
+				maxTiles = session.getNumTilesX() * session.getNumTilesY();
+				maxReduction = session.getNumResolutions();
+				userChangedTile = 1;
+				userChangedReduction = 1;
+			}
+			if (reduction >= session.getNumResolutions())
+				return -1;
+			final int rc;
+			if (tileAndReduction && tileIn >= 0)
+				rc = session.decodeTile(tileIn, reduction);
+			else if (userChangedArea != 0)
+				rc = session.decodeRegion(areaX0, areaY0, areaX1, areaY1, reduction);
+			else
+				rc = session.decodeResolution(reduction);
+			if (rc != 0 && session.getStreamFailure() != null)
+				throw session.getStreamFailure();
+			return rc;
+		} finally {
+			session.close();
+		}
+	}
+
+	/**
+	 * Makes the following decodes write their pixels into the first bank of the
+	 * given buffer instead of allocating a new image array per decode. The
+	 * buffer type must match the decoded image: {@link DataBufferByte} for 8 bit
+	 * gray, {@link DataBufferUShort} or {@link DataBufferShort} for 9 to 16 bit
+	 * gray, and {@link DataBufferInt} (packed ARGB) for everything else. A
+	 * planar decode writes component b into bank b, and needs a buffer of the
+	 * type given by {@link #planarDataType(int[], boolean[])}.
+	 * 
+	 * @param buffer
+	 *            the buffer receiving the pixels
+	 * @param offset
+	 *            index of the first decoded pixel in the bank
+	 * @param scanlineStride
+	 *            distance between two rows in the bank, or 0 to use the
+	 *            decoded image width
+	 */
+	public void setDestination(DataBuffer buffer, int offset, int scanlineStride) {
+		if (buffer == null)
+			throw new IllegalArgumentException("destination buffer is null");
+		if (offset < 0 || scanlineStride < 0)
+			throw new IllegalArgumentException("Negative destination offset or stride");
+		clearDestination();
+		destination = buffer;
+		destinationOffset = offset;
+		destinationStride = scanlineStride;
+	}
+
+	/**
+	 * Goes back to allocating a fresh image array for every decode.
+	 */
+	public void clearDestination() {
+		if (destination != null) {
+			// don't let a later decode write into the caller's buffer
+			image8 = null;
+			image16 = null;
+			image24 = null;
+			planes = null;
+		}
+		destination = null;
+		destinationOffset = 0;
+		destinationStride = 0;
+	}
+
+	public DataBuffer getDestination() {
+		return destination;
+	}
+
+	/** Called by the native decoder once width and height are known. */
+	@Override
+	public void alloc8() {
+		planes = null;
+		if (destination == null) {
+			super.alloc8();
+			return;
+		}
+		if (!(destination instanceof DataBufferByte))
+			throw destinationMismatch("8 bit gray", "DataBufferByte");
+		image8 = ((DataBufferByte) destination).getData();
+		checkDestinationSize(image8.length);
+	}
+
+	/** Called by the native decoder once width and height are known. */
+	@Override
+	public void alloc16() {
+		planes = null;
+		if (destination == null) {
+			super.alloc16();
+			return;
+		}
+		if (destination instanceof DataBufferUShort)
+			image16 = ((DataBufferUShort) destination).getData();
+		else if (destination instanceof DataBufferShort)
+			image16 = ((DataBufferShort) destination).getData();
+		else
+			throw destinationMismatch("16 bit gray", "DataBufferUShort");
+		checkDestinationSize(image16.length);
+	}
+
+	/** Called by the native decoder once width and height are known. */
+	@Override
+	public void alloc24() {
+		planes = null;
+		if (destination == null) {
+			super.alloc24();
+			return;
+		}
+		if (!(destination instanceof DataBufferInt))
+			throw destinationMismatch("packed ARGB", "DataBufferInt");
+		image24 = ((DataBufferInt) destination).getData();
+		checkDestinationSize(image24.length);
+	}
+
+	/**
+	 * Called by the native decoder of a planar decode once width, height and
+	 * samplesPerPixel are known: sets planes to one array per component. A
+	 * destination must have one bank per component, of the given type.
+	 * 
+	 * @param dataType
+	 *            the DataBuffer type holding every component
+	 */
+	void allocPlanes(int dataType) {
+		image8 = null;
+		image16 = null;
+		image24 = null;
+		planesDataType = dataType;
+		if (destination != null) {
+			final boolean shorts = dataType == DataBuffer.TYPE_USHORT || dataType == DataBuffer.TYPE_SHORT;
+			if (destination.getDataType() != dataType && !(shorts && (destination instanceof DataBufferUShort
+					|| destination instanceof DataBufferShort)))
+				throw destinationMismatch("of DataBuffer type " + dataType, "buffer of that type");
+			if (destination.getNumBanks() < samplesPerPixel)
+				throw new IllegalArgumentException("The destination has " + destination.getNumBanks()
+						+ " banks, the decoded image has " + samplesPerPixel + " components");
+			checkDestinationSize(destination.getSize());
+			if (destination instanceof DataBufferByte)
+				planes = ((DataBufferByte) destination).getBankData();
+			else if (destination instanceof DataBufferUShort)
+				planes = ((DataBufferUShort) destination).getBankData();
+			else if (destination instanceof DataBufferShort)
+				planes = ((DataBufferShort) destination).getBankData();
+			else
+				planes = ((DataBufferInt) destination).getBankData();
+			return;
+		}
+		final int size = width * height;
+		switch (dataType) {
+		case DataBuffer.TYPE_BYTE:
+			planes = new byte[samplesPerPixel][size];
+			break;
+		case DataBuffer.TYPE_USHORT:
+		case DataBuffer.TYPE_SHORT:
+			planes = new short[samplesPerPixel][size];
+			break;
+		default:
+			planes = new int[samplesPerPixel][size];
+			break;
+		}
+	}
+
+	private IllegalArgumentException destinationMismatch(String decoded, String expected) {
+		return new IllegalArgumentException("The decoded image is " + decoded
+				+ ", the destination must be a " + expected + ", not a "
+				+ destination.getClass().getSimpleName());
+	}
+
+	private void checkDestinationSize(int length) {
+		final int stride = destinationStride > 0 ? destinationStride : width;
+		if (stride < width)
+			throw new IllegalArgumentException("Destination stride " + stride
+					+ " is smaller than the decoded width " + width);
+		final long needed = destinationOffset + (long) (height - 1) * stride + width;
+		if (needed > length)
+			throw new IllegalArgumentException("Destination holds " + length
+					+ " samples, the decoded " + width + "x" + height
+					+ " image needs " + needed + " at offset " + destinationOffset
+					+ " with stride " + stride);
+	}
+
+	/**
+	 * Decodes full images with up to {@code workers} tasks run by the given
+	 * executor, for instance a {@link java.util.concurrent.ForkJoinPool}. Each
+	 * task opens its own native codec over the shared input and decodes runs of
+	 * tiles straight into their part of the output image. Only tiled images
+	 * gain from it: a single tile is always decoded by one thread.
+	 * 
+	 * Tile and area decodes, planar decodes, as well as segmented files, stay
+	 * on the calling thread.
+	 * 
+	 * The calling thread runs the tasks the executor has not started yet when
+	 * it comes to wait for them, so a decode may itself run on a bounded
+	 * executor that is also its parallel executor. A decode always returns
+	 * once its tasks are over, even when it fails or the executor rejects a
+	 * task.
+	 * 
+	 * @param executor
+	 *            the executor running the tasks, or null to go back to serial
+	 *            decoding
+	 * @param workers
+	 *            maximum number of tasks of one decode
+	 */
+	public void setParallelDecode(Executor executor, int workers) {
+		if (executor != null && workers < 1)
+			throw new IllegalArgumentException("A parallel decode needs at least one worker");
+		parallelExecutor = executor;
+		parallelWorkers = executor != null ? workers : 0;
+	}
+
+	/**
+	 * Makes the file decodes read a memory mapping of the file, shared by all
+	 * the decoders of the same file (see {@link MappedCodestreams}), instead of
+	 * buffered reads. Random tile and region access then reads the page cache
+	 * directly. Segmented files, and files of 2 GB and more, are still read
+	 * the buffered way.
+	 */
+	public void setMemoryMappedInput(boolean memoryMapped) {
+		memoryMappedInput = memoryMapped;
+	}
+
+	public boolean isMemoryMappedInput() {
+		return memoryMappedInput;
+	}
+
+	private boolean parallelDecodeApplies(String[] parameters) {
+		// the workers pack the pixels, the planes are assembled by the serial decode only
+		if (parallelExecutor == null || segmentPositions != null || userChangedArea != 0
+				|| planarOutput)
+			return false;
+		if (userChangedTile != 0 && userChangedReduction != 0 && tileIn >= 0)
+			return false;
+		return inputFile(parameters) != null || compressedBuffer != null
+				|| compressedStream != null;
+	}
+
+	private static String inputFile(String[] parameters) {
+		if (parameters == null || parameters.length != 1 || parameters[0] == null
+				|| parameters[0].length() == 0)
+			return null;
+		return parameters[0];
+	}
+
+	/**
+	 * Splits the tile grid in runs of tiles along the tile rows, enough of them
+	 * to keep every worker busy. Each run is {x0, y0, x1, y1} on the reference
+	 * grid.
+	 */
+	private List<int[]> tileRuns(OpenJPEGJavaDecoderSession session) {
+		final int rows = session.getNumTilesY();
+		final int columns = session.getNumTilesX();
+		final int runsPerRow = Math.min(columns, Math.max(1, (2 * parallelWorkers + rows - 1) / rows));
+		final List<int[]> runs = new ArrayList<int[]>(rows * runsPerRow);
+		for (int ty = 0; ty < rows; ty++) {
+			final int y0 = Math.max(session.getImageY0(), session.getTileY0() + ty * session.getTileHeight());
+			final int y1 = Math.min(session.getImageY1(), session.getTileY0() + (ty + 1) * session.getTileHeight());
+			for (int run = 0; run < runsPerRow; run++) {
+				final int first = run * columns / runsPerRow;
+				final int last = (run + 1) * columns / runsPerRow;
+				final int x0 = Math.max(session.getImageX0(), session.getTileX0() + first * session.getTileWidth());
+				final int x1 = Math.min(session.getImageX1(), session.getTileX0() + last * session.getTileWidth());
+				runs.add(new int[] { x0, y0, x1, y1 });
+			}
+		}
+		return runs;
+	}
+
+	/**
+	 * a decoder for a parallel decode task, cancelled along with this one and
+	 * decoding the same quality layers
+	 */
+	private OpenJPEGJavaDecoder worker() {
+		final OpenJPEGJavaDecoder worker = new OpenJPEGJavaDecoder();
+		worker.cancelFlag = cancelFlag;
+		worker.maxQualityLayers = maxQualityLayers;
+		worker.nativeLogLevel = nativeLogLevel;
+		worker.nativeLogBuffered = nativeLogBuffered;
+		return worker;
+	}
+
+	private int decodeInParallel(String[] parameters) {
+		final String fileName = inputFile(parameters);
+		ByteBuffer input = compressedBuffer;
+		if (fileName == null && input == null) {
+			input = ByteBuffer.allocateDirect(compressedStream.length);
+			input.put(compressedStream).flip();
+		}
+		final OpenJPEGJavaDecoderSession first = OpenJPEGJavaDecoderSession.open(fileName, input,
+				worker());
+		if (first == null) // JPT streams and the like
+			return internalDecodeJ2KtoImage(parameters);
+
+		boolean owned = true;
+		try {
+			final int reduction = userChangedTile != 0 && userChangedReduction != 0 ? reductionIn : 0;
+			maxTiles = first.getNumTilesX() * first.getNumTilesY();
+			maxReduction = first.getNumResolutions();
+			userChangedTile = 1;
+			userChangedReduction = 1;
+			if (reduction >= maxReduction)
+				return -1;
+
+			final List<int[]> runs = tileRuns(first);
+			final int originX = first.reducedX(first.getImageX0(), reduction);
+			final int originY = first.reducedY(first.getImageY0(), reduction);
+
+			// the first run tells the pixel layout of the output
+			final int[] run = runs.get(0);
+			if (first.decodeRegion(run[0], run[1], run[2], run[3], reduction) != 0)
+				return -1;
+			final OpenJPEGJavaDecoder probe = first.getDecoder();
+			width = first.reducedX(first.getImageX1(), reduction) - originX;
+			height = first.reducedY(first.getImageY1(), reduction) - originY;
+			bitsPerSample = probe.bitsPerSample;
+			samplesPerPixel = probe.samplesPerPixel;
+			image8 = null;
+			image16 = null;
+			image24 = null;
+			final Object runPixels;
+			final DataBuffer output;
+			if (probe.image24 != null) {
+				alloc24();
+				runPixels = probe.image24;
+				output = new DataBufferInt(image24, image24.length);
+			} else if (probe.image16 != null) {
+				alloc16();
+				runPixels = probe.image16;
+				output = new DataBufferUShort(image16, image16.length);
+			} else {
+				alloc8();
+				runPixels = probe.image8;
+				output = new DataBufferByte(image8, image8.length);
+			}
+			final int offset = destination != null ? destinationOffset : 0;
+			final int stride = destinationStride > 0 ? destinationStride : width;
+			final Object outputPixels = image24 != null ? image24 : image16 != null ? image16 : image8;
+			final int runX = first.reducedX(run[0], reduction) - originX;
+			final int runY = first.reducedY(run[1], reduction) - originY;
+			for (int y = 0; y < probe.height; y++)
+				System.arraycopy(runPixels, y * probe.width, outputPixels,
+						offset + (runY + y) * stride + runX, probe.width);
+
+			// the other runs are decoded in place by the workers
+			final AtomicInteger nextRun = new AtomicInteger(1);
+			final AtomicBoolean failed = new AtomicBoolean(false);
+			final int workers = Math.min(parallelWorkers, runs.size() - 1);
+			final List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>(workers);
+			final List<AtomicBoolean> started = new ArrayList<AtomicBoolean>(workers);
+			for (int w = 0; w < workers; w++) {
+				final OpenJPEGJavaDecoderSession firstSession = w == 0 ? first : null;
+				final ByteBuffer sharedInput = input;
+				final AtomicBoolean taskStarted = new AtomicBoolean(false);
+				FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+					public Void call() {
+						// a task claimed by stopTasks never starts
+						if (!taskStarted.compareAndSet(false, true))
+							return null;
+						OpenJPEGJavaDecoderSession session = firstSession;
+						try {
+							if (session == null)
+								session = OpenJPEGJavaDecoderSession.open(fileName, sharedInput,
+										worker());
+							if (session == null) {
+								failed.set(true);
+								return null;
+							}
+							final OpenJPEGJavaDecoder worker = session.getDecoder();
+							int index;
+							while (!failed.get() && (index = nextRun.getAndIncrement()) < runs.size()) {
+								final int[] r = runs.get(index);
+								final int x = session.reducedX(r[0], reduction) - originX;
+								final int y = session.reducedY(r[1], reduction) - originY;
+								worker.setDestination(output, offset + y * stride + x, stride);
+								if (session.decodeRegion(r[0], r[1], r[2], r[3], reduction) != 0)
+									failed.set(true);
+							}
+						} finally {
+							if (session != null)
+								session.close();
+						}
+						return null;
+					}
+				});
+				tasks.add(task);
+				started.add(taskStarted);
+			}
+			Throwable failure = null;
+			for (FutureTask<Void> task : tasks) {
+				try {
+					parallelExecutor.execute(task);
+				} catch (RuntimeException e) {
+					// rejected: the tasks handed over so far are waited for below
+					failure = e;
+					owned |= stopTasks(tasks, started, failed);
+					break;
+				}
+				owned = false; // the first task closes the first session
+			}
+			// every running task is waited for, even on failure, so that none
+			// writes into the output once the decode returned. A task the
+			// executor did not start yet is run here, so that a decode running
+			// on the executor itself does not wait for a thread it holds.
+			boolean interrupted = false;
+			for (int w = 0; w < tasks.size(); w++) {
+				try {
+					tasks.get(w).run();
+					tasks.get(w).get();
+				} catch (CancellationException e) {
+					// claimed before it started
+				} catch (ExecutionException e) {
+					if (failure == null)
+						failure = e.getCause();
+					owned |= stopTasks(tasks, started, failed);
+				} catch (InterruptedException e) {
+					interrupted = true;
+					owned |= stopTasks(tasks, started, failed);
+					w--; // waits for this task again
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			if (failure instanceof RuntimeException)
+				throw (RuntimeException) failure;
+			if (failure instanceof Error)
+				throw (Error) failure;
+			return failed.get() || interrupted ? -1 : 0;
+		} finally {
+			if (owned)
+				first.close();
+		}
+	}
+
+	/**
+	 * Stops a failed parallel decode: the running tasks stop at their next
+	 * run, and the tasks not started yet are cancelled.
+	 *
+	 * @return true if the first task was cancelled, which leaves the first
+	 *         session to the caller
+	 */
+	private static boolean stopTasks(List<FutureTask<Void>> tasks, List<AtomicBoolean> started,
+			AtomicBoolean failed) {
+		failed.set(true);
+		boolean firstCancelled = false;
+		for (int w = 0; w < tasks.size(); w++) {
+			if (started.get(w).compareAndSet(false, true)) {
+				tasks.get(w).cancel(false);
+				firstCancelled |= w == 0;
+			}
+		}
+		return firstCancelled;
+	}
+
+	/**
+	 * Wraps the pixels of the last decode into a BufferedImage, without
+	 * copying them. Returns null if nothing was decoded, or if a planar decode
+	 * has more components than gray, gray + alpha, RGB and RGBA.
+	 */
+	BufferedImage createBufferedImage() {
+		final int offset = destination != null ? destinationOffset : 0;
+		final int stride = destinationStride > 0 ? destinationStride : width;
+		final WritableRaster raster;
+		final ColorModel colorModel;
+		if (planes != null) {
+			final int[] bits = new int[samplesPerPixel];
+			java.util.Arrays.fill(bits, bitsPerSample);
+			colorModel = planarColorModel(bits, planesDataType);
+			if (colorModel == null)
+				return null;
+			raster = createPlanarRaster(null);
+		} else if (image24 != null) {
+			final boolean hasAlpha = samplesPerPixel == 2 || samplesPerPixel == 4;
+			final DirectColorModel directModel = hasAlpha ? (DirectColorModel) ColorModel.getRGBdefault()
+					: new DirectColorModel(24, 0x00ff0000, 0x0000ff00, 0x000000ff);
+			raster = Raster.createPackedRaster(new DataBufferInt(image24, image24.length - offset, offset),
+					width, height, stride, directModel.getMasks(), null);
+			colorModel = directModel;
+		} else if (image16 != null || image8 != null) {
+			final DataBuffer buffer;
+			final int bits;
+			if (image16 != null) {
+				buffer = new DataBufferUShort(image16, image16.length - offset, offset);
+				bits = Math.max(1, Math.min(bitsPerSample, 16));
+			} else {
+				buffer = new DataBufferByte(image8, image8.length - offset, offset);
+				bits = Math.max(1, Math.min(bitsPerSample, 8));
+			}
+			raster = Raster.createInterleavedRaster(buffer, width, height, stride, 1, new int[] { 0 }, null);
+			colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY),
+					new int[] { bits }, false, false, Transparency.OPAQUE, buffer.getDataType());
+		} else {
+			return null;
+		}
+		return new BufferedImage(colorModel, raster, false, null);
+	}
+
+	/**
+	 * Makes the following decodes hand every component over as decoded, one
+	 * array per component, instead of packing the first ones into ARGB ints
+	 * or keeping the first one only. The native decoder copies each component
+	 * plane into its array with no per pixel packing, and samples keep their
+	 * full precision and sign. The components must all have the same size,
+	 * or the decode fails. Samples are held by the narrowest of unsigned
+	 * bytes, unsigned shorts, signed shorts and ints, see
+	 * {@link #planarDataType(int[], boolean[])}. The pixels are then read through
+	 * {@link #createPlanarRaster(Point)} or {@link #getPlanes()}.
+	 */
+	public void setPlanarOutput(boolean planar) {
+		planarOutput = planar;
+		planes = null;
+	}
+
+	public boolean isPlanarOutput() {
+		return planarOutput;
+	}
+
+	/**
+	 * @return the component arrays of the last planar decode, a byte[][],
+	 *         short[][] or int[][] of {@link #getPlanesDataType()}, or null
+	 */
+	public Object getPlanes() {
+		return planes;
+	}
+
+	/** DataBuffer type of the arrays of {@link #getPlanes()}. */
+	public int getPlanesDataType() {
+		return planesDataType;
+	}
+
+	/**
+	 * Returns the DataBuffer type of the planes of a planar decode: the
+	 * narrowest of unsigned bytes, unsigned shorts, signed shorts and ints
+	 * holding every component.
+	 */
+	public static int planarDataType(int maxBitDepth, boolean signed) {
+		if (maxBitDepth <= 8 && !signed)
+			return DataBuffer.TYPE_BYTE;
+		if (maxBitDepth <= 16)
+			return signed ? DataBuffer.TYPE_SHORT : DataBuffer.TYPE_USHORT;
+		return DataBuffer.TYPE_INT;
+	}
+
+	/**
+	 * Returns the DataBuffer type of the planes of a planar decode from the
+	 * precision and signedness of each component, as the native decoder
+	 * picks it. Unsigned components sharing signed shorts with signed ones
+	 * must fit in 15 bits, or ints are used.
+	 */
+	public static int planarDataType(int[] bits, boolean[] signed) {
+		int maxBitDepth = 0;
+		int maxUnsignedBitDepth = 0;
+		boolean anySigned = false;
+		for (int i = 0; i < bits.length; i++) {
+			maxBitDepth = Math.max(maxBitDepth, bits[i]);
+			if (signed[i])
+				anySigned = true;
+			else
+				maxUnsignedBitDepth = Math.max(maxUnsignedBitDepth, bits[i]);
+		}
+		if (anySigned && maxUnsignedBitDepth > 15)
+			return DataBuffer.TYPE_INT;
+		return planarDataType(maxBitDepth, anySigned);
+	}
+
+	/**
+	 * Wraps the components of the last planar decode into a raster with one
+	 * bank per component, without copying them. Returns null if nothing was
+	 * decoded that way.
+	 * 
+	 * @param location
+	 *            position of the raster, null for (0,0)
+	 */
+	public WritableRaster createPlanarRaster(Point location) {
+		if (planes == null)
+			return null;
+		final int offset = destination != null ? destinationOffset : 0;
+		final int stride = destinationStride > 0 ? destinationStride : width;
+		final int size = (height - 1) * stride + width;
+		final int[] bankIndices = new int[samplesPerPixel];
+		final int[] offsets = new int[samplesPerPixel];
+		for (int b = 0; b < samplesPerPixel; b++) {
+			bankIndices[b] = b;
+			offsets[b] = offset;
+		}
+		final DataBuffer buffer;
+		switch (planesDataType) {
+		case DataBuffer.TYPE_BYTE:
+			buffer = new DataBufferByte((byte[][]) planes, size, offsets);
+			break;
+		case DataBuffer.TYPE_USHORT:
+			buffer = new DataBufferUShort((short[][]) planes, size, offsets);
+			break;
+		case DataBuffer.TYPE_SHORT:
+			buffer = new DataBufferShort((short[][]) planes, size, offsets);
+			break;
+		default:
+			buffer = new DataBufferInt((int[][]) planes, size, offsets);
+			break;
+		}
+		// the buffer offsets already place the first pixel
+		final BandedSampleModel sampleModel = new BandedSampleModel(planesDataType, width, height,
+				stride, bankIndices, new int[samplesPerPixel]);
+		return Raster.createWritableRaster(sampleModel, buffer, location);
+	}
+
+	/**
+	 * Returns the color model of planar pixels: gray, gray + alpha, RGB or
+	 * RGBA for 1 to 4 components, null for more components.
+	 * 
+	 * @param bits
+	 *            precision of each component
+	 */
+	static ColorModel planarColorModel(int[] bits, int dataType) {
+		final int numComponents = bits.length;
+		if (numComponents < 1 || numComponents > 4)
+			return null;
+		final int maxBits = DataBuffer.getDataTypeSize(dataType);
+		final int[] sizes = new int[numComponents];
+		for (int b = 0; b < numComponents; b++)
+			sizes[b] = Math.max(1, Math.min(bits[b], maxBits));
+		final boolean hasAlpha = numComponents == 2 || numComponents == 4;
+		final ColorSpace colorSpace = ColorSpace.getInstance(numComponents <= 2 ? ColorSpace.CS_GRAY
+				: ColorSpace.CS_sRGB);
+		return new ComponentColorModel(colorSpace, sizes, hasAlpha, false,
+				hasAlpha ? Transparency.TRANSLUCENT : Transparency.OPAQUE, dataType);
+	}
+
 	@Override
 	protected int internalGetFormat(String[] parameters) {
 		// TODO Auto-generated method stub
@@ -76,6 +883,7 @@ public class OpenJPEGJavaDecoder extends DecoderBase {
 	/* ================================================================== */
 	private native int internalDecodeJ2KtoImage(String[] parameters);
 	private native int internalGetDecodeFormat(String[] parameters);
+	private static native void initIDs();
 
 	/* ================================================================== */
 
@@ -122,8 +930,120 @@ public class OpenJPEGJavaDecoder extends DecoderBase {
 		this.maxReduction = v;
 	}
 
+	/**
+	 * Limits the decode to the first quality layers of the codestream. Fewer
+	 * layers mean less entropy decoding and less data read, at the cost of a
+	 * lower quality: one or two layers are usually enough for previews.
+	 * 
+	 * @param layers
+	 *            the number of layers to decode, 0 to decode them all
+	 */
+	public void setMaxQualityLayers(int layers) {
+		if (layers < 0)
+			throw new IllegalArgumentException("Negative number of quality layers: " + layers);
+		this.maxQualityLayers = layers;
+	}
+
+	public int getMaxQualityLayers() {
+		return maxQualityLayers;
+	}
+
+	/**
+	 * Replaces all the request settings (tile, reduction, area, quality
+	 * layers) by the ones of a spec, so that nothing is left over from a
+	 * previous request.
+	 */
+	public void configure(DecodeSpec spec) {
+		if (spec == null)
+			throw new IllegalArgumentException("spec is null");
+		// the native side only takes the tile and the reduction together
+		tileIn = spec.getTile();
+		reductionIn = spec.getReduction();
+		userChangedTile = 1;
+		userChangedReduction = 1;
+		maxTiles = 0;
+		maxReduction = 0;
+		userChangedArea = spec.hasArea() ? 1 : 0;
+		areaX0 = spec.getAreaX0();
+		areaY0 = spec.getAreaY0();
+		areaX1 = spec.getAreaX1();
+		areaY1 = spec.getAreaY1();
+		maxQualityLayers = spec.getMaxQualityLayers();
+	}
+
+	/**
+	 * Sets the listener told about each tile of the session decodes (regions,
+	 * tiles, resolutions), null for none.
+	 */
+	public void setTileListener(TileListener listener) {
+		tileListener = listener;
+	}
+
+	public TileListener getTileListener() {
+		return tileListener;
+	}
+
+	/**
+	 * Sets the level above which the messages of the native codec are
+	 * dropped, before any Java call: {@link NativeLog#OFF},
+	 * {@link NativeLog#ERROR}, {@link NativeLog#WARNING} (the default) or
+	 * {@link NativeLog#INFO}.
+	 */
+	public void setNativeLogLevel(int level) {
+		nativeLogLevel = NativeLog.checkLevel(level);
+	}
+
+	public int getNativeLogLevel() {
+		return nativeLogLevel;
+	}
+
+	/**
+	 * Makes the native codec keep its messages in a native ring buffer, and
+	 * send them to {@link #logMessage(String)} and {@link #logError(String)}
+	 * once the native call ends, instead of calling Java while it decodes. The
+	 * ring holds the latest 64 messages of a call.
+	 */
+	public void setNativeLogBuffered(boolean buffered) {
+		nativeLogBuffered = buffered;
+	}
+
+	public boolean isNativeLogBuffered() {
+		return nativeLogBuffered;
+	}
+
+	/** called by the native session decode after each tile */
+	private void tileDecoded(int tilesDone, int tilesTotal, int x, int y, int width, int height) {
+		final TileListener listener = tileListener;
+		if (listener != null)
+			listener.tileDecoded(tilesDone, tilesTotal, x, y, width, height);
+	}
+
+	/**
+	 * Cancels the decodes running on this decoder, from any thread. The
+	 * native codec checks for it before each tile and each precinct it
+	 * decodes, and the decode then fails, its native memory released. Every
+	 * later decode fails at once too, until {@link #clearCancel()}.
+	 */
+	public void cancel() {
+		cancelFlag.putInt(0, 1);
+	}
+
+	/** @return true if the decodes were cancelled */
+	public boolean isCancelled() {
+		return cancelFlag.getInt(0) != 0;
+	}
+
+	/** Lets the next decodes run again after a {@link #cancel()}. */
+	public void clearCancel() {
+		cancelFlag.putInt(0, 0);
+	}
+
 	public void reset() {
-		layers = null;
+		maxQualityLayers = 0;
+		compressedBuffer = null;
+		planes = null;
+		clearDestination();
+		clearCancel();
 		super.reset();
 	}
 
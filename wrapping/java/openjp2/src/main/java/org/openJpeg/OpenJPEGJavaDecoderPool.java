@@ -0,0 +1,170 @@
+package org.openJpeg;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A bounded set of decoders shared by the threads of a server. A decoder
+ * holds the state of one request, so it is never used by two threads at once:
+ * each decode borrows an idle decoder, configures it from an immutable
+ * {@link DecodeSpec}, and hands it back. At most maxDecoders decodes run at
+ * the same time; the others wait for a decoder to be free.
+ *
+ * Decoders are created on demand and reused, along with the native field and
+ * method IDs looked up for the first of them.
+ */
+public class OpenJPEGJavaDecoderPool {
+
+	private final int maxDecoders;
+
+	private final boolean memoryMappedInput;
+
+	/** one permit per decoder that may be lent */
+	private final Semaphore available;
+
+	private final BlockingQueue<OpenJPEGJavaDecoder> idle;
+
+	/**
+	 * @param maxDecoders
+	 *            maximum number of decodes running at the same time
+	 * @param memoryMappedInput
+	 *            whether the decoders read files through a memory mapping,
+	 *            shared by the concurrent decodes of the same file (see
+	 *            {@link OpenJPEGJavaDecoder#setMemoryMappedInput(boolean)})
+	 */
+	public OpenJPEGJavaDecoderPool(int maxDecoders, boolean memoryMappedInput) {
+		if (maxDecoders < 1)
+			throw new IllegalArgumentException("A pool needs at least one decoder");
+		this.maxDecoders = maxDecoders;
+		this.memoryMappedInput = memoryMappedInput;
+		available = new Semaphore(maxDecoders, true);
+		idle = new ArrayBlockingQueue<OpenJPEGJavaDecoder>(maxDecoders);
+	}
+
+	/**
+	 * Decodes a J2K or JP2 file.
+	 *
+	 * @return the decoded image, or null if the decode failed
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting for a decoder
+	 */
+	public BufferedImage decode(String fileName, DecodeSpec spec) throws InterruptedException {
+		return decode(fileName, spec, null);
+	}
+
+	/**
+	 * Decodes a J2K or JP2 file, unless it is cancelled.
+	 *
+	 * @param cancellation
+	 *            cancels the decode, may be null
+	 * @return the decoded image, or null if the decode failed or was cancelled
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting for a decoder
+	 */
+	public BufferedImage decode(String fileName, DecodeSpec spec, DecodeCancellation cancellation)
+			throws InterruptedException {
+		if (fileName == null)
+			throw new IllegalArgumentException("file name is null");
+		final OpenJPEGJavaDecoder decoder = acquire();
+		try {
+			if (cancellation != null && !cancellation.attach(decoder))
+				return null;
+			decoder.configure(spec);
+			if (decoder.internalDecode(new String[] { fileName }) != 0)
+				return null;
+			return decoder.createBufferedImage();
+		} finally {
+			if (cancellation != null)
+				cancellation.detach();
+			release(decoder);
+		}
+	}
+
+	/**
+	 * Decodes the codestream held by a direct buffer, from its position to its
+	 * limit. Concurrent decodes may share the buffer.
+	 *
+	 * @return the decoded image, or null if the decode failed
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting for a decoder
+	 */
+	public BufferedImage decode(ByteBuffer codestream, DecodeSpec spec) throws InterruptedException {
+		return decode(codestream, spec, null);
+	}
+
+	/**
+	 * Decodes the codestream held by a direct buffer, unless it is cancelled.
+	 *
+	 * @param cancellation
+	 *            cancels the decode, may be null
+	 * @return the decoded image, or null if the decode failed or was cancelled
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting for a decoder
+	 */
+	public BufferedImage decode(ByteBuffer codestream, DecodeSpec spec, DecodeCancellation cancellation)
+			throws InterruptedException {
+		if (codestream == null || !codestream.isDirect())
+			throw new IllegalArgumentException(
+					"The codestream must be held by a direct ByteBuffer");
+		final OpenJPEGJavaDecoder decoder = acquire();
+		try {
+			if (cancellation != null && !cancellation.attach(decoder))
+				return null;
+			decoder.configure(spec);
+			// a private view: the callers share the buffer, not its position
+			if (decoder.decode(codestream.duplicate()) != 0)
+				return null;
+			return decoder.createBufferedImage();
+		} finally {
+			if (cancellation != null)
+				cancellation.detach();
+			release(decoder);
+		}
+	}
+
+	/**
+	 * Borrows a decoder, waiting for one to be free if all are lent. It must
+	 * be given back with {@link #release(OpenJPEGJavaDecoder)}.
+	 */
+	public OpenJPEGJavaDecoder acquire() throws InterruptedException {
+		available.acquire();
+		final OpenJPEGJavaDecoder decoder = idle.poll();
+		return decoder != null ? decoder : newDecoder();
+	}
+
+	/**
+	 * Gives back a decoder borrowed with {@link #acquire()}. Its request
+	 * settings, its decoded image and any cancellation are dropped.
+	 */
+	public void release(OpenJPEGJavaDecoder decoder) {
+		try {
+			decoder.reset();
+			decoder.configure(DecodeSpec.FULL_IMAGE);
+			idle.offer(decoder);
+		} finally {
+			available.release();
+		}
+	}
+
+	/**
+	 * Creates the decoders of the pool. Subclasses can register a logger or
+	 * set defaults here.
+	 */
+	protected OpenJPEGJavaDecoder newDecoder() {
+		final OpenJPEGJavaDecoder decoder = new OpenJPEGJavaDecoder();
+		decoder.setMemoryMappedInput(memoryMappedInput);
+		return decoder;
+	}
+
+	public int getMaxDecoders() {
+		return maxDecoders;
+	}
+
+	/** Number of decoders lent right now. */
+	public int getActiveDecoders() {
+		return maxDecoders - available.availablePermits();
+	}
+}
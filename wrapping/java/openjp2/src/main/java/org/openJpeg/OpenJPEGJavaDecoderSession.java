@@ -0,0 +1,480 @@
+package org.openJpeg;
+
+import java.awt.Rectangle;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Keeps one codestream open in the native decoder. The stream is opened and
+ * its main header parsed once; every following decode only reads and decodes
+ * the tiles it needs, at the requested resolution. This makes repeated
+ * pan/zoom requests on the same image much cheaper than
+ * {@link OpenJPEGJavaDecoder#decode()}, which starts from scratch each time.
+ *
+ * The decoded pixels land in the session decoder (see {@link #getDecoder()}),
+ * exactly as for a one shot decode, including its destination buffer if one
+ * was set. A session is not thread safe, and must be closed to release the
+ * native codec.
+ */
+public class OpenJPEGJavaDecoderSession implements Closeable {
+
+	private final OpenJPEGJavaDecoder decoder;
+
+	/** native decode_session_t, 0 once closed */
+	private long nativeHandle;
+
+	/** direct buffer read in place by the native codec, kept alive until close */
+	private ByteBuffer codestream;
+
+	/** stream read through native callbacks, kept alive until close */
+	private ImageInputStreamSource source;
+
+	/** the file decoded, as it was when the session was opened; null for other inputs */
+	private String sourcePath;
+	private long sourceLength;
+	private long sourceModified;
+
+	/* filled by the native side when the session is opened */
+	private int imageX0;
+	private int imageY0;
+	private int imageX1;
+	private int imageY1;
+	private int tileX0;
+	private int tileY0;
+	private int tileWidth;
+	private int tileHeight;
+	private int numTilesX;
+	private int numTilesY;
+	private int numComponents;
+	private int componentDx;
+	private int componentDy;
+	private int bitsPerSample;
+	private int numResolutions;
+	private int numQualityLayers;
+	private int[] bitsPerComponent;
+	private int[] componentSubsamplingX;
+	private int[] componentSubsamplingY;
+	/** 1 if any component is signed */
+	private int signedComponents;
+	/** 1 for each signed component */
+	private int[] componentSigned;
+
+	private OpenJPEGJavaDecoderSession(OpenJPEGJavaDecoder decoder) {
+		OpenJPEGJavaDecoder.initNativeIDs();
+		this.decoder = decoder != null ? decoder : new OpenJPEGJavaDecoder();
+	}
+
+	/**
+	 * Opens a J2K or JP2 file.
+	 *
+	 * @return the session, or null if the file could not be opened or its
+	 *         header could not be read
+	 */
+	public static OpenJPEGJavaDecoderSession open(String fileName) {
+		if (fileName == null)
+			throw new IllegalArgumentException("file name is null");
+		OpenJPEGJavaDecoderSession session = new OpenJPEGJavaDecoderSession(null);
+		return session.open(fileName, null) ? session : null;
+	}
+
+	/**
+	 * Opens an in memory codestream. It is copied once into a direct buffer,
+	 * which the session reads in place until it is closed.
+	 *
+	 * @return the session, or null if the header could not be read
+	 */
+	public static OpenJPEGJavaDecoderSession open(byte[] codestream) {
+		if (codestream == null)
+			throw new IllegalArgumentException("codestream is null");
+		ByteBuffer buffer = ByteBuffer.allocateDirect(codestream.length);
+		buffer.put(codestream).flip();
+		return open(buffer);
+	}
+
+	/**
+	 * Opens the codestream held by a direct buffer, from its position to its
+	 * limit. The buffer content must not change until the session is closed.
+	 *
+	 * @return the session, or null if the header could not be read
+	 */
+	public static OpenJPEGJavaDecoderSession open(ByteBuffer codestream) {
+		if (codestream == null || !codestream.isDirect())
+			throw new IllegalArgumentException(
+					"The codestream must be held by a direct ByteBuffer");
+		OpenJPEGJavaDecoderSession session = new OpenJPEGJavaDecoderSession(null);
+		return session.open(null, codestream.slice()) ? session : null;
+	}
+
+	/**
+	 * Opens the codestream starting at the current position of a stream. The
+	 * stream is not buffered: the codec reads and seeks it through native
+	 * callbacks, so only the bytes of the main header and of the decoded tiles
+	 * are read. The stream must not be used by anybody else until the session
+	 * is closed, which moves it back to where the codestream starts.
+	 *
+	 * @return the session, or null if the header could not be read
+	 * @throws IOException
+	 *             if the stream failed
+	 */
+	public static OpenJPEGJavaDecoderSession open(ImageInputStream stream) throws IOException {
+		return open(stream, null);
+	}
+
+	/**
+	 * Opens a stream, with the given decoder receiving the pixels and the
+	 * messages.
+	 */
+	static OpenJPEGJavaDecoderSession open(ImageInputStream stream, OpenJPEGJavaDecoder decoder)
+			throws IOException {
+		if (stream == null)
+			throw new IllegalArgumentException("stream is null");
+		final ImageInputStreamSource source = new ImageInputStreamSource(stream);
+		final OpenJPEGJavaDecoderSession session = new OpenJPEGJavaDecoderSession(decoder);
+		session.source = source;
+		session.nativeHandle = session.internalOpen(session.decoder, null, null, source);
+		if (session.nativeHandle == 0) {
+			source.rewind();
+			if (source.getFailure() != null)
+				throw source.getFailure();
+			return null;
+		}
+		return session;
+	}
+
+	/**
+	 * Opens a file or a direct buffer, with the given decoder receiving the
+	 * pixels and the messages. A file is mapped if the decoder asks for memory
+	 * mapped input.
+	 */
+	static OpenJPEGJavaDecoderSession open(String fileName, ByteBuffer codestream,
+			OpenJPEGJavaDecoder decoder) {
+		OpenJPEGJavaDecoderSession session = new OpenJPEGJavaDecoderSession(decoder);
+		if (codestream == null && fileName != null) {
+			final File file = new File(fileName).getAbsoluteFile();
+			session.sourcePath = file.getPath();
+			session.sourceLength = file.length();
+			session.sourceModified = file.lastModified();
+		}
+		if (codestream == null && fileName != null && session.decoder.isMemoryMappedInput()) {
+			final ByteBuffer mapped = MappedCodestreams.mapOrNull(fileName);
+			if (mapped != null)
+				return session.open(null, mapped) ? session : null;
+		}
+		return session.open(fileName, codestream != null ? codestream.slice() : null) ? session : null;
+	}
+
+	private boolean open(String fileName, ByteBuffer buffer) {
+		codestream = buffer;
+		nativeHandle = internalOpen(decoder, fileName, buffer, null);
+		if (nativeHandle == 0) {
+			codestream = null;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Decodes one tile at the given resolution reduction.
+	 *
+	 * @param tileIndex
+	 *            raster order index of the tile in the tile grid
+	 * @param reduction
+	 *            number of discarded resolution levels, 0 for full resolution
+	 * @return 0 on success, -1 on failure
+	 */
+	public int decodeTile(int tileIndex, int reduction) {
+		if (tileIndex < 0 || tileIndex >= numTilesX * numTilesY)
+			throw new IllegalArgumentException("Tile index " + tileIndex
+					+ " is outside of the " + numTilesX + "x" + numTilesY + " tile grid");
+		final int tx = tileIndex % numTilesX;
+		final int ty = tileIndex / numTilesX;
+		final int x0 = tileX0 + tx * tileWidth;
+		final int y0 = tileY0 + ty * tileHeight;
+		return decodeRegion(x0, y0, x0 + tileWidth, y0 + tileHeight, reduction);
+	}
+
+	/**
+	 * Decodes the whole image at the given resolution reduction.
+	 *
+	 * @return 0 on success, -1 on failure
+	 */
+	public int decodeResolution(int reduction) {
+		return decodeRegion(imageX0, imageY0, imageX1, imageY1, reduction);
+	}
+
+	/**
+	 * Decodes an area of the image at the given resolution reduction. The area
+	 * is given on the full resolution reference grid, like
+	 * {@link OpenJPEGJavaDecoder#setAreaIn(int, int, int, int)}, and is clipped
+	 * to the image. The decoder width and height are set to the size of the
+	 * decoded area at the requested resolution.
+	 *
+	 * @return 0 on success, -1 on failure
+	 */
+	public int decodeRegion(int x0, int y0, int x1, int y1, int reduction) {
+		if (nativeHandle == 0)
+			throw new IllegalStateException("The decoder session is closed");
+		if (reduction < 0 || reduction >= numResolutions)
+			throw new IllegalArgumentException("Reduction " + reduction
+					+ " is outside of [0," + (numResolutions - 1) + "]");
+		x0 = Math.max(x0, imageX0);
+		y0 = Math.max(y0, imageY0);
+		x1 = Math.min(x1, imageX1);
+		y1 = Math.min(y1, imageY1);
+		if (x0 >= x1 || y0 >= y1)
+			return -1;
+		return internalDecode(nativeHandle, decoder, x0, y0, x1, y1, reduction);
+	}
+
+	/**
+	 * Decodes, at the given reduction, the reduced pixels covering a window of
+	 * the full resolution image. A reduced pixel covers 2^reduction x
+	 * 2^reduction full resolution pixels.
+	 * 
+	 * @param window
+	 *            pixel window of the full resolution image, inside the image
+	 * @return the decoded window, in pixels of the reduced first component
+	 *         (see {@link #reducedX(int, int)}), or null if the decode failed
+	 */
+	Rectangle decodePixels(Rectangle window, int reduction) {
+		final int originX = reducedX(imageX0, 0);
+		final int originY = reducedY(imageY0, 0);
+		final int rx0 = (originX + window.x) >> reduction;
+		final int ry0 = (originY + window.y) >> reduction;
+		final int rx1 = ((originX + window.x + window.width - 1) >> reduction) + 1;
+		final int ry1 = ((originY + window.y + window.height - 1) >> reduction) + 1;
+		if (decodeRegion((rx0 << reduction) * componentDx, (ry0 << reduction) * componentDy,
+				(rx1 << reduction) * componentDx, (ry1 << reduction) * componentDy, reduction) != 0)
+			return null;
+		return reducedWindow(window, reduction);
+	}
+
+	/**
+	 * Returns the reduced pixels {@link #decodePixels(Rectangle, int)} decodes
+	 * for a window, without decoding them.
+	 */
+	Rectangle reducedWindow(Rectangle window, int reduction) {
+		final int originX = reducedX(imageX0, 0);
+		final int originY = reducedY(imageY0, 0);
+		final int rx0 = (originX + window.x) >> reduction;
+		final int ry0 = (originY + window.y) >> reduction;
+		final int rx1 = ((originX + window.x + window.width - 1) >> reduction) + 1;
+		final int ry1 = ((originY + window.y + window.height - 1) >> reduction) + 1;
+
+		// the reduced image starts at its first pixel inside the image area
+		final int startX = Math.max(rx0, reducedX(imageX0, reduction));
+		final int startY = Math.max(ry0, reducedY(imageY0, reduction));
+		final int endX = Math.min(rx1, reducedX(imageX1, reduction));
+		final int endY = Math.min(ry1, reducedY(imageY1, reduction));
+		return new Rectangle(startX, startY, endX - startX, endY - startY);
+	}
+
+	/**
+	 * Returns the key of a tile of this session in a {@link DecodedTileCache},
+	 * for the quality layers the decoder is set to. Only files have a key.
+	 * 
+	 * @param layout
+	 *            layout of the cached raster, see {@link DecodedTileCache.Key}
+	 * @return the key, or null if the session does not decode a file
+	 */
+	DecodedTileCache.Key tileCacheKey(int tileIndex, int reduction, int layout) {
+		if (sourcePath == null)
+			return null;
+		return new DecodedTileCache.Key(sourcePath, sourceLength, sourceModified, tileIndex, reduction,
+				decoder.getMaxQualityLayers(), layout);
+	}
+
+	/**
+	 * Reads the byte layout of the codestream: main header markers and the
+	 * byte range of every tile-part. Only the marker segments are read, no tile
+	 * is decoded. It can be called at any time; following decodes are not
+	 * affected.
+	 *
+	 * @return the index, or null if it could not be read
+	 */
+	public CodestreamIndex getCodestreamIndex() {
+		if (nativeHandle == 0)
+			throw new IllegalStateException("The decoder session is closed");
+		return internalGetIndex(nativeHandle);
+	}
+
+	/**
+	 * Releases the native codec. Further decodes are refused.
+	 */
+	public void close() {
+		if (nativeHandle != 0) {
+			internalClose(nativeHandle);
+			nativeHandle = 0;
+		}
+		codestream = null;
+		if (source != null) {
+			try {
+				source.rewind();
+			} catch (IOException e) {
+				// the stream is of no use anymore anyway
+			}
+			source = null;
+		}
+	}
+
+	/**
+	 * @return the first failure of the stream the session reads, which the
+	 *         codec only sees as truncated data, or null
+	 */
+	IOException getStreamFailure() {
+		return source != null ? source.getFailure() : null;
+	}
+
+	/**
+	 * Maps a reference grid abscissa to the first component at the given
+	 * reduction, the coordinates of the decoded pixels.
+	 */
+	int reducedX(int x, int reduction) {
+		return ceilDivPow2(ceilDiv(x, componentDx), reduction);
+	}
+
+	/**
+	 * Maps a reference grid ordinate to the first component at the given
+	 * reduction, the coordinates of the decoded pixels.
+	 */
+	int reducedY(int y, int reduction) {
+		return ceilDivPow2(ceilDiv(y, componentDy), reduction);
+	}
+
+	/**
+	 * Maps a pixel column of the full resolution image to the reference grid.
+	 */
+	int referenceX(int column) {
+		return (reducedX(imageX0, 0) + column) * componentDx;
+	}
+
+	/**
+	 * Maps a pixel row of the full resolution image to the reference grid.
+	 */
+	int referenceY(int row) {
+		return (reducedY(imageY0, 0) + row) * componentDy;
+	}
+
+	private static int ceilDiv(int a, int b) {
+		return (int) (((long) a + b - 1) / b);
+	}
+
+	private static int ceilDivPow2(int a, int b) {
+		return (int) (((long) a + (1L << b) - 1) >> b);
+	}
+
+	public boolean isOpen() {
+		return nativeHandle != 0;
+	}
+
+	/** The decoder receiving the pixels and the messages of this session. */
+	public OpenJPEGJavaDecoder getDecoder() {
+		return decoder;
+	}
+
+	/** Width, in pixels, of the full resolution image. */
+	public int getWidth() {
+		return reducedX(imageX1, 0) - reducedX(imageX0, 0);
+	}
+
+	/** Height, in pixels, of the full resolution image. */
+	public int getHeight() {
+		return reducedY(imageY1, 0) - reducedY(imageY0, 0);
+	}
+
+	public int getImageX0() {
+		return imageX0;
+	}
+
+	public int getImageY0() {
+		return imageY0;
+	}
+
+	public int getImageX1() {
+		return imageX1;
+	}
+
+	public int getImageY1() {
+		return imageY1;
+	}
+
+	public int getTileX0() {
+		return tileX0;
+	}
+
+	public int getTileY0() {
+		return tileY0;
+	}
+
+	public int getTileWidth() {
+		return tileWidth;
+	}
+
+	public int getTileHeight() {
+		return tileHeight;
+	}
+
+	public int getNumTilesX() {
+		return numTilesX;
+	}
+
+	public int getNumTilesY() {
+		return numTilesY;
+	}
+
+	public int getNumComponents() {
+		return numComponents;
+	}
+
+	public int getBitsPerSample() {
+		return bitsPerSample;
+	}
+
+	public int getNumResolutions() {
+		return numResolutions;
+	}
+
+	public int getNumQualityLayers() {
+		return numQualityLayers;
+	}
+
+	public int[] getBitsPerComponent() {
+		return bitsPerComponent.clone();
+	}
+
+	/** Horizontal sampling step of each component on the reference grid. */
+	public int[] getComponentSubsamplingX() {
+		return componentSubsamplingX.clone();
+	}
+
+	/** Vertical sampling step of each component on the reference grid. */
+	public int[] getComponentSubsamplingY() {
+		return componentSubsamplingY.clone();
+	}
+
+	public boolean isSigned() {
+		return signedComponents != 0;
+	}
+
+	/** Signedness of each component. */
+	public boolean[] getComponentSigned() {
+		final boolean[] signed = new boolean[componentSigned.length];
+		for (int i = 0; i < signed.length; i++)
+			signed[i] = componentSigned[i] != 0;
+		return signed;
+	}
+
+	//NATIVE METHODS
+
+	/* ================================================================== */
+	private native long internalOpen(OpenJPEGJavaDecoder decoder, String fileName, ByteBuffer codestream,
+			ImageInputStreamSource source);
+	private native int internalDecode(long handle, OpenJPEGJavaDecoder decoder, int x0, int y0, int x1, int y1, int reduction);
+	private native CodestreamIndex internalGetIndex(long handle);
+	private native void internalClose(long handle);
+	/* ================================================================== */
+}
@@ -71,6 +71,12 @@ public class OpenJPEGJavaEncoder extends EncoderBase {
 
 	private Vector<IJavaJ2KEncoderLogger> loggers = new Vector<IJavaJ2KEncoderLogger>();
 
+	/** messages of the native codec above this level are dropped; read by the native side */
+	private int nativeLogLevel = NativeLog.WARNING;
+
+	/** if true, the native codec sends its messages at the end of each call; read by the native side */
+	private boolean nativeLogBuffered = false;
+
 	public void addLogger(IJavaJ2KEncoderLogger messagesAndErrorsLogger) {
 		loggers.addElement(messagesAndErrorsLogger);
 	}
@@ -79,6 +85,34 @@ public class OpenJPEGJavaEncoder extends EncoderBase {
 		loggers.removeElement(messagesAndErrorsLogger);
 	}
 
+	/**
+	 * Sets the level above which the messages of the native codec are
+	 * dropped, before any Java call: {@link NativeLog#OFF},
+	 * {@link NativeLog#ERROR}, {@link NativeLog#WARNING} (the default) or
+	 * {@link NativeLog#INFO}.
+	 */
+	public void setNativeLogLevel(int level) {
+		nativeLogLevel = NativeLog.checkLevel(level);
+	}
+
+	public int getNativeLogLevel() {
+		return nativeLogLevel;
+	}
+
+	/**
+	 * Makes the native codec keep its messages in a native ring buffer, and
+	 * send them to {@link #logMessage(String)} and {@link #logError(String)}
+	 * once the native call ends, instead of calling Java while it encodes. The
+	 * ring holds the latest 64 messages of a call.
+	 */
+	public void setNativeLogBuffered(boolean buffered) {
+		nativeLogBuffered = buffered;
+	}
+
+	public boolean isNativeLogBuffered() {
+		return nativeLogBuffered;
+	}
+
 	/**
 	 * This method compresses the given image.
 	 * <P>
@@ -106,6 +140,19 @@ public class OpenJPEGJavaEncoder extends EncoderBase {
 					+ " bytes for the compressedStream");
 			compressedStream = new byte[comressBufferSize];
 		}
+		String[] arguments = encoderArguments();
+		logMessage("Encoder additional arguments = " + arrayToString(arguments));
+		long startTime = (new java.util.Date()).getTime();
+		compressedStreamLength = internalEncode(arguments);
+		logMessage("compression time = "
+				+ ((new java.util.Date()).getTime() - startTime) + " msec");
+	}
+
+	/**
+	 * Builds the native encoder arguments from the compression parameters,
+	 * for {@link #encode()} and {@link OpenJPEGJavaEncoderSession}.
+	 */
+	String[] encoderArguments() {
 		// Arguments =
 		// - number of resolutions "-n 5" : 2
 		// - size of tile "-t 512,512" : 2
@@ -150,11 +197,7 @@ public class OpenJPEGJavaEncoder extends EncoderBase {
 				arguments[i + offset] = encoder_arguments[i];
 			}
 		}
-		logMessage("Encoder additional arguments = " + arrayToString(arguments));
-		long startTime = (new java.util.Date()).getTime();
-		compressedStreamLength = internalEncode(arguments);
-		logMessage("compression time = "
-				+ ((new java.util.Date()).getTime() - startTime) + " msec");
+		return arguments;
 	}
 
 	/**
@@ -0,0 +1,228 @@
+package org.openJpeg;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Encodes an image into a codestream file one tile at a time. The main header
+ * is written when the session is opened; each codestream tile is then handed
+ * over in raster order, and encoded and written at once. Only one tile of
+ * pixels is held at any time, by Java and by the native codec, whatever the
+ * size of the image.
+ *
+ * The encoding parameters are those of the session encoder, see
+ * {@link OpenJPEGJavaEncoder#encode()}, except for the tiling, which is the
+ * one of the session. The encoder also receives the messages. A session is
+ * not thread safe, and must be closed to release the native codec.
+ */
+public class OpenJPEGJavaEncoderSession implements Closeable {
+
+	private final OpenJPEGJavaEncoder encoder;
+
+	/** native encode_session_t, 0 once closed */
+	private long nativeHandle;
+
+	private final int width;
+	private final int height;
+	private final int numComponents;
+	private final int tileWidth;
+	private final int tileHeight;
+	private final int numTilesX;
+	private final int numTilesY;
+
+	/** bytes per sample handed to the codec: 1 up to 8 bits, 2 beyond */
+	private final int sampleSize;
+
+	/** the component planes of one tile, read in place by the native codec */
+	private final ByteBuffer tileBuffer;
+
+	/** samples of one component of a tile */
+	private int[] samples;
+
+	/** index of the next tile to write */
+	private int nextTile;
+
+	private OpenJPEGJavaEncoderSession(OpenJPEGJavaEncoder encoder, int width, int height,
+			int numComponents, int bitsPerSample, int tileWidth, int tileHeight) {
+		this.encoder = encoder;
+		this.width = width;
+		this.height = height;
+		this.numComponents = numComponents;
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+		numTilesX = (width + tileWidth - 1) / tileWidth;
+		numTilesY = (height + tileHeight - 1) / tileHeight;
+		sampleSize = bitsPerSample <= 8 ? 1 : 2;
+		tileBuffer = ByteBuffer.allocateDirect(tileWidth * tileHeight * numComponents * sampleSize)
+				.order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * Opens the output file and writes the main header of the codestream.
+	 *
+	 * @param encoder
+	 *            the encoder giving the encoding parameters and receiving the
+	 *            messages
+	 * @param fileName
+	 *            the file written, replaced if it exists
+	 * @param jp2
+	 *            true to write a JP2 file, false for a bare J2K codestream
+	 * @param bitsPerSample
+	 *            precision of every component, at most 16 bits
+	 * @param signed
+	 *            true if the samples are signed
+	 * @param tileWidth
+	 *            width of the codestream tiles, whose grid starts at the
+	 *            image origin
+	 * @return the session, or null if the file or the codec could not be set
+	 *         up
+	 */
+	public static OpenJPEGJavaEncoderSession open(OpenJPEGJavaEncoder encoder, String fileName,
+			boolean jp2, int width, int height, int numComponents, int bitsPerSample, boolean signed,
+			int tileWidth, int tileHeight) {
+		if (encoder == null || fileName == null)
+			throw new IllegalArgumentException("encoder and file name are needed");
+		if (width <= 0 || height <= 0 || numComponents <= 0 || tileWidth <= 0 || tileHeight <= 0)
+			throw new IllegalArgumentException("Empty image or tile: " + width + "x" + height + ", "
+					+ numComponents + " components, " + tileWidth + "x" + tileHeight + " tiles");
+		if (bitsPerSample <= 0 || bitsPerSample > 16)
+			throw new IllegalArgumentException("Unsupported precision: " + bitsPerSample + " bits");
+		final OpenJPEGJavaEncoderSession session = new OpenJPEGJavaEncoderSession(encoder, width, height,
+				numComponents, bitsPerSample, tileWidth, tileHeight);
+		session.nativeHandle = session.internalOpen(encoder, encoder.encoderArguments(), fileName, jp2,
+				width, height, numComponents, bitsPerSample, signed, tileWidth, tileHeight);
+		return session.nativeHandle != 0 ? session : null;
+	}
+
+	/**
+	 * @return the pixels of a tile, clipped to the image
+	 */
+	public Rectangle getTileBounds(int tileIndex) {
+		if (tileIndex < 0 || tileIndex >= numTilesX * numTilesY)
+			throw new IndexOutOfBoundsException("Tile index " + tileIndex + " is outside of [0,"
+					+ numTilesX * numTilesY + "[");
+		final int x = (tileIndex % numTilesX) * tileWidth;
+		final int y = (tileIndex / numTilesX) * tileHeight;
+		return new Rectangle(x, y, Math.min(tileWidth, width - x), Math.min(tileHeight, height - y));
+	}
+
+	/**
+	 * Encodes the next tile, whose pixels are those of the first bands of a
+	 * raster, from the given raster position on.
+	 *
+	 * @param tileIndex
+	 *            raster order index of the tile, which must be the one after
+	 *            the last tile written
+	 * @param x
+	 *            column of the raster holding the first column of the tile
+	 * @param y
+	 *            row of the raster holding the first row of the tile
+	 * @return false if the codec failed; the codestream is then of no use
+	 */
+	public boolean writeTile(int tileIndex, Raster raster, int x, int y) {
+		if (nativeHandle == 0)
+			throw new IllegalStateException("The encoder session is closed");
+		if (tileIndex != nextTile)
+			throw new IllegalStateException("Tiles are written in raster order: tile " + nextTile
+					+ " is expected, not " + tileIndex);
+		if (raster.getNumBands() < numComponents)
+			throw new IllegalArgumentException("The raster has " + raster.getNumBands()
+					+ " bands, the codestream " + numComponents + " components");
+		final Rectangle bounds = getTileBounds(tileIndex);
+		final int count = bounds.width * bounds.height;
+
+		tileBuffer.clear();
+		for (int band = 0; band < numComponents; band++) {
+			samples = raster.getSamples(x, y, bounds.width, bounds.height, band, samples);
+			if (sampleSize == 1) {
+				for (int i = 0; i < count; i++)
+					tileBuffer.put((byte) samples[i]);
+			} else {
+				final ShortBuffer shorts = tileBuffer.asShortBuffer();
+				for (int i = 0; i < count; i++)
+					shorts.put((short) samples[i]);
+				tileBuffer.position(tileBuffer.position() + 2 * count);
+			}
+		}
+		nextTile++;
+		return internalWriteTile(nativeHandle, encoder, tileIndex, tileBuffer, tileBuffer.position());
+	}
+
+	/**
+	 * Writes the end of the codestream, once every tile was written, and
+	 * closes the file.
+	 *
+	 * @return false if the codec failed
+	 */
+	public boolean finish() {
+		if (nativeHandle == 0)
+			throw new IllegalStateException("The encoder session is closed");
+		if (nextTile != numTilesX * numTilesY)
+			throw new IllegalStateException("Only " + nextTile + " of the " + numTilesX * numTilesY
+					+ " tiles were written");
+		return internalFinish(nativeHandle, encoder);
+	}
+
+	/**
+	 * Releases the native codec, and closes the file if {@link #finish()} was
+	 * not called: the codestream is then incomplete.
+	 */
+	public void close() {
+		if (nativeHandle != 0) {
+			internalClose(nativeHandle);
+			nativeHandle = 0;
+		}
+	}
+
+	public boolean isOpen() {
+		return nativeHandle != 0;
+	}
+
+	public OpenJPEGJavaEncoder getEncoder() {
+		return encoder;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getNumComponents() {
+		return numComponents;
+	}
+
+	public int getTileWidth() {
+		return tileWidth;
+	}
+
+	public int getTileHeight() {
+		return tileHeight;
+	}
+
+	public int getNumTilesX() {
+		return numTilesX;
+	}
+
+	public int getNumTilesY() {
+		return numTilesY;
+	}
+
+	//NATIVE METHODS
+
+	/* ================================================================== */
+	private native long internalOpen(OpenJPEGJavaEncoder encoder, String[] parameters, String fileName,
+			boolean jp2, int width, int height, int numComponents, int bitsPerSample, boolean signed,
+			int tileWidth, int tileHeight);
+	private native boolean internalWriteTile(long handle, OpenJPEGJavaEncoder encoder, int tileIndex,
+			ByteBuffer data, int length);
+	private native boolean internalFinish(long handle, OpenJPEGJavaEncoder encoder);
+	private native void internalClose(long handle);
+	/* ================================================================== */
+}
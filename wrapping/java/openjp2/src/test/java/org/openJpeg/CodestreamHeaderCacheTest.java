@@ -0,0 +1,72 @@
+package org.openJpeg;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the parsed header cache.
+ */
+public class CodestreamHeaderCacheTest
+    extends TestCase
+{
+    public CodestreamHeaderCacheTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( CodestreamHeaderCacheTest.class );
+    }
+
+    public void testLeastRecentlyUsedHeaderGoesFirst()
+    {
+        CodestreamHeaderCache cache = new CodestreamHeaderCache( 2 );
+        JP2KCodestreamProperties first = new JP2KCodestreamProperties();
+        cache.putProperties( "a", first );
+        cache.putProperties( "b", new JP2KCodestreamProperties() );
+        assertSame( first, cache.getProperties( "a" ) );
+        cache.putProperties( "c", new JP2KCodestreamProperties() );
+
+        assertEquals( 2, cache.size() );
+        assertNotNull( cache.getProperties( "a" ) );
+        assertNull( cache.getProperties( "b" ) );
+        assertEquals( 2, cache.getHits() );
+        assertEquals( 1, cache.getMisses() );
+    }
+
+    public void testIndexNeedsProperties()
+    {
+        CodestreamHeaderCache cache = new CodestreamHeaderCache( 2 );
+        CodestreamIndex index = new CodestreamIndex( 0, 100, 200, new int[0], new long[0], new int[0],
+                1, new int[] { 0 }, new long[] { 100 }, new long[] { 114 }, new long[] { 200 } );
+        cache.putIndex( "a", index );
+        assertNull( cache.getIndex( "a" ) );
+        cache.putProperties( "a", new JP2KCodestreamProperties() );
+        cache.putIndex( "a", index );
+        assertSame( index, cache.getIndex( "a" ) );
+    }
+
+    public void testRewrittenFileGetsAnotherKey() throws IOException
+    {
+        File file = File.createTempFile( "header", ".j2k" );
+        try
+        {
+            Object key = CodestreamHeaderCache.fileKey( file );
+            assertEquals( key, CodestreamHeaderCache.fileKey( file ) );
+            FileOutputStream out = new FileOutputStream( file );
+            out.write( new byte[] { 1, 2, 3 } );
+            out.close();
+            assertFalse( key.equals( CodestreamHeaderCache.fileKey( file ) ) );
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+}
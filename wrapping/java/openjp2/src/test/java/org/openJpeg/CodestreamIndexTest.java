@@ -0,0 +1,98 @@
+package org.openJpeg;
+
+import java.io.IOException;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the codestream index serialization.
+ */
+public class CodestreamIndexTest
+    extends TestCase
+{
+    public CodestreamIndexTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( CodestreamIndexTest.class );
+    }
+
+    private static CodestreamIndex sample()
+    {
+        // 2 tiles, the second one split in two tile-parts, the first one last
+        return new CodestreamIndex( 85, 200, 5000000000L,
+                new int[] { 0xff4f, 0xff51, 0xff52, 0xff5c },
+                new long[] { 85, 87, 130, 150 },
+                new int[] { 0, 41, 18, 48 },
+                3,
+                new int[] { 1, 0, 1 },
+                new long[] { 200, 1200, 3000000000L },
+                new long[] { 214, 1214, 3000000014L },
+                new long[] { 1200, 3000000000L, 5000000083L } );
+    }
+
+    public void testRoundTrip() throws IOException
+    {
+        CodestreamIndex index = sample();
+        byte[] data = index.toByteArray();
+        CodestreamIndex read = CodestreamIndex.fromByteArray( data );
+        assertEquals( index, read );
+        assertEquals( index.hashCode(), read.hashCode() );
+        assertEquals( 3000000014L, read.getTilePartHeaderEnd( 2 ) );
+        assertTrue( data.length < 64 );
+    }
+
+    public void testTileParts()
+    {
+        CodestreamIndex index = sample();
+        assertEquals( 1, index.getTileParts( 0 ).length );
+        assertEquals( 0, index.getTileParts( 2 ).length );
+        int[] parts = index.getTileParts( 1 );
+        assertEquals( 2, parts.length );
+        assertEquals( 0, parts[0] );
+        assertEquals( 2, parts[1] );
+        assertEquals( 1000 + 2000000083L, index.getTileLength( 1 ) );
+    }
+
+    public void testRejectsOtherData()
+    {
+        byte[] data = sample().toByteArray();
+        data[0] = 0;
+        try
+        {
+            CodestreamIndex.fromByteArray( data );
+            fail( "read data without the index magic" );
+        }
+        catch ( IOException expected )
+        {
+        }
+        data = sample().toByteArray();
+        try
+        {
+            CodestreamIndex.fromByteArray( java.util.Arrays.copyOf( data, data.length - 3 ) );
+            fail( "read a truncated index" );
+        }
+        catch ( IOException expected )
+        {
+        }
+    }
+
+    public void testRejectsCountsLargerThanTheData()
+    {
+        // magic, version, main header at 0, then 100000 markers in a few bytes
+        byte[] data = { 0x4f, 0x4a, 0x43, 0x49, 1, 0, 0, 0, (byte) 0xa0, (byte) 0x8d, 0x06, 0, 0, 0 };
+        try
+        {
+            CodestreamIndex.fromByteArray( data );
+            fail( "read 100000 markers from " + data.length + " bytes" );
+        }
+        catch ( IOException expected )
+        {
+        }
+    }
+}
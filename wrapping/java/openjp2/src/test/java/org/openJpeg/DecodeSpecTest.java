@@ -0,0 +1,92 @@
+package org.openJpeg;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the decode request specs.
+ */
+public class DecodeSpecTest
+    extends TestCase
+{
+    public DecodeSpecTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( DecodeSpecTest.class );
+    }
+
+    public void testWithMethodsCopy()
+    {
+        DecodeSpec spec = DecodeSpec.FULL_IMAGE.withReduction( 2 ).withMaxQualityLayers( 3 );
+        DecodeSpec tile = spec.withTile( 7 );
+
+        assertEquals( -1, spec.getTile() );
+        assertEquals( 7, tile.getTile() );
+        assertEquals( 2, tile.getReduction() );
+        assertEquals( 3, tile.getMaxQualityLayers() );
+        assertEquals( 0, DecodeSpec.FULL_IMAGE.getReduction() );
+        assertFalse( DecodeSpec.FULL_IMAGE.hasArea() );
+        assertEquals( spec, DecodeSpec.FULL_IMAGE.withMaxQualityLayers( 3 ).withReduction( 2 ) );
+        assertEquals( spec.hashCode(), DecodeSpec.FULL_IMAGE.withMaxQualityLayers( 3 ).withReduction( 2 ).hashCode() );
+        assertFalse( spec.equals( tile ) );
+    }
+
+    public void testArea()
+    {
+        DecodeSpec spec = DecodeSpec.FULL_IMAGE.withArea( 10, 20, 30, 40 );
+        assertTrue( spec.hasArea() );
+        assertEquals( 10, spec.getAreaX0() );
+        assertEquals( 20, spec.getAreaY0() );
+        assertEquals( 30, spec.getAreaX1() );
+        assertEquals( 40, spec.getAreaY1() );
+    }
+
+    public void testRejectsInvalidValues()
+    {
+        try
+        {
+            DecodeSpec.FULL_IMAGE.withTile( -2 );
+            fail( "accepted tile -2" );
+        }
+        catch ( IllegalArgumentException expected )
+        {
+        }
+        try
+        {
+            DecodeSpec.FULL_IMAGE.withReduction( -1 );
+            fail( "accepted a negative reduction" );
+        }
+        catch ( IllegalArgumentException expected )
+        {
+        }
+        try
+        {
+            DecodeSpec.FULL_IMAGE.withMaxQualityLayers( -1 );
+            fail( "accepted a negative number of layers" );
+        }
+        catch ( IllegalArgumentException expected )
+        {
+        }
+        try
+        {
+            DecodeSpec.FULL_IMAGE.withArea( 10, 0, 10, 5 );
+            fail( "accepted an empty area" );
+        }
+        catch ( IllegalArgumentException expected )
+        {
+        }
+        try
+        {
+            DecodeSpec.FULL_IMAGE.withArea( -1, 0, 10, 5 );
+            fail( "accepted a negative area origin" );
+        }
+        catch ( IllegalArgumentException expected )
+        {
+        }
+    }
+}
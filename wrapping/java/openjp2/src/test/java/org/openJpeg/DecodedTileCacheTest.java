@@ -0,0 +1,81 @@
+package org.openJpeg;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the shared decoded tile cache.
+ */
+public class DecodedTileCacheTest
+    extends TestCase
+{
+    public DecodedTileCacheTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( DecodedTileCacheTest.class );
+    }
+
+    private static DecodedTileCache.Key key( int tile )
+    {
+        return new DecodedTileCache.Key( "/data/image.jp2", 1000, 42, tile, 0, 0, DecodedTileCache.IMAGE_TILE );
+    }
+
+    /** a 10x10 gray tile: 100 bytes */
+    private static Raster tile()
+    {
+        return Raster.createBandedRaster( DataBuffer.TYPE_BYTE, 10, 10, 1, null );
+    }
+
+    public void testHitsAndMisses()
+    {
+        DecodedTileCache cache = new DecodedTileCache( 1000 );
+        Raster raster = tile();
+        assertNull( cache.get( key( 0 ) ) );
+        cache.put( key( 0 ), raster );
+        assertSame( raster, cache.get( key( 0 ) ) );
+        assertEquals( 1, cache.getHits() );
+        assertEquals( 1, cache.getMisses() );
+        assertEquals( 100, cache.getBytes() );
+
+        // the same tile of a rewritten file
+        assertNull( cache.get( new DecodedTileCache.Key( "/data/image.jp2", 1000, 43, 0, 0, 0, DecodedTileCache.IMAGE_TILE ) ) );
+        assertNull( cache.get( new DecodedTileCache.Key( "/data/image.jp2", 1000, 42, 0, 0, 0, DecodedTileCache.TILE_RASTER ) ) );
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws InterruptedException
+    {
+        DecodedTileCache cache = new DecodedTileCache( 450 );
+        for ( int i = 0; i < 4; i++ )
+        {
+            cache.put( key( i ), tile() );
+            Thread.sleep( 1 );
+        }
+        // tile 0 becomes the most recently used
+        assertNotNull( cache.get( key( 0 ) ) );
+        Thread.sleep( 1 );
+        cache.put( key( 4 ), tile() );
+
+        assertTrue( cache.getBytes() <= 450 );
+        assertEquals( cache.size() * 100L, cache.getBytes() );
+        assertTrue( cache.getEvictions() >= 1 );
+        assertNotNull( cache.get( key( 0 ) ) );
+        assertNotNull( cache.get( key( 4 ) ) );
+        assertNull( cache.get( key( 1 ) ) );
+    }
+
+    public void testTooLargeTileIsNotCached()
+    {
+        DecodedTileCache cache = new DecodedTileCache( 50 );
+        cache.put( key( 0 ), tile() );
+        assertEquals( 0, cache.size() );
+        assertEquals( 0, cache.getBytes() );
+    }
+}
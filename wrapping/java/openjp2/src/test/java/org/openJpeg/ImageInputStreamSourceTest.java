@@ -0,0 +1,116 @@
+package org.openJpeg;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the ImageInputStream feeding the native decoder.
+ */
+public class ImageInputStreamSourceTest
+    extends TestCase
+{
+    public ImageInputStreamSourceTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ImageInputStreamSourceTest.class );
+    }
+
+    private static byte[] bytes( int length )
+    {
+        byte[] data = new byte[length];
+        for ( int i = 0; i < length; i++ )
+        {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    public void testPositionsStartAtTheStreamPosition() throws IOException
+    {
+        File file = File.createTempFile( "source", ".j2k" );
+        try
+        {
+            FileOutputStream out = new FileOutputStream( file );
+            out.write( bytes( 100 ) );
+            out.close();
+            ImageInputStream stream = new FileImageInputStream( file );
+            try
+            {
+                stream.seek( 10 );
+                ImageInputStreamSource source = new ImageInputStreamSource( stream );
+                assertEquals( 90, source.getLength() );
+
+                assertTrue( source.seek( 5 ) );
+                assertEquals( 15, stream.getStreamPosition() );
+                assertEquals( 4, source.read( 4 ) );
+                assertEquals( 15, source.getChunk().get( 0 ) );
+                assertEquals( 18, source.getChunk().get( 3 ) );
+
+                source.rewind();
+                assertEquals( 10, stream.getStreamPosition() );
+                assertNull( source.getFailure() );
+            }
+            finally
+            {
+                stream.close();
+            }
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    public void testUnknownLengthIsFoundOnce() throws IOException
+    {
+        // more than one chunk, so that the length walk loops
+        ImageInputStream stream = new MemoryCacheImageInputStream(
+                new ByteArrayInputStream( bytes( 200000 ) ) );
+        try
+        {
+            assertEquals( -1, stream.length() );
+            stream.seek( 1000 );
+            ImageInputStreamSource source = new ImageInputStreamSource( stream );
+            assertEquals( 199000, source.getLength() );
+            assertEquals( 1000, stream.getStreamPosition() );
+            assertEquals( 1, source.read( 1 ) );
+            assertEquals( (byte) 1000, source.getChunk().get( 0 ) );
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    public void testReadsStopAtTheEnd() throws IOException
+    {
+        ImageInputStream stream = new MemoryCacheImageInputStream(
+                new ByteArrayInputStream( bytes( 10 ) ) );
+        try
+        {
+            ImageInputStreamSource source = new ImageInputStreamSource( stream );
+            assertTrue( source.seek( 8 ) );
+            assertEquals( 2, source.read( 100 ) );
+            assertEquals( -1, source.read( 100 ) );
+            assertNull( source.getFailure() );
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package org.openJpeg;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the request queue of the async decoder, with plain tasks in
+ * place of native decodes.
+ */
+public class OpenJPEGJavaAsyncDecoderTest
+    extends TestCase
+{
+    public OpenJPEGJavaAsyncDecoderTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( OpenJPEGJavaAsyncDecoderTest.class );
+    }
+
+    /** a task holding its decode thread until released */
+    private static Callable<String> blocking( final CountDownLatch started, final CountDownLatch release )
+    {
+        return new Callable<String>()
+        {
+            public String call() throws InterruptedException
+            {
+                started.countDown();
+                release.await( 10, TimeUnit.SECONDS );
+                return "done";
+            }
+        };
+    }
+
+    public void testFullQueueRejects() throws Exception
+    {
+        OpenJPEGJavaAsyncDecoder decoder = new OpenJPEGJavaAsyncDecoder( 1, 1 );
+        CountDownLatch started = new CountDownLatch( 1 );
+        CountDownLatch release = new CountDownLatch( 1 );
+        try
+        {
+            CompletableFuture<String> running = decoder.submit( blocking( started, release ) );
+            assertTrue( started.await( 10, TimeUnit.SECONDS ) );
+            CompletableFuture<String> queued = decoder.submit( blocking( new CountDownLatch( 1 ), release ) );
+            CompletableFuture<String> rejected = decoder.submit( blocking( new CountDownLatch( 1 ), release ) );
+
+            assertTrue( rejected.isCompletedExceptionally() );
+            try
+            {
+                rejected.get();
+                fail( "a request past the queue capacity was accepted" );
+            }
+            catch ( ExecutionException e )
+            {
+                assertTrue( e.getCause() instanceof RejectedExecutionException );
+            }
+            assertEquals( 1, decoder.getRejectedDecodes() );
+            assertEquals( 1, decoder.getQueueDepth() );
+            assertEquals( 1, decoder.getActiveDecodes() );
+            assertEquals( 1, decoder.getQueueCapacity() );
+            assertEquals( 1, decoder.getThreads() );
+
+            release.countDown();
+            assertEquals( "done", running.get( 10, TimeUnit.SECONDS ) );
+            assertEquals( "done", queued.get( 10, TimeUnit.SECONDS ) );
+            assertEquals( 0, decoder.getQueueDepth() );
+        }
+        finally
+        {
+            release.countDown();
+            decoder.close();
+        }
+    }
+
+    public void testCancelledRequestDoesNotRun() throws Exception
+    {
+        OpenJPEGJavaAsyncDecoder decoder = new OpenJPEGJavaAsyncDecoder( 1, 2 );
+        CountDownLatch started = new CountDownLatch( 1 );
+        CountDownLatch release = new CountDownLatch( 1 );
+        final AtomicBoolean ran = new AtomicBoolean();
+        final AtomicBoolean onCancel = new AtomicBoolean();
+        try
+        {
+            CompletableFuture<String> running = decoder.submit( blocking( started, release ) );
+            assertTrue( started.await( 10, TimeUnit.SECONDS ) );
+            CompletableFuture<String> queued = decoder.submit( new Callable<String>()
+            {
+                public String call()
+                {
+                    ran.set( true );
+                    return "ran";
+                }
+            }, new Runnable()
+            {
+                public void run()
+                {
+                    onCancel.set( true );
+                }
+            } );
+            assertTrue( queued.cancel( false ) );
+            assertTrue( onCancel.get() );
+
+            // queued after the cancelled request, on the only thread
+            CompletableFuture<String> next = decoder.submit( blocking( new CountDownLatch( 1 ), release ) );
+
+            release.countDown();
+            assertEquals( "done", running.get( 10, TimeUnit.SECONDS ) );
+            assertEquals( "done", next.get( 10, TimeUnit.SECONDS ) );
+            assertFalse( ran.get() );
+        }
+        finally
+        {
+            release.countDown();
+            decoder.close();
+        }
+    }
+
+    public void testTaskFailureReachesTheFuture() throws Exception
+    {
+        OpenJPEGJavaAsyncDecoder decoder = new OpenJPEGJavaAsyncDecoder( 1, 1 );
+        try
+        {
+            CompletableFuture<String> future = decoder.submit( new Callable<String>()
+            {
+                public String call() throws java.io.IOException
+                {
+                    throw new java.io.IOException( "broken codestream" );
+                }
+            } );
+            try
+            {
+                future.get( 10, TimeUnit.SECONDS );
+                fail( "the task failure was lost" );
+            }
+            catch ( ExecutionException e )
+            {
+                assertTrue( e.getCause() instanceof java.io.IOException );
+            }
+        }
+        finally
+        {
+            decoder.close();
+        }
+    }
+
+    public void testRejectsEmptyPools()
+    {
+        try
+        {
+            new OpenJPEGJavaAsyncDecoder( 0, 1 );
+            fail( "accepted no decode thread" );
+        }
+        catch ( IllegalArgumentException expected )
+        {
+        }
+        try
+        {
+            new OpenJPEGJavaAsyncDecoder( 1, 0 );
+            fail( "accepted no queue" );
+        }
+        catch ( IllegalArgumentException expected )
+        {
+        }
+    }
+}